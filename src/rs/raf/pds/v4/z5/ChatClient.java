@@ -5,76 +5,320 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.rmi.Naming;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
 
+import rs.raf.pds.v4.z5.messages.CatchUp;
+import rs.raf.pds.v4.z5.messages.CatchUpRequest;
 import rs.raf.pds.v4.z5.messages.ChatMessage;
 import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.CompressedPacket;
+import rs.raf.pds.v4.z5.messages.Compression;
+import rs.raf.pds.v4.z5.messages.HistoryPage;
 import rs.raf.pds.v4.z5.messages.InfoMessage;
 import rs.raf.pds.v4.z5.messages.KryoUtil;
 import rs.raf.pds.v4.z5.messages.ListUsers;
 import rs.raf.pds.v4.z5.messages.Login;
+import rs.raf.pds.v4.z5.messages.Mailbox;
+import rs.raf.pds.v4.z5.messages.MailboxAck;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
 import rs.raf.pds.v4.z5.messages.PacketType;
+import rs.raf.pds.v4.z5.messages.PresenceSubscribe;
+import rs.raf.pds.v4.z5.messages.RoomRequest;
+import rs.raf.pds.v4.z5.messages.RoomResponse;
+import rs.raf.pds.v4.z5.messages.SearchRequest;
+import rs.raf.pds.v4.z5.messages.SearchResponse;
+import rs.raf.pds.v4.z5.messages.ShardRedirect;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+import rs.raf.pds.v4.z5.messages.UserHandles;
 import rs.raf.pds.v4.z5.messages.WhoRequest;
 
+import rs.raf.pds.v4.z5.net.PayloadCompressor;
+
 // RMI
 import rs.raf.pds.v4.z5.rmi.ChatService;
+import rs.raf.pds.v4.z5.store.IdGenerator;
 
 public class ChatClient implements Runnable {
 
     public static int DEFAULT_CLIENT_READ_BUFFER_SIZE = 1000000;
     public static int DEFAULT_CLIENT_WRITE_BUFFER_SIZE = 1000000;
 
+    // -Dchat.client.rmi=true: sobe i istorija preko RMI-ja umesto preko socket-a
+    public static boolean USE_RMI = Boolean.getBoolean("chat.client.rmi");
+
+    // -Dchat.client.compression=none|fast|dense: kodek za velike poruke u oba smera
+    public static Compression COMPRESSION =
+            Compression.valueOf(System.getProperty("chat.client.compression", "fast").toUpperCase());
+
+    // automatsko ponovno povezivanje: -Dchat.client.reconnectMinMs=N -Dchat.client.reconnectMaxMs=N;
+    // eksponencijalni backoff sa slucajnim rasipanjem, da se posle pada servera ne vrate svi odjednom
+    public static long RECONNECT_MIN_MS = Long.getLong("chat.client.reconnectMinMs", 500);
+    public static long RECONNECT_MAX_MS = Long.getLong("chat.client.reconnectMaxMs", 30_000);
+
+    // -Dchat.client.presence=true|false: pretplata na delte prisutnosti (ko je dosao / otisao); sa njom
+    // WHO prikazuje lokalnu listu bez pitanja servera; menja se i komandom /presence on|off
+    public static boolean PRESENCE = Boolean.parseBoolean(System.getProperty("chat.client.presence", "true"));
+    // delta sa vise imena se prikazuje samo kao broj
+    static final int PRESENCE_SHOW_NAMES = 10;
+
+    // toliko CatchUp stranica se povuce samo, ostatak na /missed
+    static final int CATCHUP_AUTO_PAGES = 5;
+    // CatchUp koji ne stigne za -Dchat.client.catchUpTimeoutMs=N (okvir odbacen na serveru, izgubljen
+    // zahtev) trazi se ponovo, najvise CATCHUP_RETRIES puta, pa ostaje za /missed
+    public static long CATCHUP_TIMEOUT_MS = Long.getLong("chat.client.catchUpTimeoutMs", 10_000);
+    static final int CATCHUP_RETRIES = 2;
+    static final int RECENT_IDS = 4096;
+
     private volatile Thread thread = null;
     volatile boolean running = false;
 
     final Client client;
     final String hostName;
     final int portNumber;
+    // port shard-a koji je server dodelio (ShardRedirect); ponovna povezivanja idu direktno tamo
+    private volatile int shardPort;
     final String userName;
 
-    // RMI
+    // RMI (rezerva): lookup tek kada zatreba
     private ChatService chatService;
+    private boolean rmiTried = false;
+
+    // kursori za paginaciju istorije po sobi; odgovore sa socket-a obradjuje KryoNet nit
+    private final Map<String, String> olderCursors = new ConcurrentHashMap<>();
+    private final Map<String, String> newerCursors = new ConcurrentHashMap<>();
+    // poslednji prikazan ID po sobi - poruka moze da stigne i u JOIN stranici i uzivo
+    private final Map<String, Long> lastShownIds = new ConcurrentHashMap<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    // poslednja pretraga; "/search" bez argumenata trazi sledecu stranicu (menja je i KryoNet nit)
+    private volatile SearchRequest nextSearch;
+
+    // handle -> ime (najave servera) i online korisnici iz ListUsers delti; menja ih KryoNet nit
+    private final UserDirectory userNames = new UserDirectory();
+    private final BitSet onlineUsers = new BitSet();
+    private volatile boolean presence = PRESENCE;
+    // prva delta posle pretplate je cela lista
+    private volatile boolean presenceSynced;
+
+    // nastavak posle prekida: najveci primljeni ID (Login ga salje serveru) i nedavno prikazani ID-jevi -
+    // ista poruka moze da stigne i u CatchUp-u i uzivo; menja ih KryoNet nit
+    private volatile long lastSeenId;
+    private final Set<Long> recentIds = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT_IDS;
+        }
+    });
+    private volatile CatchUpRequest pendingCatchUp;
+    private volatile int catchUpPages;
+    // poslat zahtev na koji jos nije stigao CatchUp (null = nijedan)
+    private volatile CatchUpRequest awaitedCatchUp;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    // ShardRedirect zatvara vezu namerno - to nije prekid
+    private volatile boolean redirecting;
+
+    // kompresija i batch: svoj Kryo za slanje (nit komandi) i za prijem (KryoNet nit)
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private final Kryo encodeKryo;
+    private final Kryo decodeKryo;
+    private final Output encodeOutput = new Output(1024, -1);
 
     public ChatClient(String hostName, int portNumber, String userName) {
         this.client = new Client(DEFAULT_CLIENT_WRITE_BUFFER_SIZE, DEFAULT_CLIENT_READ_BUFFER_SIZE);
 
         this.hostName = hostName;
         this.portNumber = portNumber;
+        this.shardPort = portNumber;
         this.userName = userName;
 
-        KryoUtil.registerKryoClasses(client.getKryo());
+        KryoUtil.registerKryoClasses(client.getKryo(), userNames);
+        this.encodeKryo = KryoUtil.newKryo(userNames);
+        this.decodeKryo = KryoUtil.newKryo(userNames);
         registerListener();
+    }
 
-        // RMI lookup
-        try {
-            this.chatService = (ChatService) Naming.lookup("rmi://" + hostName + "/ChatService");
-            System.out.println("Connected to RMI ChatService");
-        } catch (Exception e) {
-            System.out.println("WARNING: Cannot connect to RMI ChatService. Rooms/history won't work.");
-            System.out.println("Reason: " + e.getMessage());
-            this.chatService = null;
+    private boolean useSocket() {
+        return !USE_RMI && client.isConnected();
+    }
+
+    private ChatService rmi() {
+        if (chatService == null && !rmiTried) {
+            rmiTried = true;
+            try {
+                this.chatService = (ChatService) Naming.lookup("rmi://" + hostName + "/ChatService");
+                System.out.println("Connected to RMI ChatService");
+            } catch (Exception e) {
+                System.out.println("WARNING: Cannot connect to RMI ChatService. Rooms/history won't work.");
+                System.out.println("Reason: " + e.getMessage());
+            }
         }
+        if (chatService == null) System.out.println("RMI not available.");
+        return chatService;
+    }
+
+    // poruke iznad praga idu kompresovane (server uvek ume da ih raspakuje)
+    private void send(ChatPacket p) {
+        if (COMPRESSION != Compression.NONE) {
+            encodeOutput.clear();
+            encodeKryo.writeClassAndObject(encodeOutput, p);
+            byte[] raw = encodeOutput.toBytes();
+            byte[] data = compressor.compress(raw, COMPRESSION);
+            if (data != null) {
+                client.sendTCP(new CompressedPacket(COMPRESSION, raw.length, data));
+                return;
+            }
+        }
+        client.sendTCP(p);
+    }
+
+    private void sendRoomRequest(RoomRequest.Op op, String room, String cursor) {
+        RoomRequest request = new RoomRequest(requestIds.incrementAndGet(), op, room);
+        request.cursor = cursor;
+        client.sendTCP(request);
+    }
+
+    // /search [public|room:ime|dm:korisnik|from:korisnik] reci...
+    private SearchRequest parseSearch(String rest) {
+        String scope = "public";
+        int sp = rest.indexOf(' ');
+        String first = sp < 0 ? rest : rest.substring(0, sp);
+        if (first.equals("public") || first.startsWith("room:") || first.startsWith("dm:") || first.startsWith("from:")) {
+            scope = first;
+            rest = sp < 0 ? "" : rest.substring(sp + 1).trim();
+        }
+        return rest.isEmpty() ? null : new SearchRequest(0, scope, rest);
+    }
+
+    private void showSearchResponse(SearchResponse r) {
+        if (!r.ok) {
+            System.out.println("Search failed: " + r.error);
+            return;
+        }
+        if (r.hasMore) {
+            SearchRequest next = new SearchRequest(0, r.scope, r.query);
+            next.cursor = r.cursor;
+            nextSearch = next;
+        } else {
+            nextSearch = null;
+        }
+        System.out.println("Search " + r.scope + " \"" + r.query + "\" (" + r.messages.length + ")"
+                + (r.hasMore ? ", more with /search" : "") + ":");
+        for (ChatPacket p : r.messages) showChatPacket(p);
     }
 
     private void registerListener() {
         client.addListener(new Listener() {
             public void connected(Connection connection) {
-                Login loginMessage = new Login(userName);
+                userNames.clear();
+                onlineUsers.clear();
+                redirecting = false;
+                pendingCatchUp = null;
+                catchUpPages = 0;
+                presenceSynced = false;
+                Login loginMessage = new Login(userName, COMPRESSION, lastSeenId);
                 client.sendTCP(loginMessage);
+                // prvi CatchUp trazi sam Login; ponavlja se istim opsegom koji server racuna iz lastSeenId
+                if (lastSeenId > 0) {
+                    long after = IdGenerator.firstIdAt(IdGenerator.timestampOf(lastSeenId) - ChatServer.CATCHUP_SLACK_MS);
+                    watchCatchUp(new CatchUpRequest(Math.max(0, after - 1), 0), 0);
+                } else {
+                    awaitedCatchUp = null;
+                }
+                if (presence) client.sendTCP(new PresenceSubscribe(true));
             }
 
             public void received(Connection connection, Object object) {
 
+                if (object instanceof CompressedPacket) {
+                    try {
+                        byte[] raw = compressor.decompress((CompressedPacket) object, DEFAULT_CLIENT_READ_BUFFER_SIZE);
+                        Object inner = decodeKryo.readClassAndObject(new Input(raw));
+                        if (inner instanceof CompressedPacket) throw new IOException("Nested compressed packet");
+                        received(connection, inner);
+                    } catch (Exception e) {
+                        System.out.println("Bad compressed packet: " + e.getMessage());
+                    }
+                    return;
+                }
+
+                // vise poruka u jednom okviru - obradi svaku redom
+                if (object instanceof PacketBatch) {
+                    for (Object o : ((PacketBatch) object).unpack(decodeKryo)) received(connection, o);
+                    return;
+                }
+
+                // stara konekcija se zatvara odmah (na KryoNet niti), a connect() ide sa druge niti;
+                // Login se salje ponovo iz connected()
+                if (object instanceof ShardRedirect) {
+                    shardPort = ((ShardRedirect) object).port;
+                    redirecting = true;
+                    client.close();
+                    new Thread(() -> {
+                        try {
+                            connect();
+                        } catch (IOException e) {
+                            System.out.println("Cannot connect to shard port " + shardPort + ": " + e.getMessage());
+                        }
+                    }, "shard-redirect").start();
+                    return;
+                }
+
                 if (object instanceof ChatPacket) {
                     ChatPacket p = (ChatPacket) object;
+                    if (p.type == PacketType.ROOM ? !markShown(p.room, p.id) : !markSeen(p.id)) return;
                     showChatPacket(p);
                     return;
                 }
 
+                if (object instanceof CatchUp) {
+                    showCatchUp((CatchUp) object);
+                    return;
+                }
+
+                // potvrda tek posle prikaza; server onda salje sledecu grupu
+                if (object instanceof Mailbox) {
+                    Mailbox mailbox = (Mailbox) object;
+                    if (mailbox.messages.length > 0) System.out.println("Received while offline:");
+                    for (ChatPacket p : mailbox.messages) {
+                        if (markSeen(p.id)) showChatPacket(p);
+                    }
+                    client.sendTCP(new MailboxAck(mailbox.firstId, mailbox.count));
+                    return;
+                }
+
+                if (object instanceof RoomResponse) {
+                    showRoomResponse((RoomResponse) object);
+                    return;
+                }
+
+                if (object instanceof SearchResponse) {
+                    showSearchResponse((SearchResponse) object);
+                    return;
+                }
+
                 // staro (kompatibilnost)
                 if (object instanceof ChatMessage) {
                     ChatMessage chatMessage = (ChatMessage) object;
@@ -82,9 +326,26 @@ public class ChatClient implements Runnable {
                     return;
                 }
 
+                if (object instanceof UserHandles) {
+                    UserHandles announce = (UserHandles) object;
+                    for (int i = 0; i < announce.handles.length; i++) userNames.put(announce.handles[i], announce.names[i]);
+                    return;
+                }
+
                 if (object instanceof ListUsers) {
                     ListUsers listUsers = (ListUsers) object;
-                    showOnlineUsers(listUsers.getUsers());
+                    if (listUsers.getUsers() != null) {
+                        showOnlineUsers(listUsers.getUsers());
+                        return;
+                    }
+                    for (int h : listUsers.getRemoved()) onlineUsers.clear(h);
+                    for (int h : listUsers.getAdded()) onlineUsers.set(h);
+                    if (presence && presenceSynced) {
+                        showPresence(listUsers.getAdded(), listUsers.getRemoved());
+                    } else {
+                        presenceSynced = presence;
+                        showOnlineUsers(onlineUsers.stream().mapToObj(userNames::nameOf).toArray(String[]::new));
+                    }
                     return;
                 }
 
@@ -96,10 +357,149 @@ public class ChatClient implements Runnable {
             }
 
             public void disconnected(Connection connection) {
+                if (running && !redirecting) scheduleReconnect(0);
             }
         });
     }
 
+    // busy: server ne stize, isti zahtev se ponavlja posle slucajne pauze
+    private void showCatchUp(CatchUp c) {
+        awaitedCatchUp = null;
+        CatchUpRequest next = new CatchUpRequest(c.cursor, c.untilId);
+        if (c.busy) {
+            timer.schedule(() -> requestCatchUp(next), 500 + ThreadLocalRandom.current().nextLong(2000), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        if (catchUpPages == 0 && c.messages.length > 0) System.out.println("Missed while disconnected:");
+        if (c.gap && catchUpPages == 0) System.out.println("(some older missed messages are no longer on the server)");
+        for (ChatPacket p : c.messages) {
+            if (markSeen(p.id)) showChatPacket(p);
+        }
+
+        if (!c.hasMore) {
+            pendingCatchUp = null;
+            return;
+        }
+        pendingCatchUp = next;
+        if (++catchUpPages < CATCHUP_AUTO_PAGES) requestCatchUp(next);
+        else System.out.println("More missed messages, load them with /missed");
+    }
+
+    private void requestCatchUp(CatchUpRequest request) {
+        client.sendTCP(request);
+        watchCatchUp(request, 0);
+    }
+
+    // odgovor moze da ne stigne (npr. okvir odbacen na serveru); bez ovoga klijent bi cekao zauvek
+    private void watchCatchUp(CatchUpRequest request, int attempt) {
+        awaitedCatchUp = request;
+        timer.schedule(() -> {
+            if (awaitedCatchUp != request || !client.isConnected()) return;
+            if (attempt < CATCHUP_RETRIES) {
+                client.sendTCP(request);
+                watchCatchUp(request, attempt + 1);
+                return;
+            }
+            awaitedCatchUp = null;
+            pendingCatchUp = request;
+            System.out.println("Missed messages did not arrive, try again with /missed");
+        }, CATCHUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // false ako je poruka vec prikazana
+    private boolean markSeen(long id) {
+        if (id <= 0) return true;
+        if (!recentIds.add(id)) return false;
+        if (id > lastSeenId) lastSeenId = id;
+        return true;
+    }
+
+    private void scheduleReconnect(int attempt) {
+        if (attempt == 0 && !reconnecting.compareAndSet(false, true)) return;
+        long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_MIN_MS << Math.min(attempt, 16));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        timer.schedule(() -> {
+            if (!running || client.isConnected()) {
+                reconnecting.set(false);
+                return;
+            }
+            try {
+                connect();
+                reconnecting.set(false);
+            } catch (IOException e) {
+                scheduleReconnect(attempt + 1);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void showRoomResponse(RoomResponse r) {
+        switch (r.op) {
+            case LIST:
+                if (r.rooms == null || r.rooms.length == 0) System.out.println("(no rooms)");
+                else for (String room : r.rooms) System.out.println("- " + room);
+                break;
+            case CREATE:
+                System.out.println(r.ok ? "Room created: " + r.room : "Room already exists: " + r.room);
+                break;
+            case LEAVE:
+                System.out.println(r.ok ? "Left room: " + r.room : "Not a member of " + r.room);
+                break;
+            case JOIN:
+                if (!r.ok) {
+                    System.out.println("No such room: " + r.room);
+                    break;
+                }
+                showJoined(r.room, r.page);
+                break;
+            case OLDER:
+                if (r.ok) showOlder(r.room, r.page);
+                else System.out.println("No such room: " + r.room);
+                break;
+            case NEWER:
+                if (r.ok) showNewer(r.room, r.page);
+                else System.out.println("No such room: " + r.room);
+                break;
+        }
+    }
+
+    private void showJoined(String room, HistoryPage page) {
+        System.out.println("Joined room: " + room + " | last " + page.messages.length + " messages:");
+        for (ChatPacket p : page.messages) {
+            markShown(room, p.id);
+            showChatPacket(p);
+        }
+        if (page.messages.length == 0) {
+            olderCursors.remove(room);
+            newerCursors.remove(room);
+        } else {
+            olderCursors.put(room, page.olderCursor);
+            newerCursors.put(room, page.newerCursor);
+        }
+    }
+
+    private void showOlder(String room, HistoryPage page) {
+        if (page.messages.length > 0) olderCursors.put(room, page.olderCursor);
+        if (!newerCursors.containsKey(room) && page.newerCursor != null) newerCursors.put(room, page.newerCursor);
+        System.out.println("Older messages (" + page.messages.length + ")" + (page.hasOlder ? ", more with /older " + room : "") + ":");
+        for (ChatPacket p : page.messages) showChatPacket(p);
+    }
+
+    private void showNewer(String room, HistoryPage page) {
+        if (page.newerCursor != null) newerCursors.put(room, page.newerCursor);
+        System.out.println("Newer messages (" + page.messages.length + ")" + (page.hasNewer ? ", more with /newer " + room : "") + ":");
+        for (ChatPacket p : page.messages) showChatPacket(p);
+    }
+
+    // false ako je poruka iz sobe vec prikazana
+    private boolean markShown(String room, long id) {
+        if (room == null) return true;
+        Long last = lastShownIds.get(room);
+        if (last != null && id <= last) return false;
+        lastShownIds.put(room, id);
+        return true;
+    }
+
     private void showChatMessage(ChatMessage chatMessage) {
         System.out.println(chatMessage.getUser() + ":" + chatMessage.getTxt());
     }
@@ -113,6 +513,7 @@ public class ChatClient implements Runnable {
         String prefix;
         if (p.type == PacketType.DM) prefix = "[DM]";
         else if (p.type == PacketType.MCAST) prefix = "[MCAST]";
+        else if (p.type == PacketType.ROOM) prefix = "[" + p.room + "]";
         else prefix = "[PUBLIC]";
 
         String editedPart = p.edited ? " (edited)" : "";
@@ -129,7 +530,34 @@ public class ChatClient implements Runnable {
         System.out.println(txt);
     }
 
+    private void showPresence(int[] added, int[] removed) {
+        if (added.length + removed.length > PRESENCE_SHOW_NAMES) {
+            System.out.println("Server: " + added.length + " joined, " + removed.length + " left, "
+                    + onlineUsers.cardinality() + " online");
+            return;
+        }
+        String joined = names(added);
+        String left = names(removed);
+        if (!joined.isEmpty()) System.out.println("Server: joined " + joined);
+        if (!left.isEmpty()) System.out.println("Server: left " + left);
+    }
+
+    // bez sopstvenog imena (sopstvena prijava stize u prvoj sledecoj delti)
+    private String names(int[] handles) {
+        StringBuilder sb = new StringBuilder();
+        for (int h : handles) {
+            String name = userNames.nameOf(h);
+            if (userName.equals(name)) continue;
+            sb.append(sb.length() == 0 ? "" : ", ").append(name);
+        }
+        return sb.toString();
+    }
+
     private void showOnlineUsers(String[] users) {
+        if (users.length == 0) {
+            System.out.println("Server: no users online");
+            return;
+        }
         System.out.print("Server:");
         for (int i = 0; i < users.length; i++) {
             String user = users[i];
@@ -157,7 +585,7 @@ public class ChatClient implements Runnable {
     }
 
     public void connect() throws IOException {
-        client.connect(1000, hostName, portNumber);
+        client.connect(1000, hostName, shardPort);
     }
 
     public void run() {
@@ -173,69 +601,142 @@ public class ChatClient implements Runnable {
                     running = false;
                 }
                 else if ("WHO".equalsIgnoreCase(userInput)) {
-                    client.sendTCP(new WhoRequest());
+                    // sa pretplatom je lista vec azurna
+                    if (presence && presenceSynced) {
+                        showOnlineUsers(onlineUsers.stream().mapToObj(userNames::nameOf).toArray(String[]::new));
+                    } else {
+                        client.sendTCP(new WhoRequest());
+                    }
+                }
+                else if (userInput.startsWith("/presence ")) {
+                    presence = userInput.substring(10).trim().equalsIgnoreCase("on");
+                    presenceSynced = false;
+                    client.sendTCP(new PresenceSubscribe(presence));
+                }
+                else if (userInput.equals("/missed")) {
+                    CatchUpRequest next = pendingCatchUp;
+                    if (next == null) {
+                        System.out.println("No more missed messages.");
+                    } else {
+                        catchUpPages = 0;
+                        requestCatchUp(next);
+                    }
+                }
+                // metrike servera (RMI getStats)
+                else if (userInput.equals("/stats")) {
+                    if (rmi() != null) System.out.print(chatService.getStats());
+                }
+                // pretraga istorije: socket, RMI kao rezerva; bez argumenata sledeca stranica
+                else if (userInput.equals("/search") || userInput.startsWith("/search ")) {
+                    SearchRequest request = userInput.length() > 7
+                            ? parseSearch(userInput.substring(8).trim()) : nextSearch;
+                    if (request == null) {
+                        System.out.println(userInput.length() > 7
+                                ? "Usage: /search [public|room:name|dm:user|from:user] words (word* for prefix)"
+                                : "No more search results.");
+                        continue;
+                    }
+                    request.requestId = requestIds.incrementAndGet();
+                    if (useSocket()) {
+                        client.sendTCP(request);
+                    } else if (rmi() != null) {
+                        showSearchResponse(chatService.search(userName, request.scope, request.query, request.cursor, 0));
+                    }
                 }
 
-                // ===== RMI komande =====
+                // ===== sobe: socket, RMI samo kao rezerva =====
                 else if (userInput.equals("/rooms")) {
-                    if (chatService == null) {
-                        System.out.println("RMI not available.");
-                    } else {
+                    if (useSocket()) {
+                        sendRoomRequest(RoomRequest.Op.LIST, null, null);
+                    } else if (rmi() != null) {
                         List<String> rooms = chatService.listRooms();
                         if (rooms.isEmpty()) System.out.println("(no rooms)");
                         else rooms.forEach(r -> System.out.println("- " + r));
                     }
                 }
                 else if (userInput.startsWith("/create ")) {
-                    if (chatService == null) {
-                        System.out.println("RMI not available.");
-                    } else {
-                        String room = userInput.substring(8).trim();
-                        if (room.isEmpty()) {
-                            System.out.println("Usage: /create <roomName>");
-                        } else {
-                            boolean ok = chatService.createRoom(room, userName);
-                            System.out.println(ok ? "Room created: " + room : "Room already exists: " + room);
-                        }
+                    String room = userInput.substring(8).trim();
+                    if (room.isEmpty()) {
+                        System.out.println("Usage: /create <roomName>");
+                    } else if (useSocket()) {
+                        sendRoomRequest(RoomRequest.Op.CREATE, room, null);
+                    } else if (rmi() != null) {
+                        boolean ok = chatService.createRoom(room, userName);
+                        System.out.println(ok ? "Room created: " + room : "Room already exists: " + room);
                     }
                 }
                 else if (userInput.startsWith("/join ")) {
-                    if (chatService == null) {
-                        System.out.println("RMI not available.");
-                    } else {
-                        String room = userInput.substring(6).trim();
-                        if (room.isEmpty()) {
-                            System.out.println("Usage: /join <roomName>");
-                        } else {
-                            List<ChatPacket> history = chatService.joinRoom(room, userName);
-                            System.out.println("Joined room: " + room + " | last " + history.size() + " messages:");
-                            for (ChatPacket p : history) showChatPacket(p);
-                        }
+                    String room = userInput.substring(6).trim();
+                    if (room.isEmpty()) {
+                        System.out.println("Usage: /join <roomName>");
+                    } else if (useSocket()) {
+                        sendRoomRequest(RoomRequest.Op.JOIN, room, null);
+                    } else if (rmi() != null) {
+                        HistoryPage page = chatService.joinRoomPage(room, userName, 10);
+                        if (page == null) System.out.println("No such room: " + room);
+                        else showJoined(room, page);
+                    }
+                }
+                else if (userInput.startsWith("/leave ")) {
+                    String room = userInput.substring(7).trim();
+                    if (room.isEmpty()) {
+                        System.out.println("Usage: /leave <roomName>");
+                    } else if (useSocket()) {
+                        sendRoomRequest(RoomRequest.Op.LEAVE, room, null);
+                    } else if (rmi() != null) {
+                        System.out.println(chatService.leaveRoom(room, userName) ? "Left room: " + room : "Not a member of " + room);
                     }
                 }
                 else if (userInput.startsWith("/older ")) {
-                    if (chatService == null) {
-                        System.out.println("RMI not available.");
-                    } else {
-                        // /older roomName beforeId
-                        String rest = userInput.substring(7).trim();
-                        String[] parts = rest.split("\\s+");
-                        if (parts.length < 2) {
-                            System.out.println("Usage: /older <roomName> <beforeMessageId>");
-                        } else {
-                            String room = parts[0];
-                            long beforeId;
-                            try {
-                                beforeId = Long.parseLong(parts[1]);
-                            } catch (NumberFormatException e) {
-                                System.out.println("beforeMessageId must be a number.");
-                                continue;
-                            }
-
+                    // /older roomName [beforeId]
+                    String rest = userInput.substring(7).trim();
+                    String[] parts = rest.split("\\s+");
+                    if (rest.isEmpty()) {
+                        System.out.println("Usage: /older <roomName> [beforeMessageId]");
+                        continue;
+                    }
+                    String room = parts[0];
+                    String cursor = olderCursors.get(room);
+                    if (parts.length >= 2) {
+                        // kursore pravi samo server; od zadatog ID-ja ide RMI metoda po ID-ju
+                        long beforeId;
+                        try {
+                            beforeId = Long.parseLong(parts[1]);
+                        } catch (NumberFormatException e) {
+                            System.out.println("beforeMessageId must be a number.");
+                            continue;
+                        }
+                        if (rmi() != null) {
                             List<ChatPacket> older = chatService.loadOlderMessages(room, beforeId, 10);
                             System.out.println("Older messages (" + older.size() + "):");
                             for (ChatPacket p : older) showChatPacket(p);
                         }
+                        continue;
+                    }
+
+                    if (useSocket()) {
+                        sendRoomRequest(RoomRequest.Op.OLDER, room, cursor);
+                    } else if (rmi() != null) {
+                        showOlder(room, chatService.loadOlderMessages(room, cursor, 10));
+                    }
+                }
+                else if (userInput.startsWith("/newer ")) {
+                    String room = userInput.substring(7).trim();
+                    if (room.isEmpty()) {
+                        System.out.println("Usage: /newer <roomName>");
+                    } else if (useSocket()) {
+                        sendRoomRequest(RoomRequest.Op.NEWER, room, newerCursors.get(room));
+                    } else if (rmi() != null) {
+                        showNewer(room, chatService.loadNewerMessages(room, newerCursors.get(room), 10));
+                    }
+                }
+                else if (userInput.startsWith("/room ")) {
+                    String rest = userInput.substring(6).trim();
+                    int sp = rest.indexOf(' ');
+                    if (sp < 0) {
+                        System.out.println("Usage: /room <roomName> <text>");
+                    } else {
+                        send(ChatPacket.room(userName, rest.substring(0, sp), rest.substring(sp + 1)));
                     }
                 }
 
@@ -248,7 +749,7 @@ public class ChatClient implements Runnable {
                     } else {
                         String toUser = rest.substring(0, sp);
                         String txt = rest.substring(sp + 1);
-                        client.sendTCP(ChatPacket.dm(userName, toUser, txt));
+                        send(ChatPacket.dm(userName, toUser, txt));
                     }
                 }
                 else if (userInput.startsWith("/mcast ")) {
@@ -265,7 +766,7 @@ public class ChatClient implements Runnable {
                                 .filter(s -> !s.isEmpty())
                                 .toArray(String[]::new);
 
-                        client.sendTCP(ChatPacket.mcast(userName, users, txt));
+                        send(ChatPacket.mcast(userName, users, txt));
                     }
                 }
                 else if (userInput.startsWith("/reply ")) {
@@ -285,7 +786,7 @@ public class ChatClient implements Runnable {
 
                         ChatPacket p = ChatPacket.publicMsg(userName, txt);
                         p.replyToId = replyId;
-                        client.sendTCP(p);
+                        send(p);
                     }
                 }
                 else if (userInput.startsWith("/edit ")) {
@@ -302,15 +803,15 @@ public class ChatClient implements Runnable {
                             continue;
                         }
                         String newText = rest.substring(sp + 1);
-                        client.sendTCP(ChatPacket.edit(userName, id, newText));
+                        send(ChatPacket.edit(userName, id, newText));
                     }
                 }
                 else {
                     // default: public
-                    client.sendTCP(ChatPacket.publicMsg(userName, userInput));
+                    send(ChatPacket.publicMsg(userName, userInput));
                 }
 
-                if (!client.isConnected() && running)
+                if (!client.isConnected() && running && !reconnecting.get())
                     connect();
             }
 
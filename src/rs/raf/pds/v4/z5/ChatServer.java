@@ -1,113 +1,717 @@
 package rs.raf.pds.v4.z5;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.rmi.Naming;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
-import com.esotericsoftware.kryonet.Server;
 
+import rs.raf.pds.v4.z5.cluster.ClusterBus;
+import rs.raf.pds.v4.z5.messages.CatchUp;
+import rs.raf.pds.v4.z5.messages.CatchUpRequest;
 import rs.raf.pds.v4.z5.messages.ChatMessage;
 import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.CompressedPacket;
+import rs.raf.pds.v4.z5.messages.Compression;
 import rs.raf.pds.v4.z5.messages.InfoMessage;
 import rs.raf.pds.v4.z5.messages.KryoUtil;
 import rs.raf.pds.v4.z5.messages.ListUsers;
 import rs.raf.pds.v4.z5.messages.Login;
+import rs.raf.pds.v4.z5.messages.Mailbox;
+import rs.raf.pds.v4.z5.messages.MailboxAck;
+import rs.raf.pds.v4.z5.messages.NodeState;
 import rs.raf.pds.v4.z5.messages.PacketType;
+import rs.raf.pds.v4.z5.messages.PresenceSubscribe;
+import rs.raf.pds.v4.z5.messages.RemotePacket;
+import rs.raf.pds.v4.z5.messages.RemoteReply;
+import rs.raf.pds.v4.z5.messages.RoomForward;
+import rs.raf.pds.v4.z5.messages.RoomRequest;
+import rs.raf.pds.v4.z5.messages.RoomResponse;
+import rs.raf.pds.v4.z5.messages.SearchRequest;
+import rs.raf.pds.v4.z5.messages.SearchResponse;
+import rs.raf.pds.v4.z5.messages.ShardRedirect;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+import rs.raf.pds.v4.z5.messages.UserHandles;
 import rs.raf.pds.v4.z5.messages.WhoRequest;
+import rs.raf.pds.v4.z5.log.ServerLog;
+import rs.raf.pds.v4.z5.metrics.Histogram;
+import rs.raf.pds.v4.z5.metrics.ServerMetrics;
+import rs.raf.pds.v4.z5.net.ChatConnection;
+import rs.raf.pds.v4.z5.net.EncodedPacket;
+import rs.raf.pds.v4.z5.net.FanOutSerialization;
+import rs.raf.pds.v4.z5.net.OutboundQueue;
+import rs.raf.pds.v4.z5.net.PayloadCompressor;
+import rs.raf.pds.v4.z5.net.ServerShard;
+import rs.raf.pds.v4.z5.pipeline.StripedExecutor;
+import rs.raf.pds.v4.z5.rooms.ChatRoom;
+import rs.raf.pds.v4.z5.search.SearchIndex;
+import rs.raf.pds.v4.z5.store.CatchUpLog;
+import rs.raf.pds.v4.z5.store.DurableState;
+import rs.raf.pds.v4.z5.store.IdGenerator;
+import rs.raf.pds.v4.z5.store.MessageJournal;
+import rs.raf.pds.v4.z5.store.MessageStore;
+import rs.raf.pds.v4.z5.store.OfflineMailboxes;
+import rs.raf.pds.v4.z5.store.PacketCodec;
+import rs.raf.pds.v4.z5.store.Snapshottable;
+import rs.raf.pds.v4.z5.store.TieredMessageStore;
 
 // RMI
 import rs.raf.pds.v4.z5.rmi.ChatServiceImpl;
 
 public class ChatServer implements Runnable {
 
+    // -Dchat.pipeline.lanes=N -Dchat.pipeline.queue=N -Dchat.pipeline.threads=platform|virtual
+    public static int PIPELINE_LANES = Integer.getInteger("chat.pipeline.lanes", Runtime.getRuntime().availableProcessors());
+    public static int PIPELINE_QUEUE_CAPACITY = Integer.getInteger("chat.pipeline.queue", 4096);
+    public static String PIPELINE_THREADS = System.getProperty("chat.pipeline.threads", "platform");
+
+    // izlazni red po konekciji: -Dchat.outbound.capacity=N -Dchat.outbound.highWater=N
+    // -Dchat.outbound.policy=DROP_OLDEST_PUBLIC|DISCONNECT -Dchat.outbound.coalesceEdits=true|false
+    public static int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    public static int OUTBOUND_HIGH_WATER = Integer.getInteger("chat.outbound.highWater", 4096);
+    public static OutboundQueue.Policy OUTBOUND_POLICY =
+            OutboundQueue.Policy.valueOf(System.getProperty("chat.outbound.policy", "DROP_OLDEST_PUBLIC"));
+    public static boolean OUTBOUND_COALESCE_EDITS =
+            Boolean.parseBoolean(System.getProperty("chat.outbound.coalesceEdits", "true"));
+
+    // skladiste poruka: -Dchat.store.hotBytes=N (memorijski budzet) -Dchat.store.dir=putanja
+    public static long STORE_HOT_BYTES = Long.getLong("chat.store.hotBytes", 64L * 1024 * 1024);
+    public static String STORE_DIR = System.getProperty("chat.store.dir", "data");
+
+    // zurnal i snapshot: -Dchat.journal.segmentBytes=N -Dchat.journal.maxBatch=N -Dchat.snapshot.intervalSeconds=N
+    public static long JOURNAL_SEGMENT_BYTES = Long.getLong("chat.journal.segmentBytes", 64L * 1024 * 1024);
+    public static int JOURNAL_MAX_BATCH = Integer.getInteger("chat.journal.maxBatch", 1024);
+    public static long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("chat.snapshot.intervalSeconds", 60);
+
+    // sobe preko socket-a: -Dchat.rooms.pageSize=N (podrazumevana i najveca stranica istorije)
+    public static int ROOM_PAGE_SIZE = Integer.getInteger("chat.rooms.pageSize", 10);
+    public static int ROOM_MAX_PAGE_SIZE = Integer.getInteger("chat.rooms.maxPageSize", 200);
+    // stranica se skracuje i po bajtovima (-Dchat.rooms.maxPageBytes=N, ispod write bafera); ostatak je iza kursora
+    public static int ROOM_MAX_PAGE_BYTES = Integer.getInteger("chat.rooms.maxPageBytes", 8192);
+
+    // nastavak posle prekida veze: -Dchat.catchup.logSize=N poslednjih PUBLIC/DM/MCAST/EDIT dogadjaja u
+    // memoriji; jedan CatchUp okvir nosi najvise maxMessages poruka / maxBytes (ispod write bafera),
+    // ostatak klijent trazi sam; -Dchat.catchup.queue=N zahteva ceka, preko toga odgovor je busy
+    public static int CATCHUP_LOG_SIZE = Integer.getInteger("chat.catchup.logSize", 50_000);
+    public static int CATCHUP_MAX_MESSAGES = Integer.getInteger("chat.catchup.maxMessages", 200);
+    public static int CATCHUP_MAX_BYTES = Integer.getInteger("chat.catchup.maxBytes", 8192);
+    public static int CATCHUP_QUEUE = Integer.getInteger("chat.catchup.queue", 256);
+    static final int CATCHUP_MAX_SCAN = 8192;
+    // poruke sa razlicitih traka ne stizu strogo po ID-u: nastavak krece malo pre poslednjeg vidjenog
+    static final long CATCHUP_SLACK_MS = 2000;
+
+    // poste za korisnike van mreze: -Dchat.mailbox.maxMessages=N po korisniku (najstarije ispadaju),
+    // -Dchat.mailbox.batch=N poruka po Mailbox okviru, -Dchat.mailbox.hotIds=N ID-jeva u memoriji za sve
+    // poste zajedno (ostalo u spill fajlu)
+    public static int MAILBOX_MAX_MESSAGES = Integer.getInteger("chat.mailbox.maxMessages", 10_000);
+    public static int MAILBOX_BATCH = Integer.getInteger("chat.mailbox.batch", 100);
+    public static long MAILBOX_HOT_IDS = Long.getLong("chat.mailbox.hotIds", 1_000_000);
+
+    // prisutnost: prijave/odjave se ne salju svima odmah, nego kao jedna ListUsers delta (dosli/otisli) na
+    // svakih -Dchat.presence.flushMillis=N, samo konekcijama koje su poslale PresenceSubscribe
+    public static long PRESENCE_FLUSH_MILLIS = Long.getLong("chat.presence.flushMillis", 250);
+
+    // kompresija po konekciji (klijent bira kodek pri Login-u): -Dchat.compression.enabled=true|false,
+    // prag je -Dchat.compression.threshold=N (PayloadCompressor)
+    public static boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("chat.compression.enabled", "true"));
+
+    // spajanje izlaznih poruka u jedan okvir: -Dchat.batch.windowMicros=N (0 = bez cekanja, spaja se
+    // samo ono sto je vec u redu), -Dchat.batch.maxBytes=N (0 = bez spajanja); DM/odgovori ne cekaju
+    public static long BATCH_WINDOW_MICROS = Long.getLong("chat.batch.windowMicros", 1000);
+    public static int BATCH_MAX_BYTES = Integer.getInteger("chat.batch.maxBytes", 8192);
+
+    // vise KryoNet event loop-ova: -Dchat.shards=N, shard i slusa na portNumber + i;
+    // prijave na osnovni port se rasporedjuju po shard-ovima (ShardRedirect)
+    public static int SHARDS = Integer.getInteger("chat.shards", 1);
+
+    // klaster: -Dchat.cluster.nodeId=N -Dchat.cluster.nodes=1=host:port,2=host:port (port veze izmedju
+    // cvorova); prazno = jedan cvor
+    public static int CLUSTER_NODE_ID = Integer.getInteger("chat.cluster.nodeId", 0);
+    public static String CLUSTER_NODES = System.getProperty("chat.cluster.nodes", "");
+
+    // metrike (getStats preko RMI-ja): -Dchat.metrics.dumpSeconds=N ispisuje ih na konzolu, 0 = ne
+    public static long METRICS_DUMP_SECONDS = Long.getLong("chat.metrics.dumpSeconds", 60);
+
+    // pretraga istorije: indeks se puni na svojoj niti, -Dchat.search.indexQueue=N poruka ceka (preko toga
+    // poruka ostaje van indeksa i broji se kao skipped); -Dchat.search.queue=N upita ceka, preko toga busy;
+    // -Dchat.search.pageSize=N podrazumevana, -Dchat.search.maxPageSize=N najveca stranica
+    public static int SEARCH_INDEX_QUEUE = Integer.getInteger("chat.search.indexQueue", 65536);
+    public static int SEARCH_QUEUE = Integer.getInteger("chat.search.queue", 64);
+    public static int SEARCH_PAGE_SIZE = Integer.getInteger("chat.search.pageSize", 20);
+    public static int SEARCH_MAX_PAGE_SIZE = Integer.getInteger("chat.search.maxPageSize", 100);
+    // stranica se skracuje i po bajtovima (-Dchat.search.maxPageBytes=N, ispod write bafera); RMI upit ceka
+    // red pretrage najvise -Dchat.search.rmiWaitMillis=N, pa vraca busy
+    public static int SEARCH_MAX_PAGE_BYTES = Integer.getInteger("chat.search.maxPageBytes", 8192);
+    public static int SEARCH_RMI_WAIT_MILLIS = Integer.getInteger("chat.search.rmiWaitMillis", 5000);
+    static final long SEARCH_SNAPSHOT_WAIT_SECONDS = 10;
+
+    static final int WRITE_BUFFER_SIZE = 16384;
+    static final int OBJECT_BUFFER_SIZE = 2048;
+    // najveci raspakovan CompressedPacket od klijenta (proverava se pre alokacije)
+    static final int MAX_INFLATED_BYTES = WRITE_BUFFER_SIZE;
+    // najveca poruka (tekst + primaoci, UTF-8): i nekompresovana mora da stane u write bafer primaoca,
+    // sa mestom za reply isecak i zaglavlje
+    static final int MAX_PACKET_BYTES = WRITE_BUFFER_SIZE / 2;
+    // tabele imena (UserHandles) i delte ListUsers / prisutnosti idu u delovima koji staju u pola write
+    // bafera; handle u delti je Kryo varint, najvise 5 bajtova
+    static final int HANDLES_FRAME_BYTES = WRITE_BUFFER_SIZE / 2;
+    static final int LIST_USERS_PER_FRAME = HANDLES_FRAME_BYTES / 5;
+    static final int STATS_TOP_CONNECTIONS = 10;
+
+    // asinhroni log (ServerLog); kanali se podesavaju posebno, npr. -Dchat.log.chat.sample=100
+    private static final ServerLog.Channel LOG = ServerLog.channel("server");
+    private static final ServerLog.Channel CONN_LOG = ServerLog.channel("conn");
+    private static final ServerLog.Channel CHAT_LOG = ServerLog.channel("chat");
+    private static final ServerLog.Channel STATS_LOG = ServerLog.channel("stats");
+
     private volatile Thread thread = null;
 
     volatile boolean running = false;
-    final Server server;
+    final ServerShard[] shards;
+    // serijalizacija shard-a 0; enkodovani paketi vaze na svim shard-ovima (iste registracije)
+    final FanOutSerialization serialization;
     final int portNumber;
+    private final AtomicInteger nextShard = new AtomicInteger();
 
     ConcurrentMap<String, Connection> userConnectionMap = new ConcurrentHashMap<>();
     ConcurrentMap<Connection, String> connectionUserMap = new ConcurrentHashMap<>();
 
+    // ime -> handle za sesiju; paketi nose handle umesto imena
+    final UserDirectory userNames = new UserDirectory();
+    // Login stize sa vise shard niti; prijave idu jedna po jedna (redosled najava handle-ova)
+    private final Object loginLock = new Object();
+    // dodeljeni handle-ovi koji cekaju najavu (pod loginLock)
+    private final Set<String> pendingHandles = new LinkedHashSet<>();
+
     // ID + storage za reply/edit
-    private final AtomicLong idGen = new AtomicLong(1);
-    private final ConcurrentMap<Long, ChatPacket> messageById = new ConcurrentHashMap<>();
+    // vremenski ID-jevi (ms | sekvenca | cvor), jedinstveni u klasteru i posle restarta
+    private volatile IdGenerator ids = new IdGenerator(0);
+    private int nodeId = 0;
+    private final MessageStore messageStore;
+    private volatile MessageJournal journal;
+
+    // pipeline: validacija -> ID/storage -> fan-out
+    private final StripedExecutor validateStage;
+    private final StripedExecutor storeStage;
+    private final StripedExecutor fanOutStage;
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // nastavak posle prekida veze: log dogadjaja i posebna traka za CatchUp odgovore
+    private final CatchUpLog catchUpLog = new CatchUpLog(CATCHUP_LOG_SIZE);
+    private final StripedExecutor catchUpStage;
+
+    // DM/MCAST za korisnike koji nisu prijavljeni ni na jednom cvoru; praznjenje ide svojom trakom
+    // (citanje sa diska ne sme da koci KryoNet niti)
+    private final OfflineMailboxes mailboxes;
+    private final StripedExecutor mailboxStage;
+
+    // pretraga: upis u indeks ide posle storage-a na jednu traku (ne usporava isporuku), upiti na drugu
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final StripedExecutor indexStage;
+    private final StripedExecutor searchStage;
+    private final LongAdder indexSkipped = new LongAdder();
+    private final Histogram searchTime = new Histogram();
+
+    // okida istek batch prozora za sve konekcije i slanje delti prisutnosti
+    private final ScheduledExecutorService batchFlusher;
+
+    // prisutnost: stanje poslato pretplatnicima u poslednjoj delti; svaki pretplatnik ima bas to u
+    // listedUsers, pa je delta ista za sve i enkoduje se jednom
+    private final Object presenceLock = new Object();
+    private final Set<ChatConnection> presenceSubscribers = ConcurrentHashMap.newKeySet();
+    private BitSet presenceOnline = new BitSet();
+    private volatile boolean presenceDirty;
+    private final LongAdder presenceEvents = new LongAdder();
+    private long presenceFlushes;
+    private long presenceFrames;
+
+    // sobe i istorija (isti objekat koji je izlozen preko RMI-ja)
+    private volatile ChatServiceImpl roomService;
+
+    // klaster (null = jedan cvor): korisnici prijavljeni na drugim cvorovima i sobe ciji su oni vlasnici
+    private volatile ClusterBus cluster;
+    private final ConcurrentMap<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> remoteRooms = new ConcurrentHashMap<>();
 
-    public ChatServer(int portNumber) {
-        this.server = new Server();
+    public ChatServer(int portNumber) throws IOException {
+        this.messageStore = new TieredMessageStore(STORE_HOT_BYTES, new File(STORE_DIR, "messages.cold"));
+        this.mailboxes = new OfflineMailboxes(new File(STORE_DIR, "mailboxes.spill"), MAILBOX_MAX_MESSAGES, MAILBOX_HOT_IDS);
         this.portNumber = portNumber;
 
-        KryoUtil.registerKryoClasses(server.getKryo());
+        ThreadFactory threads = StripedExecutor.threadFactory(PIPELINE_THREADS);
+        PayloadCompressor compressor = new PayloadCompressor();
+        this.shards = new ServerShard[Math.max(1, SHARDS)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ServerShard(i, portNumber + i, WRITE_BUFFER_SIZE, OBJECT_BUFFER_SIZE,
+                    new FanOutSerialization(compressor), PIPELINE_QUEUE_CAPACITY, threads);
+        }
+        this.serialization = shards[0].getSerialization();
+
+        this.validateStage = new StripedExecutor("validate", PIPELINE_LANES, PIPELINE_QUEUE_CAPACITY, threads);
+        this.storeStage = new StripedExecutor("store", PIPELINE_LANES, PIPELINE_QUEUE_CAPACITY, threads);
+        this.fanOutStage = new StripedExecutor("fanout", PIPELINE_LANES, PIPELINE_QUEUE_CAPACITY, threads);
+        this.catchUpStage = new StripedExecutor("catchup", 1, CATCHUP_QUEUE, threads);
+        this.mailboxStage = new StripedExecutor("mailbox", PIPELINE_LANES, PIPELINE_QUEUE_CAPACITY, threads);
+        this.indexStage = new StripedExecutor("index", 1, SEARCH_INDEX_QUEUE, threads);
+        this.searchStage = new StripedExecutor("search", 1, SEARCH_QUEUE, threads);
+        this.batchFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "batch-flush");
+            t.setDaemon(true);
+            return t;
+        });
+
+        for (ServerShard shard : shards) KryoUtil.registerKryoClasses(shard.getServer().getKryo(), userNames);
         registerListener();
     }
 
+    // isti listener na svim shard-ovima; pozivi stizu sa niti shard-a kome konekcija pripada
     private void registerListener() {
-        server.addListener(new Listener() {
+        Listener listener = new Listener() {
+            public void connected(Connection connection) {
+                ((ChatConnection) connection).setOutbound(new OutboundQueue(connection, WRITE_BUFFER_SIZE,
+                        OUTBOUND_CAPACITY, OUTBOUND_HIGH_WATER, OUTBOUND_POLICY, OUTBOUND_COALESCE_EDITS,
+                        shardOf(connection).getSerialization(), batchFlusher, BATCH_WINDOW_MICROS * 1000, BATCH_MAX_BYTES));
+            }
+
+            // write bafer se ispraznio -> nastavi sa slanjem iz reda
+            public void idle(Connection connection) {
+                OutboundQueue outbound = ((ChatConnection) connection).getOutbound();
+                if (outbound != null) outbound.drainIfReady();
+            }
+
             public void received(Connection connection, Object object) {
+                if (object instanceof CompressedPacket) {
+                    try {
+                        received(connection, shardOf(connection).getSerialization().decompress((CompressedPacket) object,
+                                MAX_INFLATED_BYTES));
+                    } catch (Exception e) {
+                        CONN_LOG.warn("bad-compressed-packet conn=" + connection + " error=" + e.getMessage());
+                    }
+                    return;
+                }
+
                 if (object instanceof Login) {
                     Login login = (Login) object;
+                    ServerShard target = redirectTarget((ChatConnection) connection);
+                    if (target != null) {
+                        connection.sendTCP(new ShardRedirect(target.getPort()));
+                        return;
+                    }
+                    ((ChatConnection) connection).setCompression(COMPRESSION_ENABLED ? login.getCompression() : Compression.NONE);
                     newUserLogged(login, connection);
-                    connection.sendTCP(new InfoMessage("Hello " + login.getUserName()));
+                    sendTo(connection, new InfoMessage("Hello " + login.getUserName()));
+                    if (login.getResumeAfterId() > 0) {
+                        long after = IdGenerator.firstIdAt(IdGenerator.timestampOf(login.getResumeAfterId()) - CATCHUP_SLACK_MS);
+                        submitCatchUp(login.getUserName(), connection, Math.max(0, after - 1), 0);
+                    }
+                    submitMailbox(login.getUserName(), connection);
+                    return;
+                }
+
+                if (object instanceof MailboxAck) {
+                    String user = connectionUserMap.get(connection);
+                    MailboxAck ack = (MailboxAck) object;
+                    if (user != null && mailboxes.ack(user, ack.firstId, ack.count)) submitMailbox(user, connection);
+                    return;
+                }
+
+                if (object instanceof CatchUpRequest) {
+                    String user = connectionUserMap.get(connection);
+                    CatchUpRequest request = (CatchUpRequest) object;
+                    if (user != null) submitCatchUp(user, connection, request.afterId, request.untilId);
                     return;
                 }
 
                 if (object instanceof ChatPacket) {
                     ChatPacket p = (ChatPacket) object;
-                    handleChatPacket(p, connection);
+                    submitChatPacket(p, connection);
                     return;
                 }
 
                
                 if (object instanceof ChatMessage) {
                     ChatMessage chatMessage = (ChatMessage) object;
-                    System.out.println(chatMessage.getUser() + ":" + chatMessage.getTxt());
-                    broadcastChatMessage(chatMessage, connection);
+                    submitChatMessage(chatMessage, connection);
+                    return;
+                }
+
+                if (object instanceof RoomRequest) {
+                    submitRoomRequest((RoomRequest) object, connection);
+                    return;
+                }
+
+                if (object instanceof SearchRequest) {
+                    submitSearch((SearchRequest) object, connection);
                     return;
                 }
 
                 if (object instanceof WhoRequest) {
-                    ListUsers listUsers = new ListUsers(getAllUsers());
-                    connection.sendTCP(listUsers);
+                    ChatConnection conn = (ChatConnection) connection;
+                    synchronized (presenceLock) {
+                        // pretplatnik ostaje uskladjen sa deltama: odgovor je do poslednje poslate delte
+                        sendListUsers(conn, listUsersDelta(conn, conn.isPresenceSubscribed() ? presenceOnline : onlineHandles()));
+                    }
+                    return;
+                }
+
+                if (object instanceof PresenceSubscribe) {
+                    if (connectionUserMap.containsKey(connection)) {
+                        subscribePresence((ChatConnection) connection, ((PresenceSubscribe) object).enabled);
+                    }
                     return;
                 }
             }
 
             public void disconnected(Connection connection) {
+                OutboundQueue outbound = ((ChatConnection) connection).getOutbound();
+                if (outbound != null) outbound.clear();
+
                 String user = connectionUserMap.get(connection);
                 connectionUserMap.remove(connection);
-                if (user != null) userConnectionMap.remove(user);
-                showTextToAll(user + " has disconnected!", connection);
+                shardOf(connection).removeConnection((ChatConnection) connection);
+                presenceSubscribers.remove(connection);
+                if (user != null) {
+                    userLoggedOut(user, connection);
+                    detachFromRooms(user, connection);
+                    // konekcija preusmerena na drugi shard nije ni bila prijavljena
+                    CONN_LOG.info("disconnected user=" + user);
+                    presenceChanged();
+                }
             }
+        };
+        for (ServerShard shard : shards) shard.getServer().addListener(listener);
+    }
+
+    private ServerShard shardOf(Connection conn) {
+        return shards[((ChatConnection) conn).getShard()];
+    }
+
+    // prijave na osnovni port idu redom po shard-ovima; ko je vec na svom shard-u ostaje
+    private ServerShard redirectTarget(ChatConnection conn) {
+        if (shards.length == 1 || conn.getShard() != 0) return null;
+        ServerShard target = shards[(nextShard.getAndIncrement() & 0x7fffffff) % shards.length];
+        return target.getIndex() == 0 ? null : target;
+    }
+
+    // KryoNet update nit samo predaje paket pipeline-u; sve ostalo radi se na worker nitima.
+    // Kljuc trake je posiljalac, pa poruke jednog korisnika ostaju u redosledu.
+    private void submitChatPacket(ChatPacket p, Connection connection) {
+        String sender = connectionUserMap.get(connection);
+        if (sender == null || p.type == null) return;
+
+        long received = System.nanoTime();
+        metrics.received(p.type);
+        if (!validateStage.offer(sender, () -> validate(p, sender, connection, received))) {
+            metrics.dropped();
+            sendTo(connection, new InfoMessage("Server busy, message dropped."));
+        }
+    }
+
+    // zahtevi za sobu idu u fan-out traku te sobe: odgovor na JOIN/istoriju je poredjan
+    // sa zivim porukama sobe koje idu istom trakom
+    private void submitRoomRequest(RoomRequest request, Connection connection) {
+        String user = connectionUserMap.get(connection);
+        if (user == null || request.op == null) return;
+
+        // sobom upravlja njen vlasnik u klasteru
+        int owner = roomOwner(request.room);
+        if (owner != nodeId) {
+            if (!cluster.send(owner, new RoomForward(nodeId, user, null, request), OutboundQueue.Kind.PROTECTED)) {
+                sendTo(connection, new RoomResponse(request));
+            }
+            return;
+        }
+
+        Object key = request.room != null ? roomKey(request.room) : user;
+        if (!fanOutStage.offer(key, () -> handleRoomRequest(request, user, connection))) {
+            sendTo(connection, new InfoMessage("Server busy, room request dropped."));
+        }
+    }
+
+    // connection == null: korisnik je na drugom cvoru, odgovor ide preko klastera
+    private void handleRoomRequest(RoomRequest request, String user, Connection connection) {
+        ChatServiceImpl rooms = roomService;
+        RoomResponse response = new RoomResponse(request);
+        if (rooms == null) {
+            reply(user, connection, response);
+            return;
+        }
+
+        int limit = request.limit > 0 ? Math.min(request.limit, ROOM_MAX_PAGE_SIZE) : ROOM_PAGE_SIZE;
+        try {
+            switch (request.op) {
+                case LIST:
+                    Set<String> names = new TreeSet<>(rooms.listRooms());
+                    names.addAll(remoteRooms.keySet());
+                    response.rooms = names.toArray(new String[0]);
+                    response.ok = true;
+                    break;
+                case CREATE:
+                    response.ok = request.room != null && !request.room.isEmpty() && rooms.createRoom(request.room, user);
+                    if (response.ok) announceRoom(request.room);
+                    break;
+                case JOIN:
+                    response.page = rooms.joinRoomPage(request.room, user, limit);
+                    response.ok = response.page != null;
+                    break;
+                case LEAVE:
+                    response.ok = rooms.leaveRoom(request.room, user);
+                    break;
+                case OLDER:
+                    response.page = rooms.loadOlderMessages(request.room, request.cursor, limit);
+                    response.ok = rooms.getRoom(request.room) != null;
+                    break;
+                case NEWER:
+                    response.page = rooms.loadNewerMessages(request.room, request.cursor, limit);
+                    response.ok = rooms.getRoom(request.room) != null;
+                    break;
+            }
+        } catch (RemoteException e) {
+            // lokalni poziv, ne ide preko mreze
+            response.ok = false;
+        } catch (IllegalArgumentException e) {
+            // neispravan kursor
+            response.ok = false;
+        }
+        reply(user, connection, response);
+    }
+
+    // pretraga cita indeks i skladiste (mozda disk), pa ide svojom trakom sa ogranicenim redom
+    private void submitSearch(SearchRequest request, Connection connection) {
+        String user = connectionUserMap.get(connection);
+        if (user == null) return;
+
+        boolean queued = searchStage.offer(user, () -> {
+            SearchResponse response = search(user, request.scope, request.query, request.cursor, request.limit);
+            response.requestId = request.requestId;
+            sendTo(connection, response);
+        });
+        if (!queued) {
+            SearchResponse busy = new SearchResponse(request.requestId, request.scope, request.query);
+            busy.busy = true;
+            busy.error = "Server busy, try again.";
+            sendTo(connection, busy);
+        }
+    }
+
+    // RMI nema prijavu: user je samo ime koje pozivalac posalje, pa DM i posiljalac nisu dostupni (vec
+    // javni kanal i sobe, kao i ostale RMI metode sa sobama). Upit ide istim ogranicenim redom kao socket.
+    public SearchResponse searchRemote(String user, String scope, String query, int cursor, int limit) {
+        if (scope != null && (scope.startsWith("dm:") || scope.startsWith("from:"))) {
+            SearchResponse response = new SearchResponse(0, scope, query);
+            response.error = "Scope " + scope + " needs a login; over RMI use public or room:name.";
+            return response;
+        }
+
+        SearchResponse[] result = new SearchResponse[1];
+        CountDownLatch done = new CountDownLatch(1);
+        boolean queued = user != null && searchStage.offer(user, () -> {
+            result[0] = search(user, scope, query, cursor, limit);
+            done.countDown();
         });
+        try {
+            if (queued && done.await(SEARCH_RMI_WAIT_MILLIS, TimeUnit.MILLISECONDS)) return result[0];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        SearchResponse busy = new SearchResponse(0, scope, query);
+        busy.busy = user != null;
+        busy.error = user != null ? "Server busy, try again." : "User name required.";
+        return busy;
+    }
+
+    // scope "public" (ili prazan), "room:ime", "dm:korisnik", "from:korisnik"; poziva se na traci pretrage.
+    // Pretrazuje se samo indeks ovog cvora (poruke koje su prosle kroz njega).
+    public SearchResponse search(String user, String scope, String query, int cursor, int limit) {
+        long start = System.nanoTime();
+        SearchResponse response = new SearchResponse(0, scope, query);
+        try {
+            String key;
+            if (scope == null || scope.isEmpty() || scope.equals("public")) {
+                key = SearchIndex.publicScope();
+            } else if (scope.startsWith("room:")) {
+                String room = scope.substring(5);
+                ChatServiceImpl rooms = roomService;
+                ChatRoom r = rooms == null ? null : rooms.getRoom(room);
+                if (r == null || !r.hasMember(user)) {
+                    response.error = "Join room " + room + " first.";
+                    return response;
+                }
+                key = SearchIndex.roomScope(room);
+            } else if (scope.startsWith("dm:")) {
+                key = SearchIndex.dmScope(user, scope.substring(3));
+            } else if (scope.startsWith("from:")) {
+                key = SearchIndex.senderScope(scope.substring(5));
+            } else {
+                response.error = "Unknown scope " + scope + " (public, room:name, dm:user, from:user).";
+                return response;
+            }
+
+            int pageSize = limit > 0 ? Math.min(limit, SEARCH_MAX_PAGE_SIZE) : SEARCH_PAGE_SIZE;
+            SearchIndex.Result result = searchIndex.search(key, query, cursor, pageSize, SEARCH_MAX_PAGE_BYTES,
+                    id -> {
+                        ChatPacket p = messageStore.get(id);
+                        return p == null ? null : clonePacket(p);
+                    },
+                    p -> canRead(p, user));
+            if (result.error != null) {
+                response.error = result.error;
+                return response;
+            }
+            response.ok = true;
+            response.messages = result.messages.toArray(new ChatPacket[0]);
+            response.hasMore = result.cursor >= 0;
+            response.cursor = Math.max(0, result.cursor);
+            return response;
+        } finally {
+            searchTime.recordSince(start);
+        }
+    }
+
+    // pretraga: PUBLIC svi, ROOM trenutni clanovi sobe, DM/MCAST posiljalac i primaoci
+    private boolean canRead(ChatPacket p, String user) {
+        if (p.type == PacketType.ROOM) {
+            ChatServiceImpl rooms = roomService;
+            ChatRoom room = rooms == null || p.room == null ? null : rooms.getRoom(p.room);
+            return room != null && room.hasMember(user);
+        }
+        return p.type == PacketType.PUBLIC || visibleTo(p, user);
     }
 
+    // indeks se puni van putanje isporuke; pun red = poruka se ne indeksira (broji se)
+    private void indexLater(ChatPacket p, boolean edit) {
+        if (!indexStage.offer(p.id, () -> {
+            if (edit) searchIndex.update(p);
+            else searchIndex.add(p);
+        })) {
+            indexSkipped.increment();
+        }
+    }
 
-    private void handleChatPacket(ChatPacket p, Connection connection) {
+    private void submitChatMessage(ChatMessage chatMessage, Connection connection) {
         String sender = connectionUserMap.get(connection);
-        if (sender == null) return; 
+        Object key = sender != null ? sender : connection;
+        int bytes = 64 + PacketCodec.utf8Length(chatMessage.getUser()) + PacketCodec.utf8Length(chatMessage.getTxt());
+        if (bytes > MAX_PACKET_BYTES) {
+            sendTo(connection, new InfoMessage("Server: Message too long (" + bytes + " bytes, max " + MAX_PACKET_BYTES + ")."));
+            return;
+        }
 
+        boolean queued = fanOutStage.offer(key, () -> {
+            if (CHAT_LOG.enabled(ServerLog.Level.INFO)) CHAT_LOG.info("from=" + chatMessage.getUser() + " text=" + chatMessage.getTxt());
+            broadcastChatMessage(chatMessage, connection);
+        });
+        if (!queued) {
+            metrics.dropped();
+            sendTo(connection, new InfoMessage("Server busy, message dropped."));
+        }
+    }
+
+    // faza 1: validacija; received = System.nanoTime() pri prijemu (metrike)
+    private void validate(ChatPacket p, String sender, Connection connection, long received) {
+        metrics.dequeued(ServerMetrics.Stage.VALIDATE, received);
+        if ((p.type == PacketType.DM || p.type == PacketType.MCAST) && (p.to == null || p.to.length == 0)) {
+            sendTo(connection, new InfoMessage("Server: Message has no recipients."));
+            return;
+        }
+        int bytes = wireBytes(p);
+        if (bytes > MAX_PACKET_BYTES) {
+            sendTo(connection, new InfoMessage("Server: Message too long (" + bytes + " bytes, max " + MAX_PACKET_BYTES + ")."));
+            return;
+        }
         // server uvek postavlja from
         p.from = sender;
 
+        if (p.type == PacketType.ROOM) {
+            // ID i istoriju sobe dodeljuje vlasnik sobe
+            int owner = roomOwner(p.room);
+            if (owner != nodeId) {
+                forwardToRoomOwner(owner, p, connection);
+                return;
+            }
+            if (!checkRoomMember(p, sender, connection)) return;
+        }
+
+        long queued = System.nanoTime();
+        handOff(storeStage, laneKey(p), () -> sequenceAndStore(p, connection, received, queued));
+    }
+
+    // gornja granica velicine paketa na mrezi: tekst u UTF-8, imena primalaca i sobe, zaglavlje
+    static int wireBytes(ChatPacket p) {
+        int size = 64 + PacketCodec.utf8Length(p.text) + PacketCodec.utf8Length(p.room);
+        if (p.to != null) {
+            for (String to : p.to) size += 8 + PacketCodec.utf8Length(to);
+        }
+        return size;
+    }
+
+    private boolean checkRoomMember(ChatPacket p, String sender, Connection connection) {
+        ChatServiceImpl rooms = roomService;
+        ChatRoom room = rooms == null || p.room == null ? null : rooms.getRoom(p.room);
+        if (room == null) {
+            reply(sender, connection, new InfoMessage("Server: Room " + p.room + " does not exist."));
+            return false;
+        }
+        if (!room.hasMember(sender)) {
+            reply(sender, connection, new InfoMessage("Server: Join room " + p.room + " first."));
+            return false;
+        }
+        return true;
+    }
+
+    // faza 2: ID, reply, storage
+    private void sequenceAndStore(ChatPacket p, Connection connection, long received, long queued) {
+        metrics.dequeued(ServerMetrics.Stage.STORE, queued);
         if (p.type == PacketType.EDIT) {
-            handleEdit(p, connection);
+            handleEdit(p, connection, received);
             return;
         }
+        store(p);
+        routeLater(laneKey(p), p, p.type, received);
+    }
 
-        // nova poruka -> server dodeljuje ID + timestamp
-        p.id = idGen.getAndIncrement();
+    // faza 3 na traci fan-out-a; handling = od prijema do predaje izlaznim redovima
+    private void routeLater(Object key, ChatPacket p, PacketType routeAs, long received) {
+        long queued = System.nanoTime();
+        handOff(fanOutStage, key, () -> {
+            metrics.dequeued(ServerMetrics.Stage.FANOUT, queued);
+            route(p, routeAs);
+            metrics.handled(received);
+        });
+    }
+
+    // nova poruka -> server dodeljuje ID + timestamp
+    private void store(ChatPacket p) {
+        p.id = nextId();
         p.timestamp = System.currentTimeMillis();
         p.edited = false;
 
       
         if (p.replyToId > 0) {
-            ChatPacket original = messageById.get(p.replyToId);
+            ChatPacket original = messageStore.get(p.replyToId);
             if (original != null) {
                 p.replyAuthor = original.from;
                 p.replyExcerpt = excerpt(original.text, 30);
@@ -117,13 +721,28 @@ public class ChatServer implements Runnable {
             }
         }
 
-        // upis u storage
-        messageById.put(p.id, clonePacket(p));
+        // indeks pre zurnala: snapshot indeksa (posle roll-a) ceka red indeksa, pa sadrzi sve iz starijih
+        // segmenata
+        indexLater(p, false);
 
-        // routing po tipu
-        switch (p.type) {
+        // upis u storage + zurnal (fsync radi writer nit, ne cekamo ga);
+        // ROOM ide u istoriju sobe, a njen zapis u zurnalu vraca i messageStore
+        messageStore.put(clonePacket(p));
+        if (p.type == PacketType.ROOM) {
+            roomService.addRoomMessage(p.room, clonePacket(p));
+        } else {
+            MessageJournal j = journal;
+            if (j != null) j.appendMessage(p);
+            catchUpLog.append(p);
+        }
+    }
+
+    // faza 3: routing po tipu
+    private void route(ChatPacket p, PacketType routeAs) {
+        switch (routeAs) {
             case PUBLIC:
                 broadcastPacket(p, null);
+                forwardAll(p);
                 break;
             case DM:
                 sendDm(p, null);
@@ -131,81 +750,360 @@ public class ChatServer implements Runnable {
             case MCAST:
                 sendMcast(p, null);
                 break;
+            case ROOM:
+                sendRoom(p);
+                break;
             default:
                 break;
         }
     }
 
-    private void handleEdit(ChatPacket editReq, Connection connection) {
-        String sender = connectionUserMap.get(connection);
-        if (sender == null) return;
+    // ROOM poruke jedne sobe prolaze kroz istu traku: ID-jevi u istoriji sobe su rastuci,
+    // a clanovi ih dobijaju istim redom
+    private Object laneKey(ChatPacket p) {
+        return p.type == PacketType.ROOM ? roomKey(p.room) : p.from;
+    }
+
+    private static String roomKey(String room) {
+        return "#" + room;
+    }
+
+    private void handOff(StripedExecutor stage, Object key, Runnable task) {
+        try {
+            stage.put(key, task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleEdit(ChatPacket editReq, Connection connection, long received) {
+        String sender = editReq.from;
 
         long targetId = editReq.editTargetId;
-        ChatPacket stored = messageById.get(targetId);
+        ChatPacket stored = messageStore.get(targetId);
 
         if (stored == null) {
-            connection.sendTCP(new InfoMessage("Server: Message ID " + targetId + " not found."));
+            sendTo(connection, new InfoMessage("Server: Message ID " + targetId + " not found."));
             return;
         }
         if (!sender.equals(stored.from)) {
-            connection.sendTCP(new InfoMessage("Server: You can edit only your own messages."));
+            sendTo(connection, new InfoMessage("Server: You can edit only your own messages."));
             return;
         }
 
-        stored.text = editReq.text;
-        stored.edited = true;
+        // sacuvana poruka se ne menja na mestu (druge trake je citaju bez lock-a): nova verzija je kopija
+        stored = editedCopy(stored, editReq.text);
+        indexLater(clonePacket(stored), true);
+        messageStore.put(stored);
+        MessageJournal j = journal;
+        if (j != null) j.appendEdit(targetId, editReq.text);
 
-        // edit event
+        // edit event; svoj ID (redosled za nastavak posle prekida), klijent prikazuje editTargetId
         ChatPacket event = clonePacket(stored);
         event.type = PacketType.EDIT;
         event.editTargetId = targetId;
+        event.id = nextId();
+        if (event.room == null) catchUpLog.append(event);
 
         // prosledi po originalnom tipu poruke
-        if (stored.type == PacketType.PUBLIC) {
-            broadcastPacket(event, null);
-        } else if (stored.type == PacketType.DM) {
-            sendDm(event, null);
-        } else if (stored.type == PacketType.MCAST) {
-            sendMcast(event, null);
-        }
+        PacketType routeAs = stored.type;
+        routeLater(routeAs == PacketType.ROOM ? roomKey(stored.room) : sender, event, routeAs, received);
     }
 
+    // fan-out: paket se serijalizuje jednom, svim konekcijama ide isti bafer
     private void broadcastPacket(ChatPacket p, Connection exception) {
-        for (Connection conn : userConnectionMap.values()) {
-            if (conn.isConnected() && conn != exception) {
-                conn.sendTCP(p);
-            }
-        }
+        metrics.fanOut(userConnectionMap.size());
+        sendToAll(serialization.encode(p), kindOf(p), p.editTargetId, exception);
     }
 
     private void sendDm(ChatPacket p, Connection exception) {
         if (p.to == null || p.to.length < 1) return;
         String toUser = p.to[0];
 
+        EncodedPacket frame = serialization.encode(p);
+        OutboundQueue.Kind kind = kindOf(p);
+
+        int recipients = 0;
         Connection toConn = userConnectionMap.get(toUser);
         if (toConn != null && toConn.isConnected() && toConn != exception) {
-            toConn.sendTCP(p);
+            deliver(toConn, frame, kind, p.editTargetId);
+            recipients++;
+        } else if (toConn == null) {
+            forward(p, Arrays.asList(p.to[0]));
+            queueForOffline(p, p.to);
         }
 
         Connection senderConn = userConnectionMap.get(p.from);
-        if (senderConn != null && senderConn.isConnected() && senderConn != exception) {
-            senderConn.sendTCP(p);
+        if (senderConn != null && senderConn != toConn && senderConn.isConnected() && senderConn != exception) {
+            deliver(senderConn, frame, kind, p.editTargetId);
+            recipients++;
         }
+        metrics.fanOut(recipients);
     }
 
     private void sendMcast(ChatPacket p, Connection exception) {
         if (p.to == null || p.to.length == 0) return;
 
+        EncodedPacket frame = serialization.encode(p);
+        OutboundQueue.Kind kind = kindOf(p);
+
+        int recipients = 0;
+        Connection senderConn = userConnectionMap.get(p.from);
         for (String u : p.to) {
             Connection c = userConnectionMap.get(u);
-            if (c != null && c.isConnected() && c != exception) {
-                c.sendTCP(p);
+            if (c != null && c != senderConn && c.isConnected() && c != exception) {
+                deliver(c, frame, kind, p.editTargetId);
+                recipients++;
             }
         }
+        forward(p, Arrays.asList(p.to));
+        queueForOffline(p, p.to);
 
-        Connection senderConn = userConnectionMap.get(p.from);
         if (senderConn != null && senderConn.isConnected() && senderConn != exception) {
-            senderConn.sendTCP(p);
+            deliver(senderConn, frame, kind, p.editTargetId);
+            recipients++;
+        }
+        metrics.fanOut(recipients);
+    }
+
+    // samo clanovima sobe koji su trenutno povezani: prolaz kroz snapshot konekcija sobe
+    private void sendRoom(ChatPacket p) {
+        // EDIT poruke iz sobe drugog cvora: clanove zna samo vlasnik
+        int owner = roomOwner(p.room);
+        if (owner != nodeId) {
+            forwardToRoomOwner(owner, p, null);
+            return;
+        }
+
+        ChatServiceImpl rooms = roomService;
+        ChatRoom room = rooms == null ? null : rooms.getRoom(p.room);
+        if (room == null) return;
+        forward(p, room.getMembers());
+
+        EncodedPacket frame = serialization.encode(p);
+        OutboundQueue.Kind kind = kindOf(p);
+        Connection[] members = room.getConnections();
+        metrics.fanOut(members.length);
+        if (shards.length == 1) {
+            for (int i = 0; i < members.length; i++) {
+                Connection c = members[i];
+                if (c.isConnected()) deliverNow(c, frame, kind, p.editTargetId);
+            }
+            return;
+        }
+
+        // jedan zadatak po shard-u, svaki isporucuje samo svojim clanovima
+        for (ServerShard shard : shards) {
+            int index = shard.getIndex();
+            shard.execute(() -> {
+                for (int i = 0; i < members.length; i++) {
+                    ChatConnection c = (ChatConnection) members[i];
+                    if (c.getShard() == index && c.isConnected()) deliverNow(c, frame, kind, p.editTargetId);
+                }
+            });
+        }
+    }
+
+    // login/logout menjaju snapshot konekcija u svim sobama korisnika
+    private void attachToRooms(String user, Connection conn) {
+        ChatServiceImpl rooms = roomService;
+        if (rooms == null) return;
+        for (ChatRoom room : rooms.roomsOf(user)) room.addConnection(conn);
+    }
+
+    private void detachFromRooms(String user, Connection conn) {
+        ChatServiceImpl rooms = roomService;
+        if (rooms == null) return;
+        for (ChatRoom room : rooms.roomsOf(user)) room.removeConnection(conn);
+    }
+
+    private void sendToAll(EncodedPacket frame, OutboundQueue.Kind kind, long editTargetId, Connection exception) {
+        if (shards.length == 1) {
+            for (Connection conn : userConnectionMap.values()) {
+                if (conn.isConnected() && conn != exception) {
+                    deliverNow(conn, frame, kind, editTargetId);
+                }
+            }
+            return;
+        }
+
+        // svaki shard prolazi kroz svoje prijavljene konekcije, paralelno sa ostalima
+        for (ServerShard shard : shards) {
+            shard.execute(() -> {
+                for (ChatConnection conn : shard.getConnections()) {
+                    if (conn.isConnected() && conn != exception) deliverNow(conn, frame, kind, editTargetId);
+                }
+            });
+        }
+    }
+
+    // sa vise shard-ova isporuka ide kroz red shard-a konekcije: sve sto jedna konekcija dobija
+    // prolazi kroz isti red, pa redosled ostaje isti kao sa jednim shard-om
+    private void deliver(Connection conn, EncodedPacket frame, OutboundQueue.Kind kind, long editTargetId) {
+        if (shards.length == 1) deliverNow(conn, frame, kind, editTargetId);
+        else shardOf(conn).execute(() -> deliverNow(conn, frame, kind, editTargetId));
+    }
+
+    // sve ide kroz izlazni red konekcije - spor klijent ne blokira fan-out ostalima
+    private void deliverNow(Connection conn, EncodedPacket frame, OutboundQueue.Kind kind, long editTargetId) {
+        ChatConnection chatConn = (ChatConnection) conn;
+        frame = serialization.compressed(frame, chatConn.getCompression());
+        OutboundQueue outbound = chatConn.getOutbound();
+        if (outbound != null) outbound.send(frame, kind, editTargetId);
+        else conn.sendTCP(frame);
+    }
+
+    // odgovori jednom klijentu (info, lista korisnika) su zasticeni kao DM
+    private void sendTo(Connection conn, Object message) {
+        deliver(conn, serialization.encode(message), OutboundQueue.Kind.PROTECTED, -1);
+    }
+
+    // Nastavak posle prekida: propusteno iz catchUpLog-a (memorija, bez diska/RMI-ja), jedan okvir po
+    // zahtevu, na jednoj traci sa ogranicenim redom. Kad se svi klijenti vrate odjednom, KryoNet niti i
+    // pipeline ne cekaju; visak zahteva dobija busy i klijent ga ponavlja kasnije.
+    private void submitCatchUp(String user, Connection connection, long afterId, long untilId) {
+        if (catchUpStage.offer(user, () -> sendCatchUp(user, connection, afterId, untilId))) return;
+        CatchUp busy = new CatchUp();
+        busy.messages = new ChatPacket[0];
+        busy.cursor = afterId;
+        busy.untilId = untilId;
+        busy.hasMore = true;
+        busy.busy = true;
+        sendTo(connection, busy);
+    }
+
+    // untilId 0 = sve do sada; sve posle toga konekcija dobija uzivo (prijavljena je pre zahteva).
+    // Odgovor ide i kad je prazan: klijent ceka na njega (i ponavlja zahtev ako ne stigne).
+    private void sendCatchUp(String user, Connection connection, long afterId, long untilId) {
+        if (!connection.isConnected()) return;
+        long until = untilId > 0 ? untilId : catchUpLog.lastId();
+        CatchUpLog.Page page = catchUpLog.since(afterId, until, p -> visibleTo(p, user),
+                CATCHUP_MAX_MESSAGES, CATCHUP_MAX_BYTES, CATCHUP_MAX_SCAN);
+        CatchUp response = new CatchUp();
+        response.messages = page.messages.toArray(new ChatPacket[0]);
+        response.cursor = page.cursor;
+        response.untilId = until;
+        response.hasMore = page.hasMore;
+        response.gap = page.gap;
+        sendTo(connection, response);
+    }
+
+    // Primaoci koji nisu prijavljeni ni ovde ni na drugom cvoru: ID ide u njihovu postu (telo je vec u
+    // messageStore-u). EDIT se ne stavlja u postu - menja telo u skladistu, pa posta isporucuje novu verziju.
+    private void queueForOffline(ChatPacket p, String[] users) {
+        if (p.type == PacketType.EDIT) return;
+        String[] offline = null;
+        int n = 0;
+        for (String user : users) {
+            if (user.equals(p.from) || userConnectionMap.containsKey(user) || remoteUsers.containsKey(user)) continue;
+            if (offline == null) offline = new String[users.length];
+            offline[n++] = user;
+        }
+        if (n == 0) return;
+        if (n < offline.length) offline = Arrays.copyOf(offline, n);
+        mailboxes.add(p.id, offline);
+
+        // prijava izmedju provere i add-a je vec videla praznu postu - posta se gura sada
+        for (String user : offline) {
+            Connection conn = userConnectionMap.get(user);
+            Integer node = remoteUsers.get(user);
+            if (conn != null) submitMailbox(user, conn);
+            else if (node != null) mailboxStage.offer(user, () -> transferMailbox(user, node));
+        }
+    }
+
+    // jedna grupa u letu po korisniku: sledeca ide tek na MailboxAck
+    private void submitMailbox(String user, Connection connection) {
+        if (mailboxes.size(user) > 0) mailboxStage.offer(user, () -> sendMailbox(user, connection));
+    }
+
+    private void sendMailbox(String user, Connection connection) {
+        if (!connection.isConnected() || userConnectionMap.get(user) != connection) return;
+        long[] queued = mailboxes.peek(user, MAILBOX_BATCH);
+        // ista grupa je vec poslata ovoj konekciji (prijava i queueForOffline mogu obe da je zatraze)
+        ChatConnection chatConn = (ChatConnection) connection;
+        if (queued.length == 0 || chatConn.getMailboxInFlight() == queued[0]) return;
+        chatConn.setMailboxInFlight(queued[0]);
+
+        // OutboundQueue odbacuje okvir koji ne staje u write bafer, a sledeca grupa ceka MailboxAck - posta
+        // bi zauvek stala. Grupa se zato smanjuje dok okvir ne stane; poruka koja sama ne staje se
+        // preskace (count je i dalje pokriva) uz obavestenje korisniku.
+        int maxBytes = CATCHUP_MAX_BYTES;
+        while (true) {
+            Mailbox mailbox = mailboxBatch(user, queued, maxBytes);
+            EncodedPacket frame = serialization.encode(mailbox);
+            if (frame.length() <= WRITE_BUFFER_SIZE - 4) {
+                deliver(connection, frame, OutboundQueue.Kind.PROTECTED, -1);
+                return;
+            }
+            if (mailbox.messages.length <= 1) {
+                LOG.warn("mailbox-oversized user=" + user + " id=" + mailbox.firstId + " bytes=" + frame.length());
+                mailbox.messages = new ChatPacket[0];
+                sendTo(connection, new InfoMessage("Server: An offline message was too large to deliver."));
+                sendTo(connection, mailbox);
+                return;
+            }
+            maxBytes /= 2;
+        }
+    }
+
+    private Mailbox mailboxBatch(String user, long[] queued, int maxBytes) {
+        List<ChatPacket> messages = new ArrayList<>(queued.length);
+        int count = 0;
+        int bytes = 0;
+        for (long id : queued) {
+            ChatPacket p = messageStore.get(id);
+            if (p != null) {
+                int size = PacketCodec.estimateWireBytes(p);
+                if (bytes + size > maxBytes && count > 0) break;
+                bytes += size;
+                messages.add(p);
+            }
+            count++;
+        }
+
+        Mailbox mailbox = new Mailbox();
+        mailbox.messages = messages.toArray(new ChatPacket[0]);
+        mailbox.firstId = queued[0];
+        mailbox.count = count;
+        mailbox.remaining = mailboxes.size(user) - count;
+        return mailbox;
+    }
+
+    // korisnik se prijavio na drugi cvor: posta sa ovog cvora ide tamo kao obicne poruke
+    private void transferMailbox(String user, int node) {
+        ClusterBus c = cluster;
+        long[] queued;
+        while (c != null && remoteUsers.getOrDefault(user, -1) == node
+                && (queued = mailboxes.peek(user, MAILBOX_BATCH)).length > 0) {
+            for (long id : queued) {
+                ChatPacket p = messageStore.get(id);
+                if (p != null && !c.send(node, new RemotePacket(p, new String[] { user }), OutboundQueue.Kind.PROTECTED)) return;
+            }
+            mailboxes.ack(user, queued[0], queued.length);
+        }
+    }
+
+    // PUBLIC (i njegov EDIT) svima, DM/MCAST posiljaocu i primaocima
+    private static boolean visibleTo(ChatPacket p, String user) {
+        if (p.to == null || user.equals(p.from)) return true;
+        for (String to : p.to) {
+            if (user.equals(to)) return true;
+        }
+        return false;
+    }
+
+    // EDIT se spaja po editTargetId, PUBLIC i ROOM mogu da se izbace (ROOM ostaje u istoriji sobe),
+    // DM/MCAST su zasticeni
+    private OutboundQueue.Kind kindOf(ChatPacket p) {
+        switch (p.type) {
+            case PUBLIC:
+            case ROOM:
+                return OutboundQueue.Kind.PUBLIC;
+            case EDIT:
+                return OutboundQueue.Kind.EDIT;
+            default:
+                return OutboundQueue.Kind.PROTECTED;
         }
     }
 
@@ -215,12 +1113,21 @@ public class ChatServer implements Runnable {
         return s.length() <= max ? s : s.substring(0, max) + "...";
     }
 
+    // poruka iz messageStore-a je objavljena (citaju je druge trake), pa EDIT pravi novu verziju
+    private ChatPacket editedCopy(ChatPacket stored, String text) {
+        ChatPacket c = clonePacket(stored);
+        c.text = text;
+        c.edited = true;
+        return c;
+    }
+
     private ChatPacket clonePacket(ChatPacket p) {
         ChatPacket c = new ChatPacket();
         c.type = p.type;
         c.from = p.from;
         c.text = p.text;
         c.to = (p.to == null) ? null : Arrays.copyOf(p.to, p.to.length);
+        c.room = p.room;
         c.id = p.id;
         c.timestamp = p.timestamp;
         c.replyToId = p.replyToId;
@@ -233,6 +1140,37 @@ public class ChatServer implements Runnable {
 
   
 
+    private void sendListUsers(Connection conn, ListUsers delta) {
+        for (ListUsers part : delta.split(LIST_USERS_PER_FRAME)) sendTo(conn, part);
+    }
+
+    // handle-ovi svih prijavljenih korisnika (ovaj i ostali cvorovi)
+    private BitSet onlineHandles() {
+        BitSet online = new BitSet();
+        for (String user : userConnectionMap.keySet()) {
+            int h = userNames.handleOf(user);
+            if (h >= 0) online.set(h);
+        }
+        for (String user : remoteUsers.keySet()) {
+            int h = userNames.handleOf(user);
+            if (h >= 0) online.set(h);
+        }
+        return online;
+    }
+
+    // WHO: samo promene od prethodnog odgovora ovoj konekciji (pod presenceLock)
+    private ListUsers listUsersDelta(ChatConnection conn, BitSet online) {
+        BitSet listed = conn.getListedUsers();
+        BitSet added = (BitSet) online.clone();
+        added.andNot(listed);
+        BitSet removed = (BitSet) listed.clone();
+        removed.andNot(online);
+
+        listed.clear();
+        listed.or(online);
+        return new ListUsers(added.stream().toArray(), removed.stream().toArray());
+    }
+
     String[] getAllUsers() {
         String[] users = new String[userConnectionMap.size()];
         int i = 0;
@@ -243,30 +1181,132 @@ public class ChatServer implements Runnable {
         return users;
     }
 
+    // Login ide na KryoNet nitima shard-ova, jedan po jedan (loginLock). Nova konekcija prvo dobija
+    // celu tabelu imena, ostale novi handle sa sledecom deltom prisutnosti; tek posle toga serializer
+    // sme da ga koristi (publish), do tada ime ide kao string.
     void newUserLogged(Login loginMessage, Connection conn) {
-        userConnectionMap.put(loginMessage.getUserName(), conn);
-        connectionUserMap.put(conn, loginMessage.getUserName());
-        showTextToAll("User " + loginMessage.getUserName() + " has connected!", conn);
+        synchronized (loginLock) {
+            String user = loginMessage.getUserName();
+            userNames.assign(user);
+            for (UserHandles part : userNames.snapshot().split(HANDLES_FRAME_BYTES)) sendTo(conn, part);
+            announceHandle(user);
+
+            userConnectionMap.put(loginMessage.getUserName(), conn);
+            connectionUserMap.put(conn, loginMessage.getUserName());
+            shardOf(conn).addConnection((ChatConnection) conn);
+
+            ClusterBus c = cluster;
+            if (c != null) c.broadcast(userState(new String[] { user }, null), OutboundQueue.Kind.PROTECTED);
+        }
+        attachToRooms(loginMessage.getUserName(), conn);
+        CONN_LOG.info("connected user=" + loginMessage.getUserName());
+        presenceChanged();
+    }
+
+    // samo pod loginLock: handle koji jos nije objavljen ceka najavu u flushPresence
+    private void announceHandle(String user) {
+        if (userNames.handleOf(user) >= 0) return;
+        userNames.assign(user);
+        pendingHandles.add(user);
+    }
+
+    // pod loginLock: svi novi handle-ovi iz prozora u jednoj najavi svim konekcijama, pa publish
+    private void publishPendingHandles() {
+        if (pendingHandles.isEmpty()) return;
+        int[] handles = new int[pendingHandles.size()];
+        String[] names = pendingHandles.toArray(new String[0]);
+        for (int i = 0; i < names.length; i++) handles[i] = userNames.assign(names[i]);
+        for (UserHandles part : new UserHandles(handles, names).split(HANDLES_FRAME_BYTES)) {
+            sendToAll(serialization.encode(part), OutboundQueue.Kind.PROTECTED, -1, null);
+        }
+        for (String name : names) userNames.publish(name);
+        pendingHandles.clear();
+    }
+
+    // odjava se javlja ostalim cvorovima samo ako je ovo i dalje aktivna konekcija korisnika
+    private void userLoggedOut(String user, Connection connection) {
+        synchronized (loginLock) {
+            if (!userConnectionMap.remove(user, connection)) return;
+            ClusterBus c = cluster;
+            if (c != null) c.broadcast(userState(null, new String[] { user }), OutboundQueue.Kind.PROTECTED);
+        }
+    }
+
+    private NodeState userState(String[] added, String[] removed) {
+        NodeState state = new NodeState(nodeId, false);
+        state.usersAdded = added;
+        state.usersRemoved = removed;
+        return state;
     }
 
     private void broadcastChatMessage(ChatMessage message, Connection exception) {
-        for (Connection conn : userConnectionMap.values()) {
-            if (conn.isConnected() && conn != exception)
-                conn.sendTCP(message);
+        sendToAll(serialization.encode(message), OutboundQueue.Kind.PUBLIC, -1, exception);
+    }
+
+    // Prisutnost: ranije je svaka prijava/odjava isla kao InfoMessage (i najava handle-a) svim
+    // konekcijama - 5000 klijenata koji se vrate posle deploy-a je ~25M slanja. Sada dogadjaj samo
+    // oznaci promenu; batchFlusher na svakih PRESENCE_FLUSH_MILLIS salje jednu najavu novih handle-ova
+    // svima i jednu deltu online skupa (prijava + odjava u istom prozoru se ponistava), enkodovanu
+    // jednom, samo pretplatnicima. PRESENCE_FLUSH_MILLIS <= 0: odmah, po dogadjaju.
+    private void presenceChanged() {
+        presenceEvents.increment();
+        presenceDirty = true;
+        if (PRESENCE_FLUSH_MILLIS <= 0) flushPresence();
+    }
+
+    private void subscribePresence(ChatConnection conn, boolean enabled) {
+        synchronized (presenceLock) {
+            conn.setPresenceSubscribed(enabled);
+            if (!enabled) {
+                presenceSubscribers.remove(conn);
+                return;
+            }
+            // prvi odgovor dovodi konekciju do stanja poslednje delte; sledece delte vaze i za nju
+            presenceSubscribers.add(conn);
+            sendListUsers(conn, listUsersDelta(conn, presenceOnline));
         }
     }
 
-    private void showTextToAll(String txt, Connection exception) {
-        System.out.println(txt);
-        for (Connection conn : userConnectionMap.values()) {
-            if (conn.isConnected() && conn != exception)
-                conn.sendTCP(new InfoMessage(txt));
+    private void flushPresence() {
+        if (!presenceDirty) return;
+        presenceDirty = false;
+        synchronized (loginLock) {
+            publishPendingHandles();
+        }
+        synchronized (presenceLock) {
+            BitSet online = onlineHandles();
+            BitSet added = (BitSet) online.clone();
+            added.andNot(presenceOnline);
+            BitSet removed = (BitSet) presenceOnline.clone();
+            removed.andNot(online);
+            presenceOnline = online;
+            presenceFlushes++;
+            if (added.isEmpty() && removed.isEmpty()) return;
+
+            List<ListUsers> parts = new ListUsers(added.stream().toArray(), removed.stream().toArray()).split(LIST_USERS_PER_FRAME);
+            EncodedPacket[] frames = new EncodedPacket[parts.size()];
+            for (int i = 0; i < frames.length; i++) frames[i] = serialization.encode(parts.get(i));
+            for (ChatConnection conn : presenceSubscribers) {
+                if (!conn.isConnected()) continue;
+                BitSet listed = conn.getListedUsers();
+                listed.clear();
+                listed.or(online);
+                for (EncodedPacket frame : frames) deliver(conn, frame, OutboundQueue.Kind.PROTECTED, -1);
+                presenceFrames += frames.length;
+            }
         }
     }
 
     public void start() throws IOException {
-        server.start();
-        server.bind(portNumber);
+        for (ServerShard shard : shards) shard.start();
+        if (PRESENCE_FLUSH_MILLIS > 0) {
+            batchFlusher.scheduleWithFixedDelay(this::flushPresence, PRESENCE_FLUSH_MILLIS, PRESENCE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        ClusterBus c = cluster;
+        if (c != null) c.start();
+        if (shards.length > 1) {
+            LOG.info("shards=" + shards.length + " ports=" + portNumber + "-" + (portNumber + shards.length - 1));
+        }
 
         if (thread == null) {
             thread = new Thread(this);
@@ -280,16 +1320,466 @@ public class ChatServer implements Runnable {
         running = false;
         if (stopThread != null)
             stopThread.interrupt();
+
+        // prvo konekcije: njihovo zatvaranje jos salje poruke (disconnected) kroz batchFlusher
+        for (ServerShard shard : shards) shard.stop();
+        ClusterBus c = cluster;
+        if (c != null) c.stop();
+        validateStage.shutdown();
+        storeStage.shutdown();
+        fanOutStage.shutdown();
+        catchUpStage.shutdown();
+        mailboxStage.shutdown();
+        indexStage.shutdown();
+        searchStage.shutdown();
+        batchFlusher.shutdown();
+
+        try {
+            messageStore.close();
+            mailboxes.close();
+        } catch (IOException e) {
+            LOG.error("close-failed", e);
+        }
+        ServerLog.flush();
+    }
+
+    // join/leave (socket ili RMI) menjaju snapshot konekcija sobe
+    public void setRoomService(ChatServiceImpl roomService) {
+        this.roomService = roomService;
+        roomService.setStatsSource(this::getStatsReport);
+        roomService.setPageMaxBytes(ROOM_MAX_PAGE_BYTES);
+        roomService.setPageMaxSize(ROOM_MAX_PAGE_SIZE);
+        roomService.setMessageSource(messageStore::get);
+        roomService.setSearchHandler(this::searchRemote);
+        roomService.setMembershipListener(new ChatServiceImpl.MembershipListener() {
+            public void joined(ChatRoom room, String user) {
+                Connection conn = userConnectionMap.get(user);
+                if (conn != null && conn.isConnected()) room.addConnection(conn);
+            }
+
+            public void left(ChatRoom room, String user) {
+                Connection conn = userConnectionMap.get(user);
+                if (conn != null) room.removeConnection(conn);
+            }
+        });
+    }
+
+    // Klaster: korisnik pripada cvoru na koji je povezan, soba cvoru ownerOf(soba). Posiljaocev cvor
+    // dodeljuje ID i salje poruku cvorovima primalaca (RemotePacket); ROOM poruke i zahteve za sobu
+    // obradjuje vlasnik sobe (RoomForward). Poziva se pre enableDurability (cvor u ID-jevima) i start().
+    public void enableCluster(ClusterBus bus) {
+        this.ids = new IdGenerator(bus.getNodeId());
+        this.nodeId = bus.getNodeId();
+        bus.setHandler(new ClusterBus.Handler() {
+            public void peerUp(int node) {
+                sendNodeState(node);
+            }
+
+            public void peerDown(int node) {
+                synchronized (loginLock) {
+                    remoteUsers.values().removeIf(n -> n == node);
+                    remoteRooms.values().removeIf(n -> n == node);
+                }
+            }
+
+            public void received(int node, Object message) {
+                if (message instanceof RemotePacket) onRemotePacket((RemotePacket) message);
+                else if (message instanceof RoomForward) onRoomForward((RoomForward) message);
+                else if (message instanceof RemoteReply) onRemoteReply((RemoteReply) message);
+                else if (message instanceof NodeState) onNodeState(node, (NodeState) message);
+            }
+        });
+        this.cluster = bus;
+    }
+
+    private int roomOwner(String room) {
+        ClusterBus c = cluster;
+        return c == null || room == null ? nodeId : c.ownerOf(room);
+    }
+
+    // nova veza: cela slika ovog cvora (pod loginLock, pa se ne mimoilazi sa prijavama/odjavama)
+    private void sendNodeState(int node) {
+        synchronized (loginLock) {
+            NodeState state = new NodeState(nodeId, true);
+            state.usersAdded = userConnectionMap.keySet().toArray(new String[0]);
+            state.roomsAdded = ownedRooms();
+            cluster.send(node, state, OutboundQueue.Kind.PROTECTED);
+        }
+    }
+
+    private String[] ownedRooms() {
+        ChatServiceImpl rooms = roomService;
+        if (rooms == null) return new String[0];
+        try {
+            return rooms.listRooms().stream().filter(r -> roomOwner(r) == nodeId).toArray(String[]::new);
+        } catch (RemoteException e) {
+            return new String[0];
+        }
+    }
+
+    private void announceRoom(String room) {
+        ClusterBus c = cluster;
+        if (c == null) return;
+        NodeState state = new NodeState(nodeId, false);
+        state.roomsAdded = new String[] { room };
+        c.broadcast(state, OutboundQueue.Kind.PROTECTED);
+    }
+
+    // primaoci sa drugih cvorova: jedna RemotePacket poruka po cvoru
+    private void forward(ChatPacket p, Iterable<String> users) {
+        ClusterBus c = cluster;
+        if (c == null) return;
+
+        Map<Integer, List<String>> byNode = null;
+        for (String user : users) {
+            if (userConnectionMap.containsKey(user)) continue;
+            Integer node = remoteUsers.get(user);
+            if (node == null) continue;
+            if (byNode == null) byNode = new HashMap<>();
+            byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(user);
+        }
+        if (byNode == null) return;
+        for (Map.Entry<Integer, List<String>> e : byNode.entrySet()) {
+            c.send(e.getKey(), new RemotePacket(p, e.getValue().toArray(new String[0])), kindOf(p));
+        }
+    }
+
+    private void forwardAll(ChatPacket p) {
+        ClusterBus c = cluster;
+        if (c != null) c.broadcast(new RemotePacket(p, null), kindOf(p));
+    }
+
+    private void forwardToRoomOwner(int owner, ChatPacket p, Connection connection) {
+        if (!cluster.send(owner, new RoomForward(nodeId, p.from, p, null), kindOf(p))) {
+            reply(p.from, connection, new InfoMessage("Server: Room " + p.room + " is not reachable."));
+        }
+    }
+
+    // lokalna konekcija ili korisnik na drugom cvoru (RemoteReply)
+    private void reply(String user, Connection connection, Object message) {
+        if (connection == null) connection = userConnectionMap.get(user);
+        if (connection != null) {
+            sendTo(connection, message);
+            return;
+        }
+        ClusterBus c = cluster;
+        Integer node = remoteUsers.get(user);
+        if (c != null && node != null) c.send(node, new RemoteReply(user, message), OutboundQueue.Kind.PROTECTED);
+    }
+
+    // poruka sa drugog cvora: kopija ide u storage (reply/edit rade i ovde), isporuka samo lokalno;
+    // ista traka kao lokalne poruke istog posiljaoca/sobe
+    private void onRemotePacket(RemotePacket r) {
+        ChatPacket p = r.packet;
+        handOff(fanOutStage, laneKey(p), () -> {
+            if (p.type == PacketType.EDIT) updateStoredCopy(p);
+            else storeCopy(p);
+
+            if (r.to == null) {
+                broadcastPacket(p, null);
+                return;
+            }
+            EncodedPacket frame = serialization.encode(p);
+            for (String user : r.to) {
+                Connection conn = userConnectionMap.get(user);
+                if (conn != null && conn.isConnected()) deliver(conn, frame, kindOf(p), p.editTargetId);
+            }
+            // korisnik se odjavio dok je poruka bila na putu
+            if (p.type == PacketType.DM || p.type == PacketType.MCAST) queueForOffline(p, r.to);
+        });
+    }
+
+    private void storeCopy(ChatPacket p) {
+        // logicki sat prati tudje ID-jeve: odgovor na ovu poruku dobija veci ID i kad nam sat kasni
+        ids.observe(p.id);
+        indexLater(p, false);
+        messageStore.put(clonePacket(p));
+        MessageJournal j = journal;
+        if (j != null) j.appendMessage(p);
+        if (p.type != PacketType.ROOM) catchUpLog.append(p);
+    }
+
+    private void updateStoredCopy(ChatPacket event) {
+        ids.observe(event.id);
+        if (event.room == null) catchUpLog.append(event);
+        ChatPacket stored = messageStore.get(event.editTargetId);
+        if (stored == null) return;
+        stored = editedCopy(stored, event.text);
+        indexLater(clonePacket(stored), true);
+        messageStore.put(stored);
+        MessageJournal j = journal;
+        if (j != null) j.appendEdit(event.editTargetId, event.text);
+    }
+
+    // ovaj cvor je vlasnik sobe
+    private void onRoomForward(RoomForward f) {
+        if (f.request != null) {
+            RoomRequest request = f.request;
+            Object key = request.room != null ? roomKey(request.room) : f.user;
+            if (!fanOutStage.offer(key, () -> handleRoomRequest(request, f.user, null))) {
+                reply(f.user, null, new RoomResponse(request));
+            }
+            return;
+        }
+
+        ChatPacket p = f.packet;
+        if (p == null || p.room == null) return;
+        if (p.type == PacketType.EDIT) {
+            handOff(fanOutStage, roomKey(p.room), () -> {
+                updateStoredCopy(p);
+                sendRoom(p);
+            });
+            return;
+        }
+        p.from = f.user;
+        long received = System.nanoTime();
+        metrics.received(p.type);
+        handOff(validateStage, f.user, () -> {
+            metrics.dequeued(ServerMetrics.Stage.VALIDATE, received);
+            if (!checkRoomMember(p, f.user, null)) return;
+            long queued = System.nanoTime();
+            handOff(storeStage, laneKey(p), () -> sequenceAndStore(p, null, received, queued));
+        });
+    }
+
+    // odgovor sobe ide trakom sobe, iza poruka sobe koje su stigle pre njega
+    private void onRemoteReply(RemoteReply r) {
+        Object key = r.payload instanceof RoomResponse && ((RoomResponse) r.payload).room != null
+                ? roomKey(((RoomResponse) r.payload).room) : r.user;
+        handOff(fanOutStage, key, () -> {
+            Connection conn = userConnectionMap.get(r.user);
+            if (conn != null && conn.isConnected()) sendTo(conn, r.payload);
+        });
+    }
+
+    // korisnici drugog cvora dobijaju handle i ovde (najava lokalnim konekcijama), kao pri prijavi
+    private void onNodeState(int node, NodeState state) {
+        synchronized (loginLock) {
+            if (state.full) {
+                remoteUsers.values().removeIf(n -> n == node);
+                remoteRooms.values().removeIf(n -> n == node);
+            }
+            if (state.usersAdded != null) {
+                for (String user : state.usersAdded) {
+                    announceHandle(user);
+                    remoteUsers.put(user, node);
+                    if (mailboxes.size(user) > 0) mailboxStage.offer(user, () -> transferMailbox(user, node));
+                }
+            }
+            if (state.usersRemoved != null) {
+                for (String user : state.usersRemoved) remoteUsers.remove(user, node);
+            }
+            if (state.roomsAdded != null) {
+                for (String room : state.roomsAdded) remoteRooms.put(room, node);
+            }
+        }
+        if (state.full || state.usersAdded != null || state.usersRemoved != null) presenceChanged();
+    }
+
+    // poruke i poslednji ID ulaze u snapshot; replay zurnala ih vraca posle restarta, pa su novi ID-jevi
+    // veci od svih zapisanih i ako je sat u medjuvremenu vracen unazad
+    public void enableDurability(DurableState state) {
+        state.register("messages", new Snapshottable() {
+            public void writeSnapshot(DataOutputStream out) throws IOException {
+                out.writeLong(ids.last());
+                messageStore.writeSnapshot(out);
+            }
+
+            public void readSnapshot(DataInputStream in) throws IOException {
+                ids.observe(in.readLong());
+                messageStore.readSnapshot(in);
+            }
+        }, new MessageJournal.Handler() {
+            public void onMessage(ChatPacket p) {
+                messageStore.put(p);
+                ids.observe(p.id);
+                if (p.type != PacketType.ROOM) catchUpLog.append(p);
+            }
+
+            public void onRoomMessage(String room, ChatPacket p) {
+                onMessage(p);
+            }
+
+            public void onEdit(long id, String text) {
+                ChatPacket stored = messageStore.get(id);
+                if (stored != null) messageStore.put(editedCopy(stored, text));
+            }
+        });
+        // posle "messages": onEdit cita vec izmenjenu poruku iz skladista
+        state.register("search", new Snapshottable() {
+            public void writeSnapshot(DataOutputStream out) throws IOException {
+                awaitIndexed();
+                searchIndex.writeSnapshot(out);
+            }
+
+            public void readSnapshot(DataInputStream in) throws IOException {
+                searchIndex.readSnapshot(in);
+            }
+        }, new MessageJournal.Handler() {
+            public void onMessage(ChatPacket p) {
+                searchIndex.add(p);
+            }
+
+            public void onRoomMessage(String room, ChatPacket p) {
+                searchIndex.add(p);
+            }
+
+            public void onEdit(long id, String text) {
+                searchIndex.update(messageStore.get(id));
+            }
+        });
+        state.register("mailboxes", mailboxes, new MessageJournal.Handler() {
+            public void onMailbox(long id, String[] users) {
+                mailboxes.replayAdd(id, users);
+            }
+
+            public void onMailboxAck(String user, long firstId, int count) {
+                mailboxes.replayAck(user, firstId, count);
+            }
+        });
+        mailboxes.setJournal(state.getJournal());
+        this.journal = state.getJournal();
+    }
+
+    // sve sto je predato indeksu pre ovog poziva je upisano (ili je istekao rok)
+    private void awaitIndexed() {
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            indexStage.put(0L, done::countDown);
+            done.await(SEARCH_SNAPSHOT_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long nextId() {
+        return ids.next();
+    }
+
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    // ukupan broj poruka koje cekaju u pipeline-u
+    public int getQueueDepth() {
+        int depth = validateStage.queueDepth() + storeStage.queueDepth() + fanOutStage.queueDepth();
+        for (ServerShard shard : shards) depth += shard.queueDepth();
+        return depth;
+    }
+
+    // lag izlaznog reda po korisniku
+    public String getConnectionLagReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Connection> e : userConnectionMap.entrySet()) {
+            OutboundQueue outbound = ((ChatConnection) e.getValue()).getOutbound();
+            if (outbound == null) continue;
+            sb.append(e.getKey()).append(": ").append(outbound.lagReport()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // red i batch po vezi sa drugim cvorovima
+    public String getClusterReport() {
+        ClusterBus c = cluster;
+        return c == null ? "" : c.linkReport();
+    }
+
+    public String getMailboxReport() {
+        return mailboxes.report();
+    }
+
+    // dogadjaji prisutnosti naspram poslatih delti
+    public String getPresenceReport() {
+        synchronized (presenceLock) {
+            return "subscribers=" + presenceSubscribers.size() + " online=" + presenceOnline.cardinality()
+                    + " events=" + presenceEvents.sum() + " flushes=" + presenceFlushes + " frames=" + presenceFrames;
+        }
+    }
+
+    // velicina indeksa, poruke van indeksa (pun red) i trajanje upita
+    public String getSearchReport() {
+        return searchIndex.report() + " skipped=" + indexSkipped.sum() + " queries: " + searchTime.summary(1000, "us");
+    }
+
+    // odnos kompresije i CPU po kodeku
+    public String getCompressionReport() {
+        return serialization.getCompressor().report();
+    }
+
+    public String getQueueDepthReport() {
+        return "validate=" + validateStage.queueDepth()
+                + " store=" + storeStage.queueDepth()
+                + " fanout=" + fanOutStage.queueDepth()
+                + " catchup=" + catchUpStage.queueDepth()
+                + " mailbox=" + mailboxStage.queueDepth()
+                + " index=" + indexStage.queueDepth()
+                + " search=" + searchStage.queueDepth()
+                + (shards.length == 1 ? "" : " shards=" + Arrays.toString(shardDepths()));
+    }
+
+    // sve metrike u tekstu: RMI getStats i periodicni ispis
+    public String getStatsReport() {
+        StringBuilder sb = new StringBuilder(metrics.report());
+        sb.append("queues: ").append(getQueueDepthReport()).append('\n');
+        sb.append("store: messages=").append(messageStore.size());
+        if (messageStore instanceof TieredMessageStore) sb.append(' ').append(((TieredMessageStore) messageStore).report());
+        sb.append(" catchup=").append(catchUpLog.size()).append('\n');
+        sb.append("mailboxes: ").append(getMailboxReport()).append('\n');
+        sb.append("presence: ").append(getPresenceReport()).append('\n');
+        sb.append("search: ").append(getSearchReport()).append('\n');
+        sb.append("log: ").append(ServerLog.report()).append('\n');
+        sb.append(getConnectionBytesReport(STATS_TOP_CONNECTIONS));
+        ChatServiceImpl rooms = roomService;
+        if (rooms != null) sb.append(rooms.getCallReport());
+        return sb.toString();
+    }
+
+    // ukupno i top konekcije po poslatim bajtovima; top <= 0 = sve
+    public String getConnectionBytesReport(int top) {
+        List<Map.Entry<String, Connection>> entries = new ArrayList<>(userConnectionMap.entrySet());
+        long in = 0, out = 0;
+        for (Map.Entry<String, Connection> e : entries) {
+            ChatConnection c = (ChatConnection) e.getValue();
+            in += c.getBytesIn();
+            out += c.getBytesOut();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("connections=").append(entries.size()).append(" bytesIn=").append(in).append(" bytesOut=").append(out).append('\n');
+        entries.sort((a, b) -> Long.compare(((ChatConnection) b.getValue()).getBytesOut(), ((ChatConnection) a.getValue()).getBytesOut()));
+        int n = top > 0 ? Math.min(top, entries.size()) : entries.size();
+        for (int i = 0; i < n; i++) {
+            ChatConnection c = (ChatConnection) entries.get(i).getValue();
+            sb.append("  ").append(entries.get(i).getKey()).append(": in=").append(c.getBytesIn())
+                    .append(" out=").append(c.getBytesOut()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private int[] shardDepths() {
+        int[] depths = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) depths[i] = shards[i].queueDepth();
+        return depths;
     }
 
     @Override
     public void run() {
         running = true;
+        long nextDump = System.currentTimeMillis() + METRICS_DUMP_SECONDS * 1000;
         while (running) {
+            long wait = 5000;
+            if (METRICS_DUMP_SECONDS > 0) {
+                if (System.currentTimeMillis() >= nextDump) {
+                    STATS_LOG.info(System.lineSeparator() + getStatsReport().trim());
+                    nextDump += METRICS_DUMP_SECONDS * 1000;
+                }
+                wait = Math.min(wait, Math.max(1, nextDump - System.currentTimeMillis()));
+            }
             try {
-                Thread.sleep(5000);
+                Thread.sleep(wait);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // stop()
+                if (!running) break;
+                LOG.error("run-loop interrupted", e);
             }
         }
     }
@@ -313,11 +1803,32 @@ public class ChatServer implements Runnable {
             }
 
             ChatServiceImpl rmiService = new ChatServiceImpl();
+            ChatServer chatServer = new ChatServer(portNumber);
+            chatServer.setRoomService(rmiService);
+            if (!CLUSTER_NODES.isEmpty()) {
+                chatServer.enableCluster(new ClusterBus(CLUSTER_NODE_ID, ClusterBus.parseNodes(CLUSTER_NODES)));
+            }
+
+            // oporavak: snapshot + replay zurnala, pre nego sto primimo ijednog klijenta
+            DurableState durableState = new DurableState(new File(STORE_DIR), JOURNAL_SEGMENT_BYTES, JOURNAL_MAX_BATCH);
+            chatServer.enableDurability(durableState);
+            rmiService.enableDurability(durableState);
+            durableState.recover();
+            durableState.startPeriodicSnapshots(SNAPSHOT_INTERVAL_SECONDS);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    durableState.snapshot();
+                    durableState.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+
             Naming.rebind("rmi://localhost/ChatService", rmiService);
             System.out.println("RMI ChatService bound as ChatService");
 
             // Socket server
-            ChatServer chatServer = new ChatServer(portNumber);
             chatServer.start();
 
             chatServer.thread.join();
@@ -0,0 +1,164 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.minlog.Log;
+
+import rs.raf.pds.v4.z5.ChatServer;
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.messages.Login;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
+import rs.raf.pds.v4.z5.messages.PacketType;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+import rs.raf.pds.v4.z5.messages.UserHandles;
+
+// Protok i kasnjenje javnog kanala u zavisnosti od batch prozora (-Dchat.batch.windowMicros).
+// Pravi server i KryoNet klijenti preko loopback-a: jedan posiljalac salje PUBLIC poruke zadatom
+// brzinom, svaki primalac meri kasnjenje (nanoTime u tekstu poruke, ista JVM) i broj TCP okvira.
+// "frames/msg" < 1 znaci da je vise poruka stiglo u jednom okviru.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.BatchWindowBenchmark [primalaca] [poruka/s...]
+public class BatchWindowBenchmark {
+
+    static final long[] WINDOWS_MICROS = { 0, 250, 1000, 2000, 5000 };
+    static final int WARMUP_MS = 1000;
+    static final int MEASURE_MS = 3000;
+    static final int PORT = 54700;
+
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int[] rates = { 2000, 10000, 40000 };
+        if (args.length > 1) {
+            rates = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) rates[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        Log.set(Log.LEVEL_WARN);
+        File dir = Files.createTempDirectory("batch-bench").toFile();
+        ChatServer.STORE_DIR = dir.getPath();
+
+        System.out.printf("%d receivers, %d ms per run%n", receivers, MEASURE_MS);
+        System.out.printf("%-10s %10s %12s %10s %10s %10s %11s%n",
+                "msg/s", "window us", "delivered/s", "p50 us", "p99 us", "max us", "frames/msg");
+        int port = PORT;
+        try {
+            for (int rate : rates) {
+                for (long window : WINDOWS_MICROS) {
+                    run(port++, receivers, rate, window);
+                }
+            }
+        } finally {
+            for (File f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+        System.exit(0);
+    }
+
+    static void run(int port, int receiverCount, int rate, long windowMicros) throws Exception {
+        ChatServer.BATCH_WINDOW_MICROS = windowMicros;
+        ChatServer server = new ChatServer(port);
+        server.start();
+
+        Receiver[] receivers = new Receiver[receiverCount];
+        for (int i = 0; i < receiverCount; i++) receivers[i] = new Receiver("r" + i, port, rate);
+        Client sender = connect("sender", port, new Listener());
+        Thread.sleep(300);
+
+        long end = System.nanoTime() + (WARMUP_MS + MEASURE_MS) * 1_000_000L;
+        long measureFrom = System.nanoTime() + WARMUP_MS * 1_000_000L;
+        for (Receiver r : receivers) r.measureFrom = measureFrom;
+
+        // po 1 ms salje se koliko je do tada trebalo
+        long start = System.nanoTime();
+        long sent = 0;
+        while (System.nanoTime() < end) {
+            long due = (System.nanoTime() - start) * rate / 1_000_000_000L;
+            while (sent < due) {
+                sender.sendTCP(ChatPacket.publicMsg("sender", Long.toString(System.nanoTime())));
+                sent++;
+            }
+            Thread.sleep(1);
+        }
+        Thread.sleep(200);
+
+        long count = 0;
+        long frames = 0;
+        long[] all = new long[0];
+        for (Receiver r : receivers) {
+            count += r.count;
+            frames += r.frames.get();
+            int n = all.length;
+            all = Arrays.copyOf(all, n + r.count);
+            System.arraycopy(r.latencies, 0, all, n, r.count);
+            r.client.stop();
+        }
+        sender.stop();
+        server.stop();
+
+        Arrays.sort(all);
+        System.out.printf("%-10d %10d %12.0f %10d %10d %10d %11.3f%n", rate, windowMicros,
+                count / (MEASURE_MS / 1000.0), percentile(all, 0.50), percentile(all, 0.99),
+                all.length == 0 ? 0 : all[all.length - 1] / 1000, count == 0 ? 0 : frames / (double) count);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000;
+    }
+
+    static Client connect(String name, int port, Listener listener) throws IOException {
+        Client client = new Client(65536, 65536);
+        KryoUtil.registerKryoClasses(client.getKryo(), listener instanceof Receiver ? ((Receiver) listener).names : null);
+        client.addListener(listener);
+        client.start();
+        client.connect(5000, "localhost", port);
+        client.sendTCP(new Login(name));
+        return client;
+    }
+
+    // racuna samo poruke posiljaoca primljene posle zagrevanja
+    static class Receiver extends Listener {
+        final UserDirectory names = new UserDirectory();
+        final Kryo kryo = KryoUtil.newKryo(names);
+        final AtomicLong frames = new AtomicLong();
+        final Client client;
+        final long[] latencies;
+        volatile long measureFrom = Long.MAX_VALUE;
+        int count;
+
+        Receiver(String name, int port, int rate) throws IOException {
+            latencies = new long[rate * (MEASURE_MS / 1000 + 1) + 1024];
+            client = connect(name, port, this);
+        }
+
+        public void received(Connection connection, Object object) {
+            long now = System.nanoTime();
+            if (now >= measureFrom) frames.incrementAndGet();
+            if (object instanceof PacketBatch) {
+                for (Object o : ((PacketBatch) object).unpack(kryo)) handle(o, now);
+            } else {
+                handle(object, now);
+            }
+        }
+
+        void handle(Object object, long now) {
+            if (object instanceof UserHandles) {
+                UserHandles u = (UserHandles) object;
+                for (int i = 0; i < u.handles.length; i++) names.put(u.handles[i], u.names[i]);
+            } else if (object instanceof ChatPacket) {
+                ChatPacket p = (ChatPacket) object;
+                if (p.type != PacketType.PUBLIC || now < measureFrom || count == latencies.length) return;
+                latencies[count++] = now - Long.parseLong(p.text);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.minlog.Log;
+
+import rs.raf.pds.v4.z5.ChatServer;
+import rs.raf.pds.v4.z5.cluster.ClusterBus;
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.messages.Login;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
+import rs.raf.pds.v4.z5.messages.PacketType;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+import rs.raf.pds.v4.z5.messages.UserHandles;
+
+// Kasnjenje poruke na istom cvoru i preko veze izmedju cvorova. Tri cvora u jednoj JVM (loopback):
+// posiljalac je na cvoru 1, po jedan primalac na svakom cvoru. DM ide naizmenicno svakom primaocu,
+// PUBLIC svima; kasnjenje = nanoTime prijema - nanoTime iz teksta poruke.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.ClusterLatencyBenchmark [poruka/s]
+public class ClusterLatencyBenchmark {
+
+    static final int NODES = 3;
+    static final int CLIENT_PORT = 54800;
+    static final int BUS_PORT = 54900;
+    static final int WARMUP_MS = 1000;
+    static final int MEASURE_MS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Log.set(Log.LEVEL_WARN);
+
+        File dir = Files.createTempDirectory("cluster-bench").toFile();
+        StringBuilder spec = new StringBuilder();
+        for (int i = 1; i <= NODES; i++) spec.append(i > 1 ? "," : "").append(i).append("=localhost:").append(BUS_PORT + i);
+        Map<Integer, InetSocketAddress> nodes = ClusterBus.parseNodes(spec.toString());
+
+        ChatServer[] servers = new ChatServer[NODES];
+        for (int i = 0; i < NODES; i++) {
+            File nodeDir = new File(dir, "node" + (i + 1));
+            nodeDir.mkdirs();
+            ChatServer.STORE_DIR = nodeDir.getPath();
+            servers[i] = new ChatServer(CLIENT_PORT + i);
+            servers[i].enableCluster(new ClusterBus(i + 1, nodes));
+            servers[i].start();
+        }
+        Thread.sleep(1500);
+
+        Receiver[] receivers = new Receiver[NODES];
+        for (int i = 0; i < NODES; i++) receivers[i] = new Receiver("r" + (i + 1), CLIENT_PORT + i, rate);
+        Client sender = connect("sender", CLIENT_PORT, new Listener(), null);
+        Thread.sleep(1000);
+
+        System.out.printf("%d nodes, %d msg/s, %d ms per run%n", NODES, rate, MEASURE_MS);
+        System.out.printf("%-8s %-10s %10s %10s %10s %10s%n", "type", "receiver", "messages", "p50 us", "p99 us", "max us");
+        run(PacketType.DM, sender, receivers, rate);
+        run(PacketType.PUBLIC, sender, receivers, rate);
+
+        System.out.print(servers[0].getClusterReport());
+        for (Receiver r : receivers) r.client.stop();
+        sender.stop();
+        for (ChatServer s : servers) s.stop();
+        delete(dir);
+        System.exit(0);
+    }
+
+    static void run(PacketType type, Client sender, Receiver[] receivers, int rate) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + WARMUP_MS * 1_000_000L;
+        long end = measureFrom + MEASURE_MS * 1_000_000L;
+        for (Receiver r : receivers) r.reset(type, measureFrom);
+
+        long sent = 0;
+        while (System.nanoTime() < end) {
+            long due = (System.nanoTime() - start) * rate / 1_000_000_000L;
+            while (sent < due) {
+                String text = Long.toString(System.nanoTime());
+                sender.sendTCP(type == PacketType.DM
+                        ? ChatPacket.dm("sender", receivers[(int) (sent % receivers.length)].name, text)
+                        : ChatPacket.publicMsg("sender", text));
+                sent++;
+            }
+            Thread.sleep(1);
+        }
+        Thread.sleep(300);
+
+        for (int i = 0; i < receivers.length; i++) {
+            Receiver r = receivers[i];
+            long[] sorted = Arrays.copyOf(r.latencies, r.count);
+            Arrays.sort(sorted);
+            System.out.printf("%-8s %-10s %10d %10d %10d %10d%n", type, (i == 0 ? "local" : "node " + (i + 1)),
+                    sorted.length, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000);
+        }
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000;
+    }
+
+    static Client connect(String name, int port, Listener listener, UserDirectory names) throws IOException {
+        Client client = new Client(65536, 65536);
+        KryoUtil.registerKryoClasses(client.getKryo(), names);
+        client.addListener(listener);
+        client.start();
+        client.connect(5000, "localhost", port);
+        client.sendTCP(new Login(name));
+        return client;
+    }
+
+    static class Receiver extends Listener {
+        final String name;
+        final UserDirectory names = new UserDirectory();
+        final Kryo kryo = KryoUtil.newKryo(names);
+        final Client client;
+        final long[] latencies;
+        volatile PacketType type;
+        volatile long measureFrom = Long.MAX_VALUE;
+        volatile int count;
+
+        Receiver(String name, int port, int rate) throws IOException {
+            this.name = name;
+            this.latencies = new long[rate * (MEASURE_MS / 1000 + 1) + 1024];
+            this.client = connect(name, port, this, names);
+        }
+
+        void reset(PacketType type, long measureFrom) {
+            this.count = 0;
+            this.type = type;
+            this.measureFrom = measureFrom;
+        }
+
+        public void received(Connection connection, Object object) {
+            long now = System.nanoTime();
+            if (object instanceof PacketBatch) {
+                for (Object o : ((PacketBatch) object).unpack(kryo)) handle(o, now);
+            } else {
+                handle(object, now);
+            }
+        }
+
+        void handle(Object object, long now) {
+            if (object instanceof UserHandles) {
+                UserHandles u = (UserHandles) object;
+                for (int i = 0; i < u.handles.length; i++) names.put(u.handles[i], u.names[i]);
+            } else if (object instanceof ChatPacket) {
+                ChatPacket p = (ChatPacket) object;
+                if (p.type != type || now < measureFrom || count == latencies.length) return;
+                latencies[count++] = now - Long.parseLong(p.text);
+            }
+        }
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,100 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.CompressedPacket;
+import rs.raf.pds.v4.z5.messages.Compression;
+import rs.raf.pds.v4.z5.messages.HistoryPage;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.net.PayloadCompressor;
+
+// Odnos kompresije i CPU po kodeku u zavisnosti od velicine poruke - za izbor praga
+// (-Dchat.compression.threshold). Ulaz su pravi Kryo zapisi: jedna ChatPacket poruka
+// sa tekstom date duzine i stranica istorije (HistoryPage) sa N poruka.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.CompressionBenchmark
+public class CompressionBenchmark {
+
+    static final int[] TEXT_LENGTHS = { 64, 256, 512, 1024, 4096, 16384 };
+    static final int[] PAGE_SIZES = { 10, 50, 200 };
+    static final int ITERATIONS = 2000;
+
+    static final String[] WORDS = { "je", "da", "se", "na", "poruka", "sutra", "hvala", "sastanak", "projekat",
+            "the", "and", "you", "ok", "moze", "commit", "server", "build", "test", "danas", "vidimo" };
+
+    public static void main(String[] args) throws Exception {
+        PayloadCompressor.THRESHOLD = 0;
+        PayloadCompressor compressor = new PayloadCompressor();
+        Kryo kryo = KryoUtil.newKryo(null);
+        Random random = new Random(42);
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+        System.out.printf("%-16s %8s %9s %9s %10s %10s %10s%n",
+                "payload", "raw B", "fast B", "dense B", "fast ns", "dense ns", "inflate ns");
+
+        for (int len : TEXT_LENGTHS) {
+            ChatPacket p = ChatPacket.publicMsg("ZoranB", text(random, len));
+            p.id = 1000;
+            p.timestamp = System.currentTimeMillis();
+            row("text " + len, encode(kryo, p), compressor, mx);
+        }
+
+        for (int n : PAGE_SIZES) {
+            HistoryPage page = new HistoryPage();
+            page.room = "projekat";
+            page.messages = new ChatPacket[n];
+            for (int i = 0; i < n; i++) {
+                ChatPacket p = ChatPacket.room(i % 3 == 0 ? "jelena" : "marko", "projekat", text(random, 20 + random.nextInt(80)));
+                p.id = 5000 + i;
+                p.timestamp = System.currentTimeMillis() + i * 1000L;
+                page.messages[i] = p;
+            }
+            row("history " + n, encode(kryo, page), compressor, mx);
+        }
+
+        System.out.println(compressor.report());
+    }
+
+    static void row(String name, byte[] raw, PayloadCompressor compressor, ThreadMXBean mx) throws Exception {
+        byte[] fast = compressor.compress(raw, Compression.FAST);
+        byte[] dense = compressor.compress(raw, Compression.DENSE);
+
+        long t0 = mx.getCurrentThreadCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) compressor.compress(raw, Compression.FAST);
+        long t1 = mx.getCurrentThreadCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) compressor.compress(raw, Compression.DENSE);
+        long t2 = mx.getCurrentThreadCpuTime();
+        long t3 = t2;
+        if (dense != null) {
+            CompressedPacket packet = new CompressedPacket(Compression.DENSE, raw.length, dense);
+            for (int i = 0; i < ITERATIONS; i++) compressor.decompress(packet, raw.length);
+            t3 = mx.getCurrentThreadCpuTime();
+        }
+
+        System.out.printf("%-16s %8d %9s %9s %10d %10d %10d%n", name, raw.length,
+                fast == null ? "-" : String.valueOf(fast.length), dense == null ? "-" : String.valueOf(dense.length),
+                (t1 - t0) / ITERATIONS, (t2 - t1) / ITERATIONS, (t3 - t2) / ITERATIONS);
+    }
+
+    static byte[] encode(Kryo kryo, Object o) {
+        Output out = new Output(1024, -1);
+        kryo.writeClassAndObject(out, o);
+        return out.toBytes();
+    }
+
+    static String text(Random random, int len) {
+        StringBuilder sb = new StringBuilder(len + 16);
+        while (sb.length() < len) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(10) == 0 ? ", " : " ");
+        }
+        sb.setLength(len);
+        return sb.toString();
+    }
+}
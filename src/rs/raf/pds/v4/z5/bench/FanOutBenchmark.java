@@ -0,0 +1,72 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.net.EncodedPacket;
+import rs.raf.pds.v4.z5.net.FanOutSerialization;
+
+// CPU po poruci u zavisnosti od broja primalaca:
+// "per-recipient" = stari broadcastPacket (sendTCP(p) za svaku konekciju),
+// "encode-once"   = novi fan-out (jedna serijalizacija, kopiranje bajtova).
+// Pisanje ide u ByteBuffer isto kao TcpConnection.send, bez socketa.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.FanOutBenchmark
+public class FanOutBenchmark {
+
+    static final int[] RECIPIENTS = { 1, 10, 100, 1000, 5000 };
+    static final int MESSAGES = 200;
+
+    public static void main(String[] args) {
+        FanOutSerialization serialization = new FanOutSerialization();
+        KryoUtil.registerKryoClasses(serialization.getKryo());
+
+        ChatPacket p = ChatPacket.publicMsg("ZoranB", "Pozdrav svima, ovo je jedna obicna poruka u javnom kanalu.");
+        p.id = 123456;
+        p.timestamp = System.currentTimeMillis();
+
+        ByteBuffer buffer = ByteBuffer.allocate(16384);
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+        // warmup
+        for (int i = 0; i < 3; i++) {
+            perRecipient(serialization, buffer, p, 1000, MESSAGES);
+            encodeOnce(serialization, buffer, p, 1000, MESSAGES);
+        }
+
+        System.out.printf("%-10s %18s %18s %8s%n", "recipients", "per-recipient ns", "encode-once ns", "speedup");
+        for (int n : RECIPIENTS) {
+            long t0 = mx.getCurrentThreadCpuTime();
+            perRecipient(serialization, buffer, p, n, MESSAGES);
+            long t1 = mx.getCurrentThreadCpuTime();
+            encodeOnce(serialization, buffer, p, n, MESSAGES);
+            long t2 = mx.getCurrentThreadCpuTime();
+
+            double naive = (t1 - t0) / (double) MESSAGES;
+            double once = (t2 - t1) / (double) MESSAGES;
+            System.out.printf("%-10d %18.0f %18.0f %7.1fx%n", n, naive, once, naive / once);
+        }
+    }
+
+    static void perRecipient(FanOutSerialization s, ByteBuffer buffer, ChatPacket p, int recipients, int messages) {
+        for (int m = 0; m < messages; m++) {
+            for (int r = 0; r < recipients; r++) {
+                buffer.clear();
+                s.write(null, buffer, p);
+            }
+        }
+    }
+
+    static void encodeOnce(FanOutSerialization s, ByteBuffer buffer, ChatPacket p, int recipients, int messages) {
+        for (int m = 0; m < messages; m++) {
+            EncodedPacket frame = s.encode(p);
+            for (int r = 0; r < recipients; r++) {
+                buffer.clear();
+                s.write(null, buffer, frame);
+            }
+        }
+    }
+}
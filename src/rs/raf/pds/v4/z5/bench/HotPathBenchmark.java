@@ -0,0 +1,179 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentMap;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.minlog.Log;
+
+import rs.raf.pds.v4.z5.ChatServer;
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.net.ChatConnection;
+import rs.raf.pds.v4.z5.net.EncodedPacket;
+import rs.raf.pds.v4.z5.net.FanOutSerialization;
+import rs.raf.pds.v4.z5.rmi.ChatServiceImpl;
+import rs.raf.pds.v4.z5.rooms.ChatRoom;
+
+// Mikro-benchmark-ovi vrucih putanja servera (MicroBench: ns/op i B/op po operaciji):
+//  - store.*   obrada nove poruke bez fan-out-a: ID + timestamp, reply excerpt, clonePacket, upis u
+//              messageStore/catchUpLog (ROOM: istorija sobe);
+//  - route.*   broadcastPacket/sendDm/sendMcast/sendRoom ka lazni konekcijama (uvek povezane,
+//              sendTCP samo broji bajtove) - jedna serijalizacija + isporuka svakom primaocu;
+//  - kryo.*    ChatPacket kroz Kryo iz KryoUtil-a i FanOutSerialization.encode servera;
+//  - rooms.*   ChatServiceImpl.joinRoom i loadOlderMessages za sobe sa 100 .. 100000 poruka.
+// Server se ne startuje (bez socketa i pipeline niti); privatne metode se zovu kroz MethodHandle.
+// Prvi argument je regex nad imenom benchmark-a, npr. "route|kryo".
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.HotPathBenchmark [regex]
+public class HotPathBenchmark {
+
+    static final int[] RECIPIENTS = { 10, 100, 1000 };
+    static final int[] ROOM_SIZES = { 100, 10_000, 100_000 };
+    static final String TEXT = "Pozdrav svima, ovo je jedna obicna poruka srednje duzine u chatu.";
+
+    // lazna konekcija servera: prijavljena i povezana, bez socketa
+    static class FakeConnection extends ChatConnection {
+        long bytes;
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public int sendTCP(Object object) {
+            int n = object instanceof EncodedPacket ? ((EncodedPacket) object).length() : 0;
+            bytes += n;
+            return n;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Log.set(Log.LEVEL_WARN);
+        File dir = Files.createTempDirectory("hotpath").toFile();
+        ChatServer.STORE_DIR = dir.getPath();
+        ChatServer server = new ChatServer(54790);
+        ChatServiceImpl rooms = new ChatServiceImpl(new File(dir, "rooms"));
+        server.setRoomService(rooms);
+
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(ChatServer.class, MethodHandles.lookup());
+        MethodHandle store = method(lookup, "store", void.class, ChatPacket.class);
+        MethodHandle excerpt = method(lookup, "excerpt", String.class, String.class, int.class);
+        MethodHandle clone = method(lookup, "clonePacket", ChatPacket.class, ChatPacket.class);
+        MethodHandle broadcast = method(lookup, "broadcastPacket", void.class, ChatPacket.class, Connection.class);
+        MethodHandle dm = method(lookup, "sendDm", void.class, ChatPacket.class, Connection.class);
+        MethodHandle mcast = method(lookup, "sendMcast", void.class, ChatPacket.class, Connection.class);
+        MethodHandle room = method(lookup, "sendRoom", void.class, ChatPacket.class);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<String, Connection> connections = (ConcurrentMap<String, Connection>)
+                lookup.findGetter(ChatServer.class, "userConnectionMap", ConcurrentMap.class).invoke(server);
+
+        MicroBench bench = new MicroBench(args.length > 0 ? args[0] : null);
+
+        // --- store ---
+        rooms.createRoom("bench", "u0");
+        ChatPacket original = ChatPacket.publicMsg("u0", TEXT);
+        store.invoke(server, original);
+        ChatPacket pub = ChatPacket.publicMsg("u0", TEXT);
+        ChatPacket reply = ChatPacket.publicMsg("u1", TEXT);
+        reply.replyToId = original.id;
+        ChatPacket toOne = ChatPacket.dm("u0", "u1", TEXT);
+        ChatPacket toRoom = ChatPacket.room("u0", "bench", TEXT);
+        bench.run("store.public", i -> { store.invoke(server, pub); return pub; });
+        bench.run("store.reply", i -> { store.invoke(server, reply); return reply; });
+        bench.run("store.dm", i -> { store.invoke(server, toOne); return toOne; });
+        bench.run("store.room", i -> { store.invoke(server, toRoom); return toRoom; });
+        bench.run("store.excerpt", i -> (String) excerpt.invoke(server, TEXT, 30));
+        bench.run("store.clonePacket", i -> (ChatPacket) clone.invoke(server, reply));
+
+        // --- route: isti paket, sve vise primalaca ---
+        FakeConnection[] fakes = new FakeConnection[RECIPIENTS[RECIPIENTS.length - 1]];
+        String[] users = new String[fakes.length];
+        for (int i = 0; i < fakes.length; i++) {
+            fakes[i] = new FakeConnection();
+            users[i] = "u" + i;
+        }
+        ChatPacket routed = ChatPacket.publicMsg("u0", TEXT);
+        routed.id = 1L << 40;
+        routed.timestamp = System.currentTimeMillis();
+        for (int n : RECIPIENTS) {
+            for (int i = connections.size(); i < n; i++) connections.put(users[i], fakes[i]);
+            bench.run("route.public." + n, i -> { broadcast.invoke(server, routed, (Connection) null); return routed; });
+        }
+        ChatPacket routedDm = ChatPacket.dm("u0", "u1", TEXT);
+        routedDm.id = routed.id;
+        bench.run("route.dm", i -> { dm.invoke(server, routedDm, (Connection) null); return routedDm; });
+        for (int n : new int[] { 10, 100 }) {
+            String[] to = new String[n];
+            System.arraycopy(users, 1, to, 0, n);
+            ChatPacket routedMcast = ChatPacket.mcast("u0", to, TEXT);
+            routedMcast.id = routed.id;
+            bench.run("route.mcast." + n, i -> { mcast.invoke(server, routedMcast, (Connection) null); return routedMcast; });
+        }
+        rooms.createRoom("fanout", "u0");
+        ChatRoom fanout = rooms.getRoom("fanout");
+        for (int i = 0; i < 100; i++) fanout.addConnection(fakes[i]);
+        ChatPacket routedRoom = ChatPacket.room("u0", "fanout", TEXT);
+        routedRoom.id = routed.id;
+        bench.run("route.room.100", i -> { room.invoke(server, routedRoom); return routedRoom; });
+
+        // --- kryo ---
+        Kryo kryo = KryoUtil.newKryo(null);
+        Output out = new Output(4096);
+        Input in = new Input();
+        ChatPacket encoded = ChatPacket.mcast("u0", new String[] { "u1", "u2", "u3" }, TEXT);
+        encoded.id = routed.id;
+        encoded.timestamp = routed.timestamp;
+        kryo.writeClassAndObject(out, encoded);
+        byte[] bytes = out.toBytes();
+        bench.run("kryo.encode", i -> {
+            out.clear();
+            kryo.writeClassAndObject(out, encoded);
+            return out;
+        });
+        bench.run("kryo.decode", i -> {
+            in.setBuffer(bytes);
+            return kryo.readClassAndObject(in);
+        });
+        FanOutSerialization serialization = (FanOutSerialization)
+                lookup.findGetter(ChatServer.class, "serialization", FanOutSerialization.class).invoke(server);
+        bench.run("kryo.fanOutEncode", i -> serialization.encode(encoded));
+
+        // --- rooms: istorija raste, join i stranica starijih poruka ---
+        for (int size : ROOM_SIZES) {
+            String name = "history" + size;
+            rooms.createRoom(name, "u0");
+            for (int i = 1; i <= size; i++) {
+                ChatPacket p = ChatPacket.room(users[i % users.length], name, TEXT);
+                p.id = i;
+                p.timestamp = routed.timestamp;
+                rooms.addRoomMessage(name, p);
+            }
+            bench.run("rooms.joinRoom." + size, i -> rooms.joinRoom(name, users[i % users.length]));
+            bench.run("rooms.loadOlder." + size, i -> rooms.loadOlderMessages(name, 1 + ((i * 0x9E3779B1L) >>> 1) % size, 20));
+        }
+
+        server.stop();
+        delete(dir);
+        System.exit(0);
+    }
+
+    static MethodHandle method(MethodHandles.Lookup lookup, String name, Class<?> returns, Class<?>... params)
+            throws ReflectiveOperationException {
+        return lookup.findVirtual(ChatServer.class, name, MethodType.methodType(returns, params));
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,169 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import rs.raf.pds.v4.z5.store.IdGenerator;
+
+// IdGenerator naspram dosadasnjeg AtomicLong brojaca i klasicnog synchronized Snowflake-a,
+// 1..N niti koje istovremeno traze ID-jeve. Posle merenja proverava:
+//  - ID-jevi su jedinstveni preko svih niti i strogo rastu unutar niti;
+//  - sat koji skoci unazad (5 s) ne vraca ID-jeve, a posle observe() tudjeg ID-ja lokalni su veci.
+// Izlazni kod 1 ako je nadjena greska.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.IdGeneratorBenchmark [ms po merenju]
+public class IdGeneratorBenchmark {
+
+    static final int CHECK_IDS_PER_THREAD = 1_000_000;
+
+    static long errors = 0;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        AtomicLong counter = new AtomicLong(1);
+        IdGenerator ids = new IdGenerator(7);
+        SynchronizedSnowflake classic = new SynchronizedSnowflake(7);
+
+        LongSupplier[] generators = {
+                counter::getAndIncrement,
+                () -> counter.getAndIncrement() * 1024 + 7,
+                ids::next,
+                classic::next };
+        String[] names = { "AtomicLong", "counter*1024+node", "IdGenerator", "synchronized" };
+
+        System.out.printf("%-8s", "threads");
+        for (String n : names) System.out.printf(" %20s", n + " M/s");
+        System.out.println();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("%-8d", threads);
+            for (LongSupplier g : generators) {
+                run(g, threads, millis / 4); // zagrevanje
+                System.out.printf(" %20.1f", run(g, threads, millis) / 1e6);
+            }
+            System.out.println();
+        }
+
+        checkUnique(ids, maxThreads);
+        checkClockSkew();
+
+        System.out.println(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    static double run(LongSupplier g, int threads, long millis) throws InterruptedException {
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicLong total = new AtomicLong();
+        long[] sink = new long[threads];
+        Thread[] ts = new Thread[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000L + 10_000_000L;
+        for (int i = 0; i < threads; i++) {
+            int idx = i;
+            ts[i] = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long n = 0, x = 0;
+                while ((n & 1023) != 0 || System.nanoTime() < deadline) {
+                    x ^= g.getAsLong();
+                    n++;
+                }
+                sink[idx] = x;
+                total.addAndGet(n);
+            });
+            ts[i].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread t : ts) t.join();
+        return total.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    static void checkUnique(IdGenerator ids, int threads) throws InterruptedException {
+        long[][] out = new long[threads][CHECK_IDS_PER_THREAD];
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long[] mine = out[i];
+            ts[i] = new Thread(() -> {
+                for (int k = 0; k < mine.length; k++) mine[k] = ids.next();
+            });
+            ts[i].start();
+        }
+        for (Thread t : ts) t.join();
+
+        long[] all = new long[threads * CHECK_IDS_PER_THREAD];
+        for (int i = 0; i < threads; i++) {
+            for (int k = 1; k < CHECK_IDS_PER_THREAD; k++) {
+                if (out[i][k] <= out[i][k - 1]) fail("nit " + i + ": " + out[i][k - 1] + " -> " + out[i][k]);
+            }
+            System.arraycopy(out[i], 0, all, i * CHECK_IDS_PER_THREAD, CHECK_IDS_PER_THREAD);
+        }
+        Arrays.sort(all);
+        for (int k = 1; k < all.length; k++) {
+            if (all[k] == all[k - 1]) fail("duplikat " + all[k]);
+            if (IdGenerator.nodeOf(all[k]) != 7) fail("pogresan cvor u " + all[k]);
+        }
+        long drift = IdGenerator.timestampOf(all[all.length - 1]) - System.currentTimeMillis();
+        System.out.printf("unique: %d ids from %d threads, logical clock ahead of wall clock by %d ms%n",
+                all.length, threads, Math.max(0, drift));
+    }
+
+    static void checkClockSkew() {
+        long[] now = { System.currentTimeMillis() };
+        IdGenerator a = new IdGenerator(1, () -> now[0]);
+        IdGenerator b = new IdGenerator(2, () -> now[0] - 60_000); // cvor ciji sat kasni minut
+
+        long before = a.next();
+        now[0] -= 5_000;
+        long prev = before;
+        for (int i = 0; i < 100_000; i++) {
+            long id = a.next();
+            if (id <= prev) fail("sat unazad: " + prev + " -> " + id);
+            prev = id;
+        }
+        now[0] += 10_000;
+        long after = a.next();
+        if (after <= prev) fail("posle oporavka sata: " + prev + " -> " + after);
+        if (IdGenerator.timestampOf(after) != now[0]) fail("logicki sat nije sustigao zidni");
+
+        b.observe(after);
+        long reply = b.next();
+        if (reply <= after) fail("observe: " + reply + " <= " + after);
+        System.out.printf("skew: ids stay monotonic across a 5 s clock step back; lagging node orders after observed id%n");
+    }
+
+    static void fail(String msg) {
+        if (++errors <= 20) System.err.println("ERROR " + msg);
+    }
+
+    // udzbenicka varijanta: synchronized, cekanje sledece ms kad se sekvenca istrosi
+    static final class SynchronizedSnowflake {
+        private final long node;
+        private long lastMillis = -1;
+        private long sequence;
+
+        SynchronizedSnowflake(int node) {
+            this.node = node;
+        }
+
+        synchronized long next() {
+            long now = System.currentTimeMillis();
+            if (now < lastMillis) now = lastMillis;
+            if (now == lastMillis) {
+                sequence = (sequence + 1) & 4095;
+                if (sequence == 0) {
+                    while ((now = System.currentTimeMillis()) <= lastMillis) Thread.onSpinWait();
+                }
+            } else {
+                sequence = 0;
+            }
+            lastMillis = now;
+            return ((now - IdGenerator.EPOCH) << 22) | (sequence << 10) | node;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import rs.raf.pds.v4.z5.store.OfflineMailboxes;
+
+// Offline poste pod velikim brojem poruka: N ID-jeva za U korisnika (DM i MCAST do 4 primaoca),
+// pa praznjenje u serijama kao sto radi server (peek + ack). Meri brzinu dodavanja/praznjenja i
+// heap posle GC-a naspram budzeta hotIds; proverava da svaki korisnik dobije sve, po redu i tacno jednom.
+// Izlazni kod 1 ako je nadjena greska.
+//
+// Pokretanje: java -Xmx256m -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.MailboxBenchmark [miliona poruka] [korisnika] [hotIds]
+public class MailboxBenchmark {
+
+    static final int BATCH = 100;
+
+    public static void main(String[] args) throws Exception {
+        long messages = (long) (args.length > 0 ? Double.parseDouble(args[0]) * 1_000_000 : 5_000_000);
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        long hotIds = args.length > 2 ? Long.parseLong(args[2]) : 200_000;
+
+        String[] names = new String[users];
+        for (int i = 0; i < users; i++) names[i] = "user" + i;
+        long[] expected = new long[users];
+
+        File dir = Files.createTempDirectory("mailbox-bench").toFile();
+        OfflineMailboxes boxes = new OfflineMailboxes(new File(dir, "mailboxes.spill"), Integer.MAX_VALUE, hotIds);
+        long heapBefore = usedHeap();
+
+        Random rnd = new Random(1);
+        long queued = 0;
+        long start = System.nanoTime();
+        for (long id = 1; id <= messages; id++) {
+            int fan = rnd.nextInt(8) == 0 ? 2 + rnd.nextInt(3) : 1;
+            String[] to = new String[fan];
+            for (int k = 0; k < fan; k++) {
+                int u = rnd.nextInt(users);
+                // isti primalac dvaput u MCAST-u je samo jos jedan DM; dovoljno je da broj odgovara
+                to[k] = names[u];
+                expected[u]++;
+            }
+            boxes.add(id, to);
+            queued += fan;
+        }
+        double addSec = (System.nanoTime() - start) / 1e9;
+        long heap = usedHeap() - heapBefore;
+        System.out.printf("add:   %,d messages -> %,d mailbox entries in %.2f s (%.1f M entries/s)%n",
+                messages, queued, addSec, queued / addSec / 1e6);
+        System.out.printf("heap:  %,d KB (%.1f B/entry; boxed ArrayDeque<Long> would be ~%,d KB)%n",
+                heap / 1024, heap / (double) queued, queued * 24 / 1024);
+        System.out.println("state: " + boxes.report());
+
+        long errors = 0;
+        long drained = 0;
+        start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            long prev = 0, got = 0;
+            long[] ids;
+            while ((ids = boxes.peek(names[u], BATCH)).length > 0) {
+                for (long id : ids) {
+                    if (id < prev && ++errors <= 20) System.err.println("ERROR " + names[u] + ": " + prev + " -> " + id);
+                    prev = id;
+                }
+                if (!boxes.ack(names[u], ids[0], ids.length) && ++errors <= 20) System.err.println("ERROR ack " + names[u]);
+                got += ids.length;
+            }
+            if (got != expected[u] && ++errors <= 20) System.err.println("ERROR " + names[u] + ": " + got + " != " + expected[u]);
+            drained += got;
+        }
+        double drainSec = (System.nanoTime() - start) / 1e9;
+        System.out.printf("drain: %,d entries in batches of %d in %.2f s (%.1f M entries/s)%n",
+                drained, BATCH, drainSec, drained / drainSec / 1e6);
+        System.out.println("state: " + boxes.report());
+        boxes.close();
+        dir.delete();
+
+        System.out.println(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
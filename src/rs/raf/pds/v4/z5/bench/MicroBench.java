@@ -0,0 +1,98 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+// Mali harness za mikro-benchmark-ove (umesto JMH-a - projekat nema build sistem ni zavisnosti):
+// zagrevanje, pa merne iteracije fiksnog trajanja na jednoj niti. Po iteraciji se meri ns/op
+// (zidni sat) i B/op (alocirani bajtovi niti, com.sun.management.ThreadMXBean - isto sto JMH
+// -prof gc prijavljuje kao gc.alloc.rate.norm). Rezultat operacije se upisuje u polje, pa JIT ne moze
+// da izbaci poziv ni alokaciju; poziv op.run je iz iste petlje za sve benchmark-ove (megamorfan, ~1-2 ns).
+//
+// -Dbench.warmup=N -Dbench.iterations=N -Dbench.millis=N (trajanje jedne iteracije)
+public final class MicroBench {
+
+    public static int WARMUP = Integer.getInteger("bench.warmup", 3);
+    public static int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    public static int MILLIS = Integer.getInteger("bench.millis", 500);
+
+    // jedna operacija; i = redni broj poziva (za rotiranje ulaza)
+    public interface Op {
+        Object run(int i) throws Throwable;
+    }
+
+    private static final com.sun.management.ThreadMXBean MX =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Pattern include;
+    private Object last;
+    public volatile Object sink;
+
+    // include = regex nad imenom (kao JMH -include); null = sve
+    public MicroBench(String include) {
+        this.include = include == null ? null : Pattern.compile(include);
+        MX.setThreadAllocatedMemoryEnabled(true);
+        System.out.printf("%-34s %12s %10s %12s%n", "benchmark", "ns/op", "+-", "B/op");
+    }
+
+    public boolean enabled(String name) {
+        return include == null || include.matcher(name).find();
+    }
+
+    public void run(String name, Op op) throws Throwable {
+        if (!enabled(name)) return;
+
+        // velicina grupe: tako da jedna grupa traje ~1 ms, nanoTime se ne cita po operaciji
+        int batch = 1;
+        long t0 = System.nanoTime();
+        while (System.nanoTime() - t0 < 1_000_000 && batch < 1 << 20) {
+            long s = System.nanoTime();
+            loop(op, 0, batch);
+            if (System.nanoTime() - s > 1_000_000) break;
+            batch <<= 1;
+        }
+
+        int calls = 0;
+        for (int w = 0; w < WARMUP; w++) calls = iteration(op, batch, calls, null);
+
+        double[] nsPerOp = new double[ITERATIONS];
+        long[] totals = new long[2];
+        for (int m = 0; m < ITERATIONS; m++) {
+            long start = System.nanoTime();
+            long ops = -calls;
+            calls = iteration(op, batch, calls, totals);
+            ops += calls;
+            nsPerOp[m] = (System.nanoTime() - start) / (double) ops;
+        }
+        sink = last;
+        last = null;
+
+        double mean = Arrays.stream(nsPerOp).average().orElse(0);
+        double var = 0;
+        for (double v : nsPerOp) var += (v - mean) * (v - mean);
+        double err = ITERATIONS > 1 ? Math.sqrt(var / (ITERATIONS - 1)) : 0;
+        System.out.printf("%-34s %12.1f %10.1f %12.1f%n", name, mean, err, totals[1] / (double) totals[0]);
+    }
+
+    // totals[0] += operacija, totals[1] += alociranih bajtova (null u zagrevanju)
+    private int iteration(Op op, int batch, int calls, long[] totals) throws Throwable {
+        long tid = Thread.currentThread().getId();
+        long bytes = MX.getThreadAllocatedBytes(tid);
+        int start = calls;
+        long deadline = System.nanoTime() + MILLIS * 1_000_000L;
+        do {
+            loop(op, calls, batch);
+            calls += batch;
+        } while (System.nanoTime() < deadline);
+        if (totals != null) {
+            totals[0] += calls - start;
+            totals[1] += MX.getThreadAllocatedBytes(tid) - bytes;
+        }
+        return calls;
+    }
+
+    private void loop(Op op, int from, int count) throws Throwable {
+        for (int i = from; i < from + count; i++) last = op.run(i);
+    }
+}
@@ -0,0 +1,127 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+
+// Bajtovi po paketu i CPU za encode/decode: Kryo FieldSerializer (stari format)
+// naspram ChatPacketSerializer-a (maska + varint-ovi), za tipicne vrste poruka.
+// Kolona "handles" je isti serializer sa recnikom imena sesije (UserDirectory).
+// Bez JMH-a (projekat nema build sistem): zagrevanje + CPU vreme niti kao u FanOutBenchmark.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.PacketSerializerBenchmark
+public class PacketSerializerBenchmark {
+
+    static final int ITERATIONS = 200_000;
+
+    public static void main(String[] args) {
+        Kryo field = KryoUtil.newKryo(null);
+        field.register(ChatPacket.class, new FieldSerializer<>(field, ChatPacket.class), 107);
+
+        Kryo compact = KryoUtil.newKryo(null);
+
+        UserDirectory names = new UserDirectory();
+        for (String user : new String[] { "ZoranB", "jelena", "marko", "ana", "bob", "cid" }) names.register(user);
+        Kryo handles = KryoUtil.newKryo(names);
+
+        String[] kinds = { "public", "dm", "mcast", "reply", "edit", "room" };
+        ChatPacket[] packets = samples();
+
+        Output out = new Output(4096);
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+        // warmup
+        for (int i = 0; i < 3; i++) {
+            for (ChatPacket p : packets) {
+                run(field, out, p, ITERATIONS / 10, mx);
+                run(compact, out, p, ITERATIONS / 10, mx);
+            }
+        }
+
+        System.out.printf("%-8s %8s %8s %8s %7s %12s %12s %12s %12s%n",
+                "packet", "field B", "compact B", "handles B", "saved", "field enc", "compact enc", "field dec", "compact dec");
+        long fieldTotal = 0;
+        long compactTotal = 0;
+        long handlesTotal = 0;
+        for (int i = 0; i < packets.length; i++) {
+            ChatPacket p = packets[i];
+            int fb = size(field, out, p);
+            int cb = size(compact, out, p);
+            int hb = size(handles, out, p);
+            fieldTotal += fb;
+            compactTotal += cb;
+            handlesTotal += hb;
+
+            long[] f = run(field, out, p, ITERATIONS, mx);
+            long[] c = run(compact, out, p, ITERATIONS, mx);
+            System.out.printf("%-8s %8d %8d %8d %6.0f%% %10.0fns %10.0fns %10.0fns %10.0fns%n",
+                    kinds[i], fb, cb, hb, 100.0 * (fb - hb) / fb,
+                    f[0] / (double) ITERATIONS, c[0] / (double) ITERATIONS,
+                    f[1] / (double) ITERATIONS, c[1] / (double) ITERATIONS);
+        }
+        System.out.printf("%-8s %8.1f %8.1f %8.1f %6.0f%%%n", "avg",
+                fieldTotal / (double) packets.length, compactTotal / (double) packets.length,
+                handlesTotal / (double) packets.length, 100.0 * (fieldTotal - handlesTotal) / fieldTotal);
+    }
+
+    static int size(Kryo kryo, Output out, ChatPacket p) {
+        out.clear();
+        kryo.writeClassAndObject(out, p);
+        ChatPacket back = (ChatPacket) kryo.readClassAndObject(new Input(out.toBytes()));
+        if (back.id != p.id || back.timestamp != p.timestamp || back.replyToId != p.replyToId
+                || back.editTargetId != p.editTargetId || !String.valueOf(back.text).equals(String.valueOf(p.text))) {
+            throw new IllegalStateException("round trip failed for " + p.type);
+        }
+        return out.position();
+    }
+
+    // [encode ns, decode ns] ukupno
+    static long[] run(Kryo kryo, Output out, ChatPacket p, int iterations, ThreadMXBean mx) {
+        long t0 = mx.getCurrentThreadCpuTime();
+        for (int i = 0; i < iterations; i++) {
+            out.clear();
+            kryo.writeClassAndObject(out, p);
+        }
+        long t1 = mx.getCurrentThreadCpuTime();
+
+        byte[] bytes = out.toBytes();
+        Input in = new Input(bytes);
+        for (int i = 0; i < iterations; i++) {
+            in.setBuffer(bytes);
+            kryo.readClassAndObject(in);
+        }
+        long t2 = mx.getCurrentThreadCpuTime();
+        return new long[] { t1 - t0, t2 - t1 };
+    }
+
+    static ChatPacket[] samples() {
+        long now = System.currentTimeMillis();
+
+        ChatPacket pub = ChatPacket.publicMsg("ZoranB", "Pozdrav svima, ovo je obicna poruka.");
+        ChatPacket dm = ChatPacket.dm("ZoranB", "jelena", "vidimo se u 5?");
+        ChatPacket mcast = ChatPacket.mcast("ZoranB", new String[] { "jelena", "marko", "ana", "bob", "cid" }, "sastanak pomeren");
+        ChatPacket reply = ChatPacket.publicMsg("jelena", "slazem se");
+        reply.replyToId = 123400;
+        reply.replyAuthor = "ZoranB";
+        reply.replyExcerpt = "Pozdrav svima, ovo je obicna p...";
+        ChatPacket edit = ChatPacket.edit("ZoranB", 123456, "Pozdrav svima!");
+        edit.edited = true;
+        ChatPacket room = ChatPacket.room("marko", "projekat", "commit je na masteru");
+
+        ChatPacket[] all = { pub, dm, mcast, reply, edit, room };
+        long id = 123456;
+        for (ChatPacket p : all) {
+            p.id = id++;
+            p.timestamp = now;
+        }
+        return all;
+    }
+}
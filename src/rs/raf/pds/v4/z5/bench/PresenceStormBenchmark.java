@@ -0,0 +1,145 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.minlog.Log;
+
+import rs.raf.pds.v4.z5.ChatServer;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.messages.ListUsers;
+import rs.raf.pds.v4.z5.messages.Login;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
+import rs.raf.pds.v4.z5.messages.PresenceSubscribe;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+import rs.raf.pds.v4.z5.messages.UserHandles;
+
+// Talas prijava (N klijenata odjednom, kao posle deploy-a) pa odjava polovine. Svi su pretplaceni na
+// prisutnost; meri se broj okvira prisutnosti (UserHandles + ListUsers) koje su klijenti primili i
+// vreme dok lista online korisnika kod svih ne bude tacna. "per-event" je flushMillis=0 (delta za
+// svaki dogadjaj, isto O(N^2) kao stari InfoMessage svima), "batched" je podrazumevani prozor.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.PresenceStormBenchmark [klijenata]
+public class PresenceStormBenchmark {
+
+    static final int PORT = 55700;
+    static final long TIMEOUT_MS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        Log.set(Log.LEVEL_WARN);
+        long batched = ChatServer.PRESENCE_FLUSH_MILLIS > 0 ? ChatServer.PRESENCE_FLUSH_MILLIS : 250;
+
+        long legacyLogin = (long) clients * (clients - 1);
+        long legacyLogout = 0;
+        for (int i = 1; i <= clients / 2; i++) legacyLogout += clients - i;
+        System.out.printf("%d clients; old InfoMessage + UserHandles per event: %,d sends on login, %,d on logout%n",
+                clients, legacyLogin, legacyLogout);
+        System.out.printf("%-10s %-7s %12s %12s %12s%n", "mode", "phase", "frames", "per client", "converge ms");
+
+        boolean ok = run("per-event", 0, clients, PORT);
+        ok &= run("batched", batched, clients, PORT + 1);
+        System.out.println(ok ? "OK" : "FAILED: views did not converge");
+        System.exit(ok ? 0 : 1);
+    }
+
+    static boolean run(String mode, long flushMillis, int clients, int port) throws Exception {
+        File dir = Files.createTempDirectory("presence-bench").toFile();
+        ChatServer.STORE_DIR = dir.getPath();
+        ChatServer.PRESENCE_FLUSH_MILLIS = flushMillis;
+        ChatServer server = new ChatServer(port);
+        server.start();
+
+        AtomicLong frames = new AtomicLong();
+        List<Member> members = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) members.add(new Member("u" + i, port, frames));
+        boolean ok = converge(members, clients);
+        report(mode, "login", frames.getAndSet(0), clients, start, ok);
+
+        start = System.nanoTime();
+        for (int i = 0; i < clients / 2; i++) members.remove(members.size() - 1).client.stop();
+        boolean left = converge(members, members.size());
+        report(mode, "logout", frames.get(), members.size(), start, left);
+        System.out.println("  server: " + server.getPresenceReport());
+
+        for (Member m : members) m.client.stop();
+        server.stop();
+        ClusterLatencyBenchmark.delete(dir);
+        return ok && left;
+    }
+
+    static boolean converge(List<Member> members, int online) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            boolean all = true;
+            for (Member m : members) {
+                if (m.online() != online) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) return true;
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    static void report(String mode, String phase, long frames, int clients, long start, boolean ok) {
+        System.out.printf("%-10s %-7s %,12d %12.1f %12s%n", mode, phase, frames, frames / (double) clients,
+                ok ? Long.toString((System.nanoTime() - start) / 1_000_000) : "timeout");
+    }
+
+    static class Member extends Listener {
+        final UserDirectory names = new UserDirectory();
+        final Kryo kryo = KryoUtil.newKryo(names);
+        final BitSet online = new BitSet();
+        final AtomicLong frames;
+        final Client client;
+
+        Member(String name, int port, AtomicLong frames) throws IOException {
+            this.frames = frames;
+            this.client = new Client(65536, 65536);
+            KryoUtil.registerKryoClasses(client.getKryo(), names);
+            client.addListener(this);
+            client.start();
+            client.connect(5000, "localhost", port);
+            client.sendTCP(new Login(name));
+            client.sendTCP(new PresenceSubscribe(true));
+        }
+
+        synchronized int online() {
+            return online.cardinality();
+        }
+
+        public void received(Connection connection, Object object) {
+            if (object instanceof PacketBatch) {
+                for (Object o : ((PacketBatch) object).unpack(kryo)) handle(o);
+            } else {
+                handle(object);
+            }
+        }
+
+        synchronized void handle(Object object) {
+            if (object instanceof UserHandles) {
+                UserHandles u = (UserHandles) object;
+                for (int i = 0; i < u.handles.length; i++) names.put(u.handles[i], u.names[i]);
+                frames.incrementAndGet();
+            } else if (object instanceof ListUsers) {
+                ListUsers l = (ListUsers) object;
+                for (int h : l.getRemoved()) online.clear(h);
+                for (int h : l.getAdded()) online.set(h);
+                frames.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package rs.raf.pds.v4.z5.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.rmi.ChatServiceImpl;
+import rs.raf.pds.v4.z5.rooms.RoomHistory;
+
+// Stres test za istoriju soba:
+//  1) po jedan pisac po sobi + vise citalaca bez zakljucavanja; svaka stranica mora biti
+//     rastuca i bez rupa (ID-jevi u sobi su 1..N), a listanje kursorima ne sme da preskoci poruku;
+//  2) create/join preko ChatServiceImpl iz 1..N niti u razlicitim sobama (skaliranje).
+// Segmenti su mali, pa se prelaz preko granice segmenta desava stalno.
+// Izlazni kod 1 ako je nadjena greska.
+//
+// Pokretanje: java -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.bench.RoomHistoryStress
+public class RoomHistoryStress {
+
+    static final int ROOMS = 4;
+    static final int MESSAGES = 200_000;
+    static final int READERS_PER_ROOM = 3;
+    static final int SEGMENT_BYTES = 64 * 1024;
+
+    static final int JOIN_ROOMS = 256;
+    static final int JOINS_PER_THREAD = 200_000;
+
+    static final AtomicLong errors = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("room-stress").toFile();
+        try {
+            readersVsWriter(new File(dir, "history"));
+            joins(new File(dir, "service"));
+        } finally {
+            delete(dir);
+        }
+
+        System.out.println(errors.get() == 0 ? "OK" : "FAILED: " + errors.get() + " errors");
+        System.exit(errors.get() == 0 ? 0 : 1);
+    }
+
+    // ===== 1) jedan pisac, vise citalaca =====
+
+    static void readersVsWriter(File dir) throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong pages = new AtomicLong();
+        Thread[] threads = new Thread[ROOMS * (1 + READERS_PER_ROOM)];
+        int t = 0;
+
+        for (int r = 0; r < ROOMS; r++) {
+            RoomHistory history = RoomHistory.create(new File(dir, "room-" + r), SEGMENT_BYTES);
+            String room = "room-" + r;
+
+            threads[t++] = new Thread(() -> {
+                for (int id = 1; id <= MESSAGES; id++) {
+                    ChatPacket p = ChatPacket.publicMsg("user" + (id % 17), room + " poruka " + id);
+                    p.id = id;
+                    p.timestamp = id;
+                    if (!history.append(p)) fail("append odbijen za " + id);
+                }
+            }, "writer-" + r);
+
+            for (int i = 0; i < READERS_PER_ROOM; i++) {
+                int mode = i;
+                threads[t++] = new Thread(() -> {
+                    while (!done.get()) {
+                        if (mode == 0) checkLatest(history);
+                        else if (mode == 1) checkBackwards(history);
+                        else checkForwards(history);
+                        pages.incrementAndGet();
+                    }
+                }, "reader-" + r + "-" + i);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (Thread th : threads) th.start();
+        for (int i = 0; i < threads.length; i += 1 + READERS_PER_ROOM) threads[i].join();
+        done.set(true);
+        for (Thread th : threads) th.join();
+        long ms = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("history: %d rooms x %d messages, %d reader passes, %d ms%n",
+                ROOMS, MESSAGES, pages.get(), ms);
+    }
+
+    static void checkLatest(RoomHistory history) {
+        long last = history.lastId();
+        List<ChatPacket> page = history.latest(50);
+        checkAscending(page, "latest");
+        // soba moze samo da raste: poslednja poruka nije starija od procitanog lastId
+        if (!page.isEmpty() && page.get(page.size() - 1).id < last) fail("latest stariji od lastId");
+    }
+
+    // od kraja ka pocetku kursorima (pozicija iz prethodne stranice)
+    static void checkBackwards(RoomHistory history) {
+        RoomHistory.Slice s = history.olderPage(Long.MAX_VALUE, -1, 200);
+        long expectedLast = -1;
+        int steps = 0;
+        while (!s.messages.isEmpty() && steps++ < 50) {
+            checkAscending(s.messages, "older");
+            long lastId = s.messages.get(s.messages.size() - 1).id;
+            if (expectedLast >= 0 && lastId != expectedLast) fail("rupa pri listanju unazad: " + lastId + " != " + expectedLast);
+            long firstId = s.messages.get(0).id;
+            expectedLast = firstId - 1;
+            if (!s.hasOlder) break;
+            s = history.olderPage(firstId, s.firstPosition, 200);
+        }
+    }
+
+    // od pocetka ka kraju, dok se pisac i dalje trudi
+    static void checkForwards(RoomHistory history) {
+        RoomHistory.Slice s = history.newerPage(Long.MIN_VALUE, -1, 500);
+        long expectedFirst = 1;
+        int steps = 0;
+        while (!s.messages.isEmpty() && steps++ < 50) {
+            checkAscending(s.messages, "newer");
+            long firstId = s.messages.get(0).id;
+            if (firstId != expectedFirst) fail("rupa pri listanju unapred: " + firstId + " != " + expectedFirst);
+            long lastId = s.messages.get(s.messages.size() - 1).id;
+            expectedFirst = lastId + 1;
+            if (!s.hasNewer) break;
+            s = history.newerPage(lastId, s.lastPosition, 500);
+        }
+    }
+
+    static void checkAscending(List<ChatPacket> page, String what) {
+        for (int i = 1; i < page.size(); i++) {
+            if (page.get(i).id != page.get(i - 1).id + 1) {
+                fail(what + ": " + page.get(i - 1).id + " -> " + page.get(i).id);
+                return;
+            }
+        }
+        for (ChatPacket p : page) {
+            if (p.text == null || !p.text.endsWith(" " + p.id)) {
+                fail(what + ": ostecena poruka " + p.id);
+                return;
+            }
+        }
+    }
+
+    // ===== 2) create/join u razlicitim sobama =====
+
+    static void joins(File dir) throws Exception {
+        ChatServiceImpl service = new ChatServiceImpl(dir);
+        for (int r = 0; r < JOIN_ROOMS; r++) service.createRoom("soba" + r, "owner");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%-8s %14s %14s%n", "threads", "joins/s", "scaling");
+        double base = 0;
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            double rate = joinRate(service, threads);
+            if (threads == 1) base = rate;
+            System.out.printf("%-8d %14.0f %13.2fx%n", threads, rate, rate / base);
+        }
+
+        // istovremeno kreiranje iste sobe: tacno jedan uspeh
+        for (int round = 0; round < 100; round++) {
+            String name = "trka" + round;
+            int contenders = Math.max(2, cores);
+            AtomicLong wins = new AtomicLong();
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] ts = new Thread[contenders];
+            for (int i = 0; i < contenders; i++) {
+                String owner = "o" + i;
+                ts[i] = new Thread(() -> {
+                    try {
+                        go.await();
+                        if (service.createRoom(name, owner)) wins.incrementAndGet();
+                        if (service.joinRoom(name, owner + "-join") == null) fail("join vratio null");
+                    } catch (Exception e) {
+                        fail(e.toString());
+                    }
+                });
+                ts[i].start();
+            }
+            go.countDown();
+            for (Thread th : ts) th.join();
+            if (wins.get() != 1) fail(name + ": " + wins.get() + " uspesnih createRoom");
+        }
+    }
+
+    static double joinRate(ChatServiceImpl service, int threads) throws InterruptedException {
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int seed = i;
+            ts[i] = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int n = 0; n < JOINS_PER_THREAD; n++) {
+                        String room = "soba" + ((seed * 31 + n) % JOIN_ROOMS);
+                        service.joinRoom(room, "u" + (n & 1023));
+                    }
+                } catch (Exception e) {
+                    fail(e.toString());
+                }
+            });
+            ts[i].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread th : ts) th.join();
+        double sec = (System.nanoTime() - start) / 1e9;
+        return (double) threads * JOINS_PER_THREAD / sec;
+    }
+
+    // ===== pomocne =====
+
+    static void fail(String msg) {
+        if (errors.incrementAndGet() <= 20) System.err.println("ERROR " + msg);
+    }
+
+    static void delete(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+}
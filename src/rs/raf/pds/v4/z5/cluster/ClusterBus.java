@@ -0,0 +1,262 @@
+package rs.raf.pds.v4.z5.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.FrameworkMessage;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.kryonet.Server;
+
+import rs.raf.pds.v4.z5.log.ServerLog;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.messages.NodeHello;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
+import rs.raf.pds.v4.z5.net.EncodedPacket;
+import rs.raf.pds.v4.z5.net.FanOutSerialization;
+import rs.raf.pds.v4.z5.net.OutboundQueue;
+
+// Binarna veza izmedju cvorova klastera: KryoNet sa istim registracijama kao prema klijentima,
+// ali bez recnika imena (handle-ovi vaze samo na jednom cvoru). Svaki par cvorova ima jednu TCP vezu:
+// cvor sa vecim ID-jem se povezuje na manji i prvo salje NodeHello; prekinuta veza se ponovo
+// uspostavlja. Slanje ide kroz OutboundQueue (batch prozor, bez izbacivanja; prepun red prekida vezu).
+public class ClusterBus {
+
+    private static final ServerLog.Channel LOG = ServerLog.channel("cluster");
+
+    public interface Handler {
+        void peerUp(int nodeId);
+
+        void peerDown(int nodeId);
+
+        // sa KryoNet niti veze; redosled poruka jednog cvora je ocuvan
+        void received(int nodeId, Object message);
+    }
+
+    // -Dchat.cluster.linkBuffer=N -Dchat.cluster.queue=N -Dchat.cluster.windowMicros=N
+    public static int LINK_BUFFER_SIZE = Integer.getInteger("chat.cluster.linkBuffer", 256 * 1024);
+    public static int LINK_OBJECT_SIZE = 64 * 1024;
+    public static int LINK_QUEUE_CAPACITY = Integer.getInteger("chat.cluster.queue", 65536);
+    public static long LINK_WINDOW_MICROS = Long.getLong("chat.cluster.windowMicros", 200);
+    public static long RECONNECT_MILLIS = 1000;
+
+    private final int nodeId;
+    private final int[] nodeIds;
+    private final Map<Integer, InetSocketAddress> addresses;
+
+    // enkodovanje jednom za sve veze (iste registracije na svim vezama)
+    private final FanOutSerialization encoder = new FanOutSerialization();
+    private final Server server;
+    private final Map<Integer, Client> clients = new TreeMap<>();
+
+    private final ConcurrentMap<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Connection, Integer> connectionNodes = new ConcurrentHashMap<>();
+    private final ThreadLocal<Kryo> decoders = ThreadLocal.withInitial(() -> KryoUtil.newKryo(null));
+
+    private final ScheduledExecutorService flusher = daemon("cluster-flush");
+    private final ScheduledExecutorService connector = daemon("cluster-connect");
+
+    private volatile Handler handler;
+
+    private static final class Peer {
+        final Connection connection;
+        final OutboundQueue outbound;
+
+        Peer(Connection connection, OutboundQueue outbound) {
+            this.connection = connection;
+            this.outbound = outbound;
+        }
+    }
+
+    public ClusterBus(int nodeId, Map<Integer, InetSocketAddress> nodes) {
+        if (!nodes.containsKey(nodeId)) throw new IllegalArgumentException("Node " + nodeId + " is not in " + nodes.keySet());
+
+        this.nodeId = nodeId;
+        this.addresses = new TreeMap<>(nodes);
+        this.nodeIds = addresses.keySet().stream().mapToInt(Integer::intValue).toArray();
+
+        KryoUtil.registerKryoClasses(encoder.getKryo());
+        this.server = new Server(LINK_BUFFER_SIZE, LINK_OBJECT_SIZE, new FanOutSerialization());
+        KryoUtil.registerKryoClasses(server.getKryo());
+        server.addListener(new LinkListener(-1));
+
+        for (int id : nodeIds) {
+            if (id >= nodeId) continue;
+            Client client = new Client(LINK_BUFFER_SIZE, LINK_OBJECT_SIZE, new FanOutSerialization());
+            KryoUtil.registerKryoClasses(client.getKryo());
+            client.addListener(new LinkListener(id));
+            clients.put(id, client);
+        }
+    }
+
+    // "1=host:port,2=host:port"
+    public static Map<Integer, InetSocketAddress> parseNodes(String spec) {
+        Map<Integer, InetSocketAddress> nodes = new TreeMap<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int eq = part.indexOf('=');
+            int colon = part.lastIndexOf(':');
+            if (eq < 0 || colon < eq) throw new IllegalArgumentException("Bad cluster node: " + part);
+            nodes.put(Integer.parseInt(part.substring(0, eq).trim()),
+                    new InetSocketAddress(part.substring(eq + 1, colon).trim(), Integer.parseInt(part.substring(colon + 1).trim())));
+        }
+        return nodes;
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void start() throws IOException {
+        server.start();
+        server.bind(addresses.get(nodeId).getPort());
+        for (Client client : clients.values()) client.start();
+        connector.scheduleWithFixedDelay(this::connectPeers, 0, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        connector.shutdownNow();
+        flusher.shutdown();
+        for (Client client : clients.values()) client.stop();
+        server.stop();
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int[] getNodeIds() {
+        return nodeIds.clone();
+    }
+
+    // vlasnik sobe: isto preslikavanje na svim cvorovima (zavisi samo od konfiguracije)
+    public int ownerOf(String room) {
+        return nodeIds[Math.floorMod(room.hashCode(), nodeIds.length)];
+    }
+
+    public boolean isUp(int node) {
+        return peers.containsKey(node);
+    }
+
+    // false ako veza sa cvorom trenutno ne postoji
+    public boolean send(int node, Object message, OutboundQueue.Kind kind) {
+        Peer peer = peers.get(node);
+        if (peer == null) return false;
+        peer.outbound.send(encoder.encode(message), kind, -1);
+        return true;
+    }
+
+    // svim povezanim cvorovima; poruka se serijalizuje jednom
+    public void broadcast(Object message, OutboundQueue.Kind kind) {
+        if (peers.isEmpty()) return;
+        EncodedPacket frame = encoder.encode(message);
+        for (Peer peer : peers.values()) peer.outbound.send(frame, kind, -1);
+    }
+
+    public String linkReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Peer> e : new TreeMap<>(peers).entrySet()) {
+            sb.append("node ").append(e.getKey()).append(": ").append(e.getValue().outbound.lagReport()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void connectPeers() {
+        for (Map.Entry<Integer, Client> e : clients.entrySet()) {
+            Client client = e.getValue();
+            if (client.isConnected()) continue;
+            InetSocketAddress address = addresses.get(e.getKey());
+            try {
+                client.connect(2000, address.getHostString(), address.getPort());
+            } catch (IOException ex) {
+                // cvor jos nije podignut, probamo ponovo
+            }
+        }
+    }
+
+    private void peerConnected(int node, Connection connection) {
+        OutboundQueue outbound = new OutboundQueue(connection, LINK_BUFFER_SIZE, LINK_QUEUE_CAPACITY,
+                LINK_QUEUE_CAPACITY * 4, OutboundQueue.Policy.DISCONNECT, false,
+                encoder, flusher, LINK_WINDOW_MICROS * 1000, LINK_OBJECT_SIZE / 2);
+        connectionNodes.put(connection, node);
+        Peer old = peers.put(node, new Peer(connection, outbound));
+        if (old != null && old.connection != connection) old.connection.close();
+        LOG.info("connected node=" + node);
+
+        Handler h = handler;
+        if (h != null) h.peerUp(node);
+    }
+
+    private void peerDisconnected(Connection connection) {
+        Integer node = connectionNodes.remove(connection);
+        if (node == null) return;
+        Peer peer = peers.get(node);
+        if (peer == null || peer.connection != connection || !peers.remove(node, peer)) return;
+        peer.outbound.clear();
+        LOG.info("disconnected node=" + node);
+
+        Handler h = handler;
+        if (h != null) h.peerDown(node);
+    }
+
+    // remote = cvor na koji smo se mi povezali; -1 za veze koje je prihvatio server (NodeHello kaze ciji su)
+    private final class LinkListener extends Listener {
+        private final int remote;
+
+        LinkListener(int remote) {
+            this.remote = remote;
+        }
+
+        public void connected(Connection connection) {
+            if (remote < 0) return;
+            connection.sendTCP(new NodeHello(nodeId));
+            peerConnected(remote, connection);
+        }
+
+        public void idle(Connection connection) {
+            Integer node = connectionNodes.get(connection);
+            Peer peer = node == null ? null : peers.get(node);
+            if (peer != null && peer.connection == connection) peer.outbound.drainIfReady();
+        }
+
+        public void received(Connection connection, Object object) {
+            if (object instanceof FrameworkMessage) return;
+            if (object instanceof NodeHello) {
+                peerConnected(((NodeHello) object).nodeId, connection);
+                return;
+            }
+
+            Integer node = connectionNodes.get(connection);
+            Handler h = handler;
+            if (node == null || h == null) return;
+
+            if (object instanceof PacketBatch) {
+                for (Object o : ((PacketBatch) object).unpack(decoders.get())) h.received(node, o);
+                return;
+            }
+            h.received(node, object);
+        }
+
+        public void disconnected(Connection connection) {
+            peerDisconnected(connection);
+        }
+    }
+
+    private static ScheduledExecutorService daemon(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,459 @@
+package rs.raf.pds.v4.z5.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryonet.FrameworkMessage;
+import com.esotericsoftware.kryonet.KryoSerialization;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.Compression;
+import rs.raf.pds.v4.z5.messages.InfoMessage;
+import rs.raf.pds.v4.z5.messages.KryoUtil;
+import rs.raf.pds.v4.z5.messages.Login;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
+import rs.raf.pds.v4.z5.messages.PacketType;
+import rs.raf.pds.v4.z5.messages.RoomRequest;
+import rs.raf.pds.v4.z5.messages.RoomResponse;
+import rs.raf.pds.v4.z5.messages.UserDirectory;
+import rs.raf.pds.v4.z5.messages.UserHandles;
+
+// Jedna nit, jedan Selector, stotine simuliranih korisnika. KryoNet Client ovde ne valja: svaki ima
+// svoju nit i bafere, a update(0) posle 100 praznih select-a spava 25 ms (stala bi cela petlja).
+// Okviri su isti kao KryoNet TCP ([int duzina][Kryo objekat], ista KryoSerialization), pa je server
+// neizmenjen. Handle-ovi imena su isti za sve konekcije jednog servera - jedan UserDirectory po niti.
+//
+// Slanje je otvorena petlja: svaki korisnik ima svoj Random (seed + indeks) iz kog dolaze i vremena
+// slanja (eksponencijalni razmaci) i vrsta akcije, pa je raspored isti pri svakom pokretanju.
+final class ClientLoop implements Runnable {
+
+    // KryoNet server zatvara vezu posle 12 s bez ijednog bajta
+    static final long KEEPALIVE_NANOS = 5_000_000_000L;
+    static final int BUFFER_BYTES = 8192;
+    static final int RECENT = 16;
+
+    enum Action { PUBLIC, DM, MCAST, REPLY, EDIT, ROOM, HISTORY }
+
+    static final class User {
+        final int index;
+        final String name;
+        final Random rnd;
+        final String room;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+        boolean loggedIn;
+        long nextAction;
+        long lastWrite;
+
+        // RTT: sekvenca u tekstu -> vreme slanja
+        int seq;
+        final long[] sentAt = new long[1024];
+        // poslednji sopstveni ID-jevi (edit) i tudji PUBLIC (reply)
+        final long[] ownIds = new long[RECENT];
+        int ownCount;
+        final long[] publicIds = new long[RECENT];
+        int publicCount;
+        long historySent;
+
+        User(int index, String name, long seed, String room) {
+            this.index = index;
+            this.name = name;
+            this.rnd = new Random(seed * 1_000_003L + index);
+            this.room = room;
+        }
+    }
+
+    private final LoadScenario scenario;
+    private final InetSocketAddress address;
+    private final Selector selector;
+    private final Kryo kryo = new Kryo();
+    private final KryoSerialization serialization = new KryoSerialization(kryo);
+    private final UserDirectory names = new UserDirectory();
+    private final Action[] actions;
+    private final String padding;
+
+    private final List<User> users = new ArrayList<>();
+    private final PriorityQueue<User> schedule = new PriorityQueue<>((a, b) -> Long.compare(a.nextAction, b.nextAction));
+    private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile boolean sending;
+    private int connectNext;
+    private long connectAt;
+    private final long connectInterval;
+
+    // za LoadGenerator
+    final AtomicInteger loggedIn = new AtomicInteger();
+    final AtomicInteger roomsReady = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+
+    // statistika (samo nit petlje; LoadGenerator cita kroz command() ili posle join-a)
+    final LatencyHistogram delivery = new LatencyHistogram();
+    final LatencyHistogram rtt = new LatencyHistogram();
+    final LatencyHistogram history = new LatencyHistogram();
+    final long[] sent = new long[Action.values().length];
+    long received;
+    long busy;
+
+    ClientLoop(LoadScenario scenario, InetSocketAddress address, int loops) throws IOException {
+        this.scenario = scenario;
+        this.address = address;
+        this.selector = Selector.open();
+        this.connectInterval = 1_000_000_000L * loops / Math.max(1, scenario.connectRate);
+        // kao KryoSerialization() u KryoNet Client-u
+        kryo.setReferences(false);
+        kryo.setRegistrationRequired(true);
+        KryoUtil.registerKryoClasses(kryo, names);
+
+        // tabela akcija po tezinama: rnd.nextInt(length) bira akciju
+        List<Action> table = new ArrayList<>();
+        int[] weights = { scenario.publicWeight, scenario.dmWeight, scenario.mcastWeight, scenario.replyWeight,
+                scenario.editWeight, scenario.roomWeight, scenario.historyWeight };
+        for (Action a : Action.values()) {
+            for (int i = 0; i < weights[a.ordinal()]; i++) table.add(a);
+        }
+        this.actions = table.toArray(new Action[0]);
+        char[] pad = new char[Math.max(0, scenario.textBytes)];
+        Arrays.fill(pad, 'x');
+        this.padding = new String(pad);
+    }
+
+    void add(User user) {
+        users.add(user);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    // izvrsava se na niti petlje (pristup statistici i korisnicima bez zakljucavanja)
+    void command(Runnable r) {
+        commands.add(r);
+        selector.wakeup();
+    }
+
+    void setSending(boolean sending) {
+        command(() -> {
+            this.sending = sending;
+            if (!sending) return;
+            long now = System.nanoTime();
+            schedule.clear();
+            for (User u : users) {
+                if (u.channel == null) continue;
+                u.nextAction = now + interArrival(u);
+                schedule.add(u);
+            }
+        });
+    }
+
+    void resetStats() {
+        command(() -> {
+            delivery.reset();
+            rtt.reset();
+            history.reset();
+            Arrays.fill(sent, 0);
+            received = busy = 0;
+        });
+    }
+
+    // sobe: prvi korisnik svake sobe je pravi, zatim svi ulaze u svoju
+    void createRooms() {
+        command(() -> {
+            for (User u : users) {
+                if (u.index < scenario.rooms) roomRequest(u, RoomRequest.Op.CREATE);
+            }
+        });
+    }
+
+    void joinRooms() {
+        command(() -> {
+            for (User u : users) roomRequest(u, RoomRequest.Op.JOIN);
+        });
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.nanoTime();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                long wait = 100;
+                if (connectNext < users.size()) wait = Math.min(wait, Math.max(1, (connectAt - now) / 1_000_000));
+                if (sending && !schedule.isEmpty()) wait = Math.min(wait, Math.max(1, (schedule.peek().nextAction - now) / 1_000_000));
+                selector.select(wait);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    User u = (User) key.attachment();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isConnectable()) finishConnect(u);
+                        if (key.isValid() && key.isReadable()) read(u);
+                        if (key.isValid() && key.isWritable()) flush(u);
+                    } catch (IOException | RuntimeException e) {
+                        fail(u, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                Runnable r;
+                while ((r = commands.poll()) != null) r.run();
+
+                now = System.nanoTime();
+                while (connectNext < users.size() && now >= connectAt) {
+                    connect(users.get(connectNext++));
+                    connectAt = Math.max(connectAt + connectInterval, now - 10 * connectInterval);
+                }
+                if (sending) {
+                    while (!schedule.isEmpty() && schedule.peek().nextAction <= now) {
+                        User u = schedule.poll();
+                        if (u.channel == null) continue;
+                        act(u, now);
+                        u.nextAction += interArrival(u);
+                        schedule.add(u);
+                    }
+                }
+                if (now - lastSweep > 1_000_000_000L) {
+                    lastSweep = now;
+                    for (User u : users) {
+                        if (u.channel != null && u.loggedIn && now - u.lastWrite > KEEPALIVE_NANOS) {
+                            send(u, new FrameworkMessage.KeepAlive());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (User u : users) close(u);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // kraj
+            }
+        }
+    }
+
+    private long interArrival(User u) {
+        return (long) (-Math.log(1 - u.rnd.nextDouble()) / scenario.rate * 1e9);
+    }
+
+    // ===== akcije =====
+
+    private void act(User u, long now) {
+        Action a = actions.length == 0 ? Action.PUBLIC : actions[u.rnd.nextInt(actions.length)];
+        // reply/edit bez mete i istorija dok prethodna ceka postaju obicne poruke (isti broj slanja)
+        if (a == Action.REPLY && u.publicCount == 0) a = Action.PUBLIC;
+        if (a == Action.EDIT && u.ownCount == 0) a = Action.PUBLIC;
+        if (a == Action.HISTORY && u.historySent != 0) a = Action.ROOM;
+
+        String text = "#" + (u.seq & (u.sentAt.length - 1)) + "|" + padding;
+        u.sentAt[u.seq & (u.sentAt.length - 1)] = now;
+        u.seq++;
+        ChatPacket p;
+        switch (a) {
+            case DM:
+                p = ChatPacket.dm(u.name, other(u), text);
+                break;
+            case MCAST:
+                String[] to = new String[scenario.mcastSize];
+                for (int i = 0; i < to.length; i++) to[i] = other(u);
+                p = ChatPacket.mcast(u.name, to, text);
+                break;
+            case REPLY:
+                p = ChatPacket.publicMsg(u.name, text);
+                p.replyToId = u.publicIds[u.rnd.nextInt(Math.min(RECENT, u.publicCount))];
+                break;
+            case EDIT:
+                p = ChatPacket.edit(u.name, u.ownIds[u.rnd.nextInt(Math.min(RECENT, u.ownCount))], text);
+                break;
+            case ROOM:
+                p = ChatPacket.room(u.name, u.room, text);
+                break;
+            case HISTORY:
+                u.historySent = now;
+                RoomRequest request = new RoomRequest(u.index, RoomRequest.Op.OLDER, u.room);
+                request.limit = scenario.historyPage;
+                send(u, request);
+                sent[a.ordinal()]++;
+                return;
+            default:
+                p = ChatPacket.publicMsg(u.name, text);
+        }
+        send(u, p);
+        sent[a.ordinal()]++;
+    }
+
+    private String other(User u) {
+        int i = u.rnd.nextInt(scenario.users - 1);
+        return "u" + (i >= u.index ? i + 1 : i);
+    }
+
+    private void roomRequest(User u, RoomRequest.Op op) {
+        if (u.channel == null) return;
+        RoomRequest request = new RoomRequest(u.index, op, u.room);
+        request.limit = 1;
+        send(u, request);
+    }
+
+    // ===== prijem =====
+
+    private void handle(User u, Object o) {
+        if (o instanceof PacketBatch) {
+            for (Object inner : ((PacketBatch) o).unpack(kryo)) handle(u, inner);
+        } else if (o instanceof ChatPacket) {
+            onPacket(u, (ChatPacket) o);
+        } else if (o instanceof FrameworkMessage.RegisterTCP) {
+            send(u, new Login(u.name, Compression.NONE, 0));
+        } else if (o instanceof UserHandles) {
+            UserHandles h = (UserHandles) o;
+            for (int i = 0; i < h.handles.length; i++) names.put(h.handles[i], h.names[i]);
+        } else if (o instanceof InfoMessage) {
+            String text = ((InfoMessage) o).getTxt();
+            if (!u.loggedIn && text.startsWith("Hello ")) {
+                u.loggedIn = true;
+                loggedIn.incrementAndGet();
+            } else if (text.contains("busy")) {
+                busy++;
+            }
+        } else if (o instanceof RoomResponse) {
+            RoomResponse r = (RoomResponse) o;
+            if (r.op == RoomRequest.Op.OLDER && u.historySent != 0) {
+                history.record((System.nanoTime() - u.historySent) / 1000);
+                u.historySent = 0;
+            } else if (r.op == RoomRequest.Op.CREATE || r.op == RoomRequest.Op.JOIN) {
+                if (r.ok) roomsReady.incrementAndGet();
+                else failures.incrementAndGet();
+            }
+        }
+    }
+
+    private void onPacket(User u, ChatPacket p) {
+        received++;
+        // EDIT nosi timestamp originalne poruke
+        if (p.timestamp > 0 && p.type != PacketType.EDIT) delivery.record((System.currentTimeMillis() - p.timestamp) * 1000);
+        if (u.name.equals(p.from)) {
+            int bar = p.text == null ? -1 : p.text.indexOf('|');
+            if (p.text != null && p.text.startsWith("#") && bar > 1) {
+                long at = u.sentAt[Integer.parseInt(p.text, 1, bar, 10)];
+                if (at != 0) rtt.record((System.nanoTime() - at) / 1000);
+            }
+            if (p.type != PacketType.EDIT) u.ownIds[u.ownCount++ % RECENT] = p.id;
+        } else if (p.type == PacketType.PUBLIC) {
+            u.publicIds[u.publicCount++ % RECENT] = p.id;
+        }
+    }
+
+    // ===== mreza =====
+
+    private void connect(User u) {
+        try {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            u.channel = ch;
+            if (ch.connect(address)) u.key = ch.register(selector, SelectionKey.OP_READ, u);
+            else u.key = ch.register(selector, SelectionKey.OP_CONNECT, u);
+        } catch (IOException e) {
+            fail(u, e);
+        }
+    }
+
+    private void finishConnect(User u) throws IOException {
+        if (u.channel.finishConnect()) u.key.interestOps(SelectionKey.OP_READ | (u.out.position() > 0 ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void read(User u) throws IOException {
+        int n = u.channel.read(u.in);
+        if (n < 0) throw new IOException("Connection closed by server");
+        ByteBuffer in = u.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (in.remaining() < 4 + length) {
+                if (4 + length > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(in);
+                    u.in = bigger;
+                    return;
+                }
+                break;
+            }
+            in.position(in.position() + 4);
+            int end = in.position() + length;
+            int limit = in.limit();
+            in.limit(end);
+            Object o = serialization.read(null, in);
+            in.limit(limit);
+            in.position(end);
+            handle(u, o);
+        }
+        in.compact();
+    }
+
+    void send(User u, Object o) {
+        if (u.channel == null) return;
+        ByteBuffer out = u.out;
+        if (out.remaining() < BUFFER_BYTES / 2) {
+            ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+            out.flip();
+            bigger.put(out);
+            u.out = out = bigger;
+        }
+        int start = out.position();
+        out.position(start + 4);
+        serialization.write(null, out, o);
+        out.putInt(start, out.position() - start - 4);
+        u.lastWrite = System.nanoTime();
+        if (u.channel.isConnected()) {
+            try {
+                flush(u);
+            } catch (IOException e) {
+                fail(u, e);
+            }
+        }
+    }
+
+    private void flush(User u) throws IOException {
+        ByteBuffer out = u.out;
+        out.flip();
+        u.channel.write(out);
+        out.compact();
+        u.key.interestOps(SelectionKey.OP_READ | (out.position() > 0 ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void fail(User u, Exception e) {
+        if (u.channel == null) return;
+        if (failures.incrementAndGet() <= 5) System.out.println(u.name + ": " + e);
+        if (u.loggedIn) loggedIn.decrementAndGet();
+        close(u);
+    }
+
+    private void close(User u) {
+        if (u.channel == null) return;
+        try {
+            u.channel.close();
+        } catch (IOException e) {
+            // vec zatvorena
+        }
+        u.channel = null;
+        u.loggedIn = false;
+    }
+}
@@ -0,0 +1,74 @@
+package rs.raf.pds.v4.z5.load;
+
+import java.util.Arrays;
+
+// Histogram kasnjenja u mikrosekundama, log-linearni: do 127 tacno, iznad toga 64 korpe po
+// stepenu dvojke (greska < 2%). Fiksna memorija bez obzira na broj uzoraka - milioni isporuka
+// u sekundi se ne cuvaju pojedinacno. Nije thread-safe: jedan po niti, spajaju se na kraju.
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    // do 2^40 us (~12 dana)
+    private final long[] counts = new long[(40 - SUB_BITS + 1) * SUB + SUB];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts[Math.min(counts.length - 1, index(micros))]++;
+        count++;
+        sum += micros;
+        if (micros > max) max = micros;
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = sum = max = 0;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    // gornja granica korpe u kojoj je p-ti uzorak (p u [0, 1])
+    public long percentile(double p) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB) return index;
+        int shift = index / SUB - 1;
+        long mantissa = index % SUB + SUB;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,214 @@
+package rs.raf.pds.v4.z5.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.ToIntFunction;
+
+import com.esotericsoftware.minlog.Log;
+
+import rs.raf.pds.v4.z5.ChatServer;
+import rs.raf.pds.v4.z5.rmi.ChatServiceImpl;
+import rs.raf.pds.v4.z5.store.DurableState;
+
+// Generator opterecenja: hiljade simuliranih korisnika u jednoj JVM (ClientLoop niti), mesavina
+// PUBLIC/DM/MCAST/reply/edit/ROOM poruka i zahteva za istoriju soba, protiv lokalnog ChatServer-a
+// (ista JVM) ili servera na host:port.
+//
+// Meri se posle zagrevanja:
+//  - delivery: prijem - timestamp koji je dodelio server (ms rezolucija; za udaljeni server satovi
+//    moraju biti uskladjeni), za svaku isporuku svakom primaocu osim EDIT-a;
+//  - rtt: slanje - prijem sopstvene poruke nazad (tacno, isti sat);
+//  - history: OLDER zahtev - odgovor.
+// Sa out=putanja rezultat se dodaje u CSV i poredi sa prethodnim redom istog scenarija.
+//
+// Pokretanje: java -Xmx1g -cp "bin;kryonet-2.21-all.jar" rs.raf.pds.v4.z5.load.LoadGenerator [scenario] [kljuc=vrednost ...]
+public class LoadGenerator {
+
+    static final long SETUP_TIMEOUT_MS = 60_000;
+    static final long DRAIN_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        LoadScenario s = LoadScenario.parse(args);
+        Log.set(Log.LEVEL_WARN);
+        System.out.println("scenario: " + s);
+
+        ChatServer server = null;
+        File dir = null;
+        DurableState durable = null;
+        InetSocketAddress address;
+        if (s.server.equals("local")) {
+            dir = Files.createTempDirectory("load").toFile();
+            ChatServer.STORE_DIR = dir.getPath();
+            int port = 54700;
+            server = new ChatServer(port);
+            ChatServiceImpl rooms = new ChatServiceImpl(new File(dir, "rooms"));
+            server.setRoomService(rooms);
+            if (s.durable) {
+                durable = new DurableState(dir, ChatServer.JOURNAL_SEGMENT_BYTES, ChatServer.JOURNAL_MAX_BATCH);
+                server.enableDurability(durable);
+                rooms.enableDurability(durable);
+                durable.recover();
+            }
+            server.start();
+            address = new InetSocketAddress("localhost", port);
+        } else {
+            int colon = s.server.lastIndexOf(':');
+            address = new InetSocketAddress(s.server.substring(0, colon), Integer.parseInt(s.server.substring(colon + 1)));
+        }
+
+        ClientLoop[] loops = new ClientLoop[Math.max(1, s.loops)];
+        for (int i = 0; i < loops.length; i++) loops[i] = new ClientLoop(s, address, loops.length);
+        for (int i = 0; i < s.users; i++) {
+            loops[i % loops.length].add(new ClientLoop.User(i, "u" + i, s.seed, "load-r" + (i % s.rooms)));
+        }
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "load-" + i);
+            threads[i].start();
+        }
+
+        long t0 = System.nanoTime();
+        boolean ready = await(loops, l -> l.loggedIn.get(), s.users, "login");
+        System.out.printf("connected %d users in %d ms%n", sum(loops, l -> l.loggedIn.get()), (System.nanoTime() - t0) / 1_000_000);
+        if (ready && s.roomWeight + s.historyWeight > 0) {
+            for (ClientLoop l : loops) l.createRooms();
+            ready = await(loops, l -> l.roomsReady.get(), s.rooms, "room create");
+            for (ClientLoop l : loops) l.joinRooms();
+            ready &= await(loops, l -> l.roomsReady.get(), s.rooms + s.users, "room join");
+        }
+
+        if (ready) {
+            for (ClientLoop l : loops) l.setSending(true);
+            Thread.sleep(s.warmupSeconds * 1000L);
+            for (ClientLoop l : loops) l.resetStats();
+            long start = System.nanoTime();
+            Thread.sleep(s.seconds * 1000L);
+            for (ClientLoop l : loops) l.setSending(false);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Thread.sleep(DRAIN_MS);
+
+            for (ClientLoop l : loops) l.stop();
+            for (Thread t : threads) t.join();
+            report(s, loops, seconds, server);
+        } else {
+            for (ClientLoop l : loops) l.stop();
+            for (Thread t : threads) t.join();
+        }
+
+        if (server != null) server.stop();
+        if (durable != null) durable.close();
+        if (dir != null) delete(dir);
+        System.exit(ready ? 0 : 1);
+    }
+
+    static boolean await(ClientLoop[] loops, ToIntFunction<ClientLoop> counter, int target, String phase) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MS;
+        while (sum(loops, counter) < target) {
+            if (System.currentTimeMillis() > deadline || sum(loops, l -> l.failures.get()) > 0) {
+                System.out.println(phase + " failed: " + sum(loops, counter) + "/" + target
+                        + ", failures=" + sum(loops, l -> l.failures.get()));
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    static int sum(ClientLoop[] loops, ToIntFunction<ClientLoop> counter) {
+        int n = 0;
+        for (ClientLoop l : loops) n += counter.applyAsInt(l);
+        return n;
+    }
+
+    // niti petlji su zavrsile (join), pa se statistika cita bez zakljucavanja
+    static void report(LoadScenario s, ClientLoop[] loops, double seconds, ChatServer server) throws IOException {
+        LatencyHistogram delivery = new LatencyHistogram();
+        LatencyHistogram rtt = new LatencyHistogram();
+        LatencyHistogram history = new LatencyHistogram();
+        long[] sent = new long[ClientLoop.Action.values().length];
+        long received = 0, busy = 0, failures = 0;
+        for (ClientLoop l : loops) {
+            delivery.merge(l.delivery);
+            rtt.merge(l.rtt);
+            history.merge(l.history);
+            for (int i = 0; i < sent.length; i++) sent[i] += l.sent[i];
+            received += l.received;
+            busy += l.busy;
+            failures += l.failures.get();
+        }
+        long total = 0;
+        StringBuilder mix = new StringBuilder();
+        for (ClientLoop.Action a : ClientLoop.Action.values()) {
+            total += sent[a.ordinal()];
+            if (sent[a.ordinal()] > 0) mix.append(' ').append(a).append('=').append(sent[a.ordinal()]);
+        }
+
+        System.out.printf("sent      %,d in %.1f s = %,.0f msg/s (%s )%n", total, seconds, total / seconds, mix);
+        System.out.printf("received  %,d deliveries = %,.0f/s, busy=%d, failures=%d%n", received, received / seconds, busy, failures);
+        System.out.printf("%-9s %9s %9s %9s %9s %9s %9s%n", "latency", "count", "p50", "p90", "p99", "p99.9", "max");
+        row("delivery", delivery, "ms", 1000);
+        row("rtt", rtt, "us", 1);
+        row("history", history, "us", 1);
+        if (server != null) System.out.print("server stats:\n" + server.getStatsReport());
+
+        String[] header = { "scenario", "msgPerSec", "deliveriesPerSec", "deliveryP50ms", "deliveryP99ms",
+                "rttP50us", "rttP99us", "rttP999us", "historyP99us", "busy", "failures", "params" };
+        String line = String.join(",", s.name, fmt(total / seconds), fmt(received / seconds),
+                Long.toString(delivery.percentile(0.5) / 1000), Long.toString(delivery.percentile(0.99) / 1000),
+                Long.toString(rtt.percentile(0.5)), Long.toString(rtt.percentile(0.99)), Long.toString(rtt.percentile(0.999)),
+                Long.toString(history.percentile(0.99)), Long.toString(busy), Long.toString(failures), s.toString());
+        System.out.println("RESULT " + line);
+        if (!s.out.isEmpty()) append(new File(s.out), header, line, s);
+    }
+
+    static void row(String name, LatencyHistogram h, String unit, long div) {
+        System.out.printf("%-9s %9d %9s %9s %9s %9s %9s%n", name, h.count(),
+                h.percentile(0.5) / div + unit, h.percentile(0.9) / div + unit, h.percentile(0.99) / div + unit,
+                h.percentile(0.999) / div + unit, h.max() / div + unit);
+    }
+
+    // isti scenario sa istim parametrima: razlika u propusnosti i rtt p99 prema poslednjem redu
+    static void append(File file, String[] header, String line, LoadScenario s) throws IOException {
+        String previous = null;
+        if (file.exists()) {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            String params = "," + s;
+            for (String l : lines) {
+                if (l.startsWith(s.name + ",") && l.endsWith(params)) previous = l;
+            }
+        }
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (file.length() == 0) w.println(String.join(",", header));
+            w.println(line);
+        }
+        if (previous != null) {
+            String[] a = previous.split(",");
+            String[] b = line.split(",");
+            System.out.printf("vs previous: msg/s %+.1f%%, deliveries/s %+.1f%%, rtt p99 %+.1f%%, delivery p99 %s -> %s ms%n",
+                    change(a[1], b[1]), change(a[2], b[2]), change(a[6], b[6]), a[4], b[4]);
+        }
+    }
+
+    static double change(String before, String after) {
+        double x = Double.parseDouble(before);
+        return x == 0 ? 0 : (Double.parseDouble(after) - x) * 100 / x;
+    }
+
+    static String fmt(double v) {
+        return String.format(Locale.ROOT, "%.1f", v);
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,141 @@
+package rs.raf.pds.v4.z5.load;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parametri jednog opterecenja. Ime izabere preset, ostalo se menja sa kljuc=vrednost:
+//   java ... rs.raf.pds.v4.z5.load.LoadGenerator chatty users=2000 seconds=60 seed=7
+// Isti seed daje isti niz akcija i isti raspored slanja za svakog korisnika, pa se rezultati dve
+// verzije servera mogu porediti. toString() ispisuje sve parametre u istom obliku (ide i u CSV).
+public final class LoadScenario {
+
+    public String name = "chatty";
+    public long seed = 1;
+
+    // simulirani korisnici i trajanje (zagrevanje se ne meri)
+    public int users = 1000;
+    public int seconds = 30;
+    public int warmupSeconds = 5;
+    // poruka u sekundi po korisniku (Poisson, otvorena petlja - ne ceka odgovor)
+    public double rate = 0.5;
+    // novih konekcija u sekundi (accept backlog servera je mali)
+    public int connectRate = 500;
+    // niti klijenata; svaka drzi svoje konekcije na jednom Selector-u
+    public int loops = 2;
+
+    // udeo svake vrste akcije (relativne tezine)
+    public int publicWeight = 10;
+    public int dmWeight = 50;
+    public int mcastWeight = 10;
+    public int replyWeight = 5;
+    public int editWeight = 5;
+    public int roomWeight = 15;
+    public int historyWeight = 5;
+
+    public int mcastSize = 5;
+    public int rooms = 20;
+    public int historyPage = 20;
+    public int textBytes = 64;
+
+    // server: "local" = ChatServer u istoj JVM (privremeni direktorijum), inace host:port
+    public String server = "local";
+    // local: zurnal + snapshot kao u produkciji
+    public boolean durable = false;
+    // CSV sa rezultatima; red se dodaje, a poredi se sa poslednjim redom istog scenarija
+    public String out = "";
+
+    public static LoadScenario preset(String name) {
+        LoadScenario s = new LoadScenario();
+        s.name = name;
+        switch (name) {
+            case "chatty":
+                break;
+            case "broadcast":
+                // PUBLIC ide svima - fan-out O(N) po poruci
+                s.users = 500;
+                s.rate = 0.2;
+                s.publicWeight = 80;
+                s.replyWeight = 15;
+                s.editWeight = 5;
+                s.dmWeight = s.mcastWeight = s.roomWeight = s.historyWeight = 0;
+                break;
+            case "dm":
+                s.users = 2000;
+                s.rate = 2;
+                s.dmWeight = 90;
+                s.mcastWeight = 10;
+                s.publicWeight = s.replyWeight = s.editWeight = s.roomWeight = s.historyWeight = 0;
+                break;
+            case "rooms":
+                s.rooms = 50;
+                s.roomWeight = 70;
+                s.historyWeight = 30;
+                s.publicWeight = s.dmWeight = s.mcastWeight = s.replyWeight = s.editWeight = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + name + " (chatty, broadcast, dm, rooms)");
+        }
+        return s;
+    }
+
+    // prvi argument je preset (ako nije kljuc=vrednost), ostali menjaju polja
+    public static LoadScenario parse(String[] args) {
+        int i = 0;
+        LoadScenario s = args.length > 0 && !args[0].contains("=") ? preset(args[i++]) : preset("chatty");
+        for (; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value, got " + args[i]);
+            s.set(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        if (s.users < 2) throw new IllegalArgumentException("users must be at least 2");
+        if (s.rate <= 0) throw new IllegalArgumentException("rate must be positive");
+        s.mcastSize = Math.min(s.mcastSize, s.users - 1);
+        s.rooms = Math.max(1, Math.min(s.rooms, s.users));
+        return s;
+    }
+
+    private void set(String key, String value) {
+        try {
+            Field f = LoadScenario.class.getField(key);
+            Class<?> t = f.getType();
+            if (t == int.class) f.setInt(this, Integer.parseInt(value));
+            else if (t == long.class) f.setLong(this, Long.parseLong(value));
+            else if (t == double.class) f.setDouble(this, Double.parseDouble(value));
+            else if (t == boolean.class) f.setBoolean(this, Boolean.parseBoolean(value));
+            else f.set(this, value);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Unknown parameter " + key + "; known: " + values().keySet());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Map<String, String> values() {
+        Map<String, String> m = new LinkedHashMap<>();
+        for (Field f : LoadScenario.class.getFields()) {
+            if (Modifier.isStatic(f.getModifiers())) continue;
+            try {
+                m.put(f.getName(), String.valueOf(f.get(this)));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return m;
+    }
+
+    int totalWeight() {
+        return publicWeight + dmWeight + mcastWeight + replyWeight + editWeight + roomWeight + historyWeight;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : values().entrySet()) {
+            if (e.getKey().equals("out")) continue;
+            sb.append(sb.length() == 0 ? "" : " ").append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,298 @@
+package rs.raf.pds.v4.z5.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asinhroni log servera. Niti koje loguju (KryoNet, pipeline) samo upisu zapis u ograniceni prsten
+// (bez lock-a: CAS na repu, unapred napravljeni slotovi sa sekvencom); jedna writer nit ga prazni u
+// grupama u fajl koji se rotira i, po zelji, na konzolu. Pun prsten = zapis se odbacuje i broji,
+// nit koja loguje nikad ne ceka na disk ili terminal.
+//
+// Zapis: "vreme NIVO kanal poruka", poruka je u obliku kljuc=vrednost gde ima smisla.
+// -Dchat.log.level=DEBUG|INFO|WARN|ERROR|OFF, po kanalu -Dchat.log.<kanal>.level=...;
+// -Dchat.log.<kanal>.sample=N loguje se (nasumicno) svaki N-ti zapis kanala;
+// -Dchat.log.file=putanja ("" = bez fajla), -Dchat.log.maxBytes=N po fajlu, -Dchat.log.files=N
+// starih fajlova (.1 je najnoviji); -Dchat.log.console=true|false; -Dchat.log.bufferSize=N zapisa.
+public final class ServerLog {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    public static Level LEVEL = Level.valueOf(System.getProperty("chat.log.level", "INFO"));
+    public static String FILE = System.getProperty("chat.log.file", "logs/server.log");
+    public static long MAX_BYTES = Long.getLong("chat.log.maxBytes", 16L * 1024 * 1024);
+    public static int FILES = Integer.getInteger("chat.log.files", 5);
+    public static boolean CONSOLE = Boolean.parseBoolean(System.getProperty("chat.log.console", "true"));
+    public static int BUFFER_SIZE = Integer.getInteger("chat.log.bufferSize", 65536);
+
+    static final int MAX_BATCH = 1024;
+    static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // jedan kanal po izvoru (conn, chat, cluster...), pravi se jednom u static polju
+    public static final class Channel {
+        private final String name;
+        private final Level level;
+        private final int sample;
+
+        Channel(String name) {
+            this.name = name;
+            String own = System.getProperty("chat.log." + name + ".level");
+            this.level = own != null ? Level.valueOf(own) : LEVEL;
+            this.sample = Math.max(1, Integer.getInteger("chat.log." + name + ".sample", 1));
+        }
+
+        // za poruke koje se skupo prave: if (LOG.enabled(Level.DEBUG)) LOG.debug(...)
+        public boolean enabled(Level l) {
+            return l.compareTo(level) >= 0 && l != Level.OFF;
+        }
+
+        public void debug(String message) {
+            log(Level.DEBUG, message);
+        }
+
+        public void info(String message) {
+            log(Level.INFO, message);
+        }
+
+        public void warn(String message) {
+            log(Level.WARN, message);
+        }
+
+        public void error(String message) {
+            log(Level.ERROR, message);
+        }
+
+        public void error(String message, Throwable t) {
+            if (!enabled(Level.ERROR)) return;
+            StringWriter trace = new StringWriter();
+            t.printStackTrace(new PrintWriter(trace));
+            log(Level.ERROR, message + System.lineSeparator() + trace.toString().trim());
+        }
+
+        public void log(Level l, String message) {
+            if (!enabled(l)) return;
+            if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) return;
+            RING.offer(System.currentTimeMillis(), l, name, message);
+        }
+    }
+
+    // slot prstena; seq == pozicija -> slobodan za upis, seq == pozicija + 1 -> spreman za citanje
+    private static final class Slot {
+        volatile long seq;
+        long time;
+        Level level;
+        String channel;
+        String message;
+    }
+
+    // ograniceni MPSC prsten: vise upisivaca (CAS na tail), jedan citac (writer nit)
+    private static final class Ring {
+        final Slot[] slots;
+        final int mask;
+        final AtomicLong tail = new AtomicLong();
+        long head;
+        final LongAdder dropped = new LongAdder();
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new Slot[size];
+            mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Slot();
+                slots[i].seq = i;
+            }
+        }
+
+        void offer(long time, Level level, String channel, String message) {
+            long pos = tail.get();
+            Slot s;
+            while (true) {
+                s = slots[(int) pos & mask];
+                long diff = s.seq - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) break;
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    // citac nije oslobodio slot - pun
+                    dropped.increment();
+                    return;
+                } else {
+                    pos = tail.get();
+                }
+            }
+            s.time = time;
+            s.level = level;
+            s.channel = channel;
+            s.message = message;
+            s.seq = pos + 1;
+        }
+
+        // samo writer nit (pod lock-om); null ako je prazan
+        Slot peek() {
+            Slot s = slots[(int) head & mask];
+            return s.seq == head + 1 ? s : null;
+        }
+
+        void release(Slot s) {
+            s.channel = null;
+            s.message = null;
+            s.seq = head + slots.length;
+            head++;
+        }
+    }
+
+    private static final Ring RING = new Ring(BUFFER_SIZE);
+    private static final Object WRITE_LOCK = new Object();
+    private static final LongAdder WRITTEN = new LongAdder();
+    private static long reportedDrops;
+
+    private static Writer file;
+    private static long fileBytes;
+    private static boolean fileFailed;
+    private static final StringBuilder batch = new StringBuilder(64 * 1024);
+    // formatirana sekunda se ponavlja u svim zapisima te sekunde
+    private static long second = -1;
+    private static String secondText;
+
+    static {
+        Thread writer = new Thread(ServerLog::writerLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush, "log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    public static Channel channel(String name) {
+        return new Channel(name);
+    }
+
+    public static long written() {
+        return WRITTEN.sum();
+    }
+
+    public static long dropped() {
+        return RING.dropped.sum();
+    }
+
+    public static String report() {
+        return "written=" + written() + " dropped=" + dropped() + " buffer=" + RING.slots.length;
+    }
+
+    // isprazni prsten sada (gasenje servera)
+    public static void flush() {
+        synchronized (WRITE_LOCK) {
+            while (drainBatch() > 0) {
+                // sve sto je upisano do sada
+            }
+        }
+    }
+
+    private static void writerLoop() {
+        while (true) {
+            int n;
+            synchronized (WRITE_LOCK) {
+                n = drainBatch();
+            }
+            if (n == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // jedna grupa: do MAX_BATCH zapisa, jedan upis u fajl i na konzolu
+    private static int drainBatch() {
+        batch.setLength(0);
+        int n = 0;
+        long drops = RING.dropped.sum();
+        if (drops != reportedDrops) {
+            append(System.currentTimeMillis(), Level.WARN, "log", "dropped=" + (drops - reportedDrops) + " reason=buffer-full");
+            reportedDrops = drops;
+        }
+        Slot s;
+        while (n < MAX_BATCH && (s = RING.peek()) != null) {
+            append(s.time, s.level, s.channel, s.message);
+            RING.release(s);
+            n++;
+        }
+        if (batch.length() == 0) return 0;
+
+        String text = batch.toString();
+        if (CONSOLE) {
+            PrintStream out = System.out;
+            out.print(text);
+            out.flush();
+        }
+        writeFile(text);
+        WRITTEN.add(n);
+        return Math.max(n, 1);
+    }
+
+    private static void append(long time, Level level, String channel, String message) {
+        long s = Math.floorDiv(time, 1000);
+        if (s != second) {
+            second = s;
+            secondText = TIME.format(Instant.ofEpochSecond(s));
+        }
+        int ms = (int) Math.floorMod(time, 1000L);
+        batch.append(secondText).append('.').append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10))
+                .append((char) ('0' + ms % 10));
+        batch.append(' ').append(level.name());
+        for (int i = level.name().length(); i < 5; i++) batch.append(' ');
+        batch.append(' ').append(channel).append(' ').append(message).append(System.lineSeparator());
+    }
+
+    private static void writeFile(String text) {
+        if (FILE.isEmpty() || fileFailed) return;
+        try {
+            if (file == null) open();
+            file.write(text);
+            file.flush();
+            fileBytes += text.length();
+            if (fileBytes >= MAX_BYTES) roll();
+        } catch (IOException e) {
+            // bez fajla dalje; konzola i dalje radi
+            fileFailed = true;
+            System.err.println("Log file " + FILE + " disabled: " + e.getMessage());
+        }
+    }
+
+    private static void open() throws IOException {
+        File f = new File(FILE);
+        File dir = f.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        fileBytes = f.length();
+        file = new OutputStreamWriter(new FileOutputStream(f, true), StandardCharsets.UTF_8);
+    }
+
+    // server.log -> server.log.1 -> ... -> server.log.FILES (najstariji se brise)
+    private static void roll() throws IOException {
+        file.close();
+        file = null;
+        File oldest = new File(FILE + "." + FILES);
+        if (oldest.exists() && !oldest.delete()) throw new IOException("Cannot delete " + oldest);
+        for (int i = FILES - 1; i >= 1; i--) {
+            File from = new File(FILE + "." + i);
+            if (from.exists()) from.renameTo(new File(FILE + "." + (i + 1)));
+        }
+        if (FILES > 0) new File(FILE).renameTo(new File(FILE + ".1"));
+        else new File(FILE).delete();
+        open();
+    }
+}
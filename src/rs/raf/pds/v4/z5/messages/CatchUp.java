@@ -0,0 +1,17 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Propustene PUBLIC/DM/MCAST/EDIT poruke posle prekida veze, u jednom okviru, rastuce po ID-u.
+// hasMore: ima jos - klijent salje CatchUpRequest(cursor, untilId). gap: deo propustenog je
+// vec izbacen sa servera. busy: server trenutno ne stize (masovno ponovno povezivanje) - klijent
+// ponavlja isti zahtev kasnije.
+public class CatchUp {
+
+    public ChatPacket[] messages;
+    public long cursor;
+    public long untilId;
+    public boolean hasMore;
+    public boolean gap;
+    public boolean busy;
+
+    public CatchUp() { }
+}
@@ -0,0 +1,16 @@
+package rs.raf.pds.v4.z5.messages;
+
+// "Ucitaj jos" posle nastavka veze: nastavak od kursora iz prethodnog CatchUp odgovora do istog
+// untilId (sve posle njega je klijent vec dobio uzivo). Prvi nastavak ide u samom Login-u.
+public class CatchUpRequest {
+
+    public long afterId;
+    public long untilId;
+
+    public CatchUpRequest() { }
+
+    public CatchUpRequest(long afterId, long untilId) {
+        this.afterId = afterId;
+        this.untilId = untilId;
+    }
+}
@@ -15,6 +15,7 @@ public class ChatPacket implements Serializable {
 
     // Ciljevi (DM/MCAST)
     public String[] to;     // za DM: user, za MCAST: lista korisnika, za PUBLIC: null
+    public String room;     // za ROOM: ime sobe
 
     // ID i vreme
     public long id;         // dodeljuje server za nove poruke
@@ -67,6 +68,17 @@ public class ChatPacket implements Serializable {
         return p;
     }
 
+    public static ChatPacket room(String from, String room, String text) {
+        ChatPacket p = new ChatPacket();
+        p.type = PacketType.ROOM;
+        p.from = from;
+        p.room = room;
+        p.text = text;
+        p.replyToId = -1;
+        p.editTargetId = -1;
+        return p;
+    }
+
     public static ChatPacket edit(String from, long targetId, String newText) {
         ChatPacket p = new ChatPacket();
         p.type = PacketType.EDIT;
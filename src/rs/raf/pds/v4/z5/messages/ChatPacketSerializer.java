@@ -0,0 +1,135 @@
+package rs.raf.pds.v4.z5.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+// Kompaktan format ChatPacket-a na mrezi (umesto Kryo FieldSerializer-a):
+//  [varint maska][byte tip]? [varlong id]? [varlong timestamp - EPOCH]? ...
+// Polje se pise samo ako je njegov bit u masci postavljen (null / -1 / 0 se ne salju).
+// Brojevi su zig-zag varint-ovi, timestamp je razlika od EPOCH-a (6 bajtova umesto 8).
+// Razlika u odnosu na prethodni paket nije moguca: isti enkodirani paket ide svim konekcijama.
+//
+// Sa UserDirectory-jem imena (from, to[], replyAuthor) idu kao handle (varint) kad ga imaju.
+//
+// Redosled polja i bitovi se ne menjaju; novo polje dobija sledeci slobodan bit.
+public class ChatPacketSerializer extends Serializer<ChatPacket> {
+
+    // 2024-01-01T00:00:00Z
+    static final long EPOCH = 1704067200000L;
+
+    static final int TYPE = 1;
+    static final int ID = 1 << 1;
+    static final int TIMESTAMP = 1 << 2;
+    static final int FROM = 1 << 3;
+    static final int TEXT = 1 << 4;
+    static final int TO = 1 << 5;
+    static final int ROOM = 1 << 6;
+    static final int REPLY_TO = 1 << 7;
+    static final int REPLY_AUTHOR = 1 << 8;
+    static final int REPLY_EXCERPT = 1 << 9;
+    static final int EDIT_TARGET = 1 << 10;
+    static final int EDITED = 1 << 11;
+    static final int FROM_HANDLE = 1 << 12;
+    static final int REPLY_AUTHOR_HANDLE = 1 << 13;
+    // svaki element to[] pocinje varint-om: 0 = ime sledi kao string, n = handle n-1
+    static final int TO_HANDLES = 1 << 14;
+
+    private static final PacketType[] TYPES = PacketType.values();
+
+    // null = imena uvek kao string
+    private final UserDirectory names;
+
+    public ChatPacketSerializer() {
+        this(null);
+    }
+
+    public ChatPacketSerializer(UserDirectory names) {
+        this.names = names;
+    }
+
+    @Override
+    public void write(Kryo kryo, Output out, ChatPacket p) {
+        int mask = 0;
+        if (p.type != null) mask |= TYPE;
+        if (p.id != 0) mask |= ID;
+        if (p.timestamp != 0) mask |= TIMESTAMP;
+        if (p.from != null) mask |= FROM;
+        if (p.text != null) mask |= TEXT;
+        if (p.to != null) mask |= TO;
+        if (p.room != null) mask |= ROOM;
+        if (p.replyToId != -1) mask |= REPLY_TO;
+        if (p.replyAuthor != null) mask |= REPLY_AUTHOR;
+        if (p.replyExcerpt != null) mask |= REPLY_EXCERPT;
+        if (p.editTargetId != -1) mask |= EDIT_TARGET;
+        if (p.edited) mask |= EDITED;
+
+        int fromHandle = handleOf(p.from);
+        int replyAuthorHandle = handleOf(p.replyAuthor);
+        if (fromHandle >= 0) mask = (mask & ~FROM) | FROM_HANDLE;
+        if (replyAuthorHandle >= 0) mask = (mask & ~REPLY_AUTHOR) | REPLY_AUTHOR_HANDLE;
+        if (p.to != null && names != null) mask |= TO_HANDLES;
+
+        out.writeInt(mask, true);
+        if ((mask & TYPE) != 0) out.writeByte(p.type.ordinal());
+        if ((mask & ID) != 0) out.writeLong(p.id, false);
+        if ((mask & TIMESTAMP) != 0) out.writeLong(p.timestamp - EPOCH, false);
+        if ((mask & FROM) != 0) out.writeString(p.from);
+        if ((mask & FROM_HANDLE) != 0) out.writeInt(fromHandle, true);
+        if ((mask & TEXT) != 0) out.writeString(p.text);
+        if ((mask & TO) != 0) {
+            out.writeInt(p.to.length, true);
+            boolean handles = (mask & TO_HANDLES) != 0;
+            for (String u : p.to) {
+                int h = handles ? handleOf(u) : -1;
+                if (handles) out.writeInt(h + 1, true);
+                if (h < 0) out.writeString(u);
+            }
+        }
+        if ((mask & ROOM) != 0) out.writeString(p.room);
+        if ((mask & REPLY_TO) != 0) out.writeLong(p.replyToId, false);
+        if ((mask & REPLY_AUTHOR) != 0) out.writeString(p.replyAuthor);
+        if ((mask & REPLY_AUTHOR_HANDLE) != 0) out.writeInt(replyAuthorHandle, true);
+        if ((mask & REPLY_EXCERPT) != 0) out.writeString(p.replyExcerpt);
+        if ((mask & EDIT_TARGET) != 0) out.writeLong(p.editTargetId, false);
+    }
+
+    @Override
+    public ChatPacket read(Kryo kryo, Input in, Class<ChatPacket> type) {
+        ChatPacket p = new ChatPacket();
+        int mask = in.readInt(true);
+        if ((mask & TYPE) != 0) p.type = TYPES[in.readByte()];
+        if ((mask & ID) != 0) p.id = in.readLong(false);
+        if ((mask & TIMESTAMP) != 0) p.timestamp = in.readLong(false) + EPOCH;
+        if ((mask & FROM) != 0) p.from = in.readString();
+        if ((mask & FROM_HANDLE) != 0) p.from = nameOf(in.readInt(true));
+        if ((mask & TEXT) != 0) p.text = in.readString();
+        if ((mask & TO) != 0) {
+            p.to = new String[in.readInt(true)];
+            boolean handles = (mask & TO_HANDLES) != 0;
+            for (int i = 0; i < p.to.length; i++) {
+                int h = handles ? in.readInt(true) - 1 : -1;
+                p.to[i] = h < 0 ? in.readString() : nameOf(h);
+            }
+        }
+        if ((mask & ROOM) != 0) p.room = in.readString();
+        p.replyToId = (mask & REPLY_TO) != 0 ? in.readLong(false) : -1;
+        if ((mask & REPLY_AUTHOR) != 0) p.replyAuthor = in.readString();
+        if ((mask & REPLY_AUTHOR_HANDLE) != 0) p.replyAuthor = nameOf(in.readInt(true));
+        if ((mask & REPLY_EXCERPT) != 0) p.replyExcerpt = in.readString();
+        p.editTargetId = (mask & EDIT_TARGET) != 0 ? in.readLong(false) : -1;
+        p.edited = (mask & EDITED) != 0;
+        return p;
+    }
+
+    private int handleOf(String name) {
+        return names == null || name == null ? -1 : names.handleOf(name);
+    }
+
+    // nenajavljen handle ne bi smeo da se desi (najava ide pre poruka), ali ne rusi dekodiranje
+    private String nameOf(int handle) {
+        String name = names == null ? null : names.nameOf(handle);
+        return name != null ? name : "#" + handle;
+    }
+}
@@ -0,0 +1,18 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Kompresovan Kryo zapis (class id + telo) jedne poruke; prijemna strana ga raspakuje
+// i obradi unutrasnju poruku kao da je stigla direktno.
+public class CompressedPacket {
+
+    public Compression codec;
+    public int rawLength;
+    public byte[] data;
+
+    public CompressedPacket() { }
+
+    public CompressedPacket(Compression codec, int rawLength, byte[] data) {
+        this.codec = codec;
+        this.rawLength = rawLength;
+        this.data = data;
+    }
+}
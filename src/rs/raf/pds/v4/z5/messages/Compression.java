@@ -0,0 +1,8 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Kompresija koju klijent trazi pri Login-u (vazi za poruke koje server salje toj konekciji).
+public enum Compression {
+    NONE,
+    FAST,   // Deflate BEST_SPEED - najmanje CPU-a
+    DENSE   // Deflate nivo 9 - najmanje bajtova
+}
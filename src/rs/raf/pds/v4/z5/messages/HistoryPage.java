@@ -0,0 +1,22 @@
+package rs.raf.pds.v4.z5.messages;
+
+import java.io.Serializable;
+
+// Jedna stranica istorije sobe sa kursorima za nastavak u oba smera.
+public class HistoryPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public String room;
+
+    // rastuce po ID-u
+    public ChatPacket[] messages;
+
+    // kursori su neprovidni - klijent ih samo vraca serveru
+    public String olderCursor;
+    public String newerCursor;
+
+    public boolean hasOlder;
+    public boolean hasNewer;
+
+    public HistoryPage() { }
+}
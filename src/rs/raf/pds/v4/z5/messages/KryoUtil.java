@@ -3,19 +3,82 @@ package rs.raf.pds.v4.z5.messages;
 import com.esotericsoftware.kryo.Kryo;
 
 public class KryoUtil {
+
+    // Eksplicitni ID-jevi registracija: ne zavise od redosleda poziva, pa klijent i server
+    // ostaju kompatibilni kad se doda nova klasa. Kryo zauzima 0-8, KryoNet 9-13 (FrameworkMessage).
+    // Postojeci ID se nikad ne menja; nova klasa dobija sledeci slobodan broj.
     public static void registerKryoClasses(Kryo kryo) {
+        registerKryoClasses(kryo, null);
+    }
+
+    // samostalan Kryo podesen kao KryoNet-ov (bez referenci, samo registrovane klase),
+    // za bajtove koji moraju da se poklope sa onim sto ide preko mreze
+    public static Kryo newKryo(UserDirectory names) {
+        Kryo kryo = new Kryo();
+        kryo.setReferences(false);
+        kryo.setRegistrationRequired(true);
+        registerKryoClasses(kryo, names);
+        return kryo;
+    }
+
+    // names != null: imena u ChatPacket-u idu kao handle-ovi iz recnika sesije
+    public static void registerKryoClasses(Kryo kryo, UserDirectory names) {
         kryo.register(String.class);
-        kryo.register(String[].class);
+        kryo.register(String[].class, 100);
 
         
-        kryo.register(Login.class);
-        kryo.register(ChatMessage.class);
-        kryo.register(WhoRequest.class);
-        kryo.register(ListUsers.class);
-        kryo.register(InfoMessage.class);
+        kryo.register(Login.class, 101);
+        kryo.register(ChatMessage.class, 102);
+        kryo.register(WhoRequest.class, 103);
+        kryo.register(ListUsers.class, 104);
+        kryo.register(InfoMessage.class, 105);
 
         
-        kryo.register(PacketType.class);
-        kryo.register(ChatPacket.class);
+        kryo.register(PacketType.class, 106);
+        kryo.register(ChatPacket.class, new ChatPacketSerializer(names), 107);
+
+        // sobe preko socket-a
+        kryo.register(ChatPacket[].class, 108);
+        kryo.register(HistoryPage.class, 109);
+        kryo.register(RoomRequest.class, 110);
+        kryo.register(RoomRequest.Op.class, 111);
+        kryo.register(RoomResponse.class, 112);
+
+        // recnik imena
+        kryo.register(int[].class, 113);
+        kryo.register(UserHandles.class, 114);
+
+        // kompresija
+        kryo.register(Compression.class, 115);
+        kryo.register(CompressedPacket.class, 116);
+        kryo.register(byte[].class, 117);
+
+        // vise poruka u jednom okviru
+        kryo.register(PacketBatch.class, 118);
+
+        // vise shard-ova
+        kryo.register(ShardRedirect.class, 119);
+
+        // veza izmedju cvorova klastera
+        kryo.register(NodeHello.class, 120);
+        kryo.register(NodeState.class, 121);
+        kryo.register(RemotePacket.class, 122);
+        kryo.register(RoomForward.class, 123);
+        kryo.register(RemoteReply.class, 124);
+
+        // nastavak posle prekida veze
+        kryo.register(CatchUpRequest.class, 125);
+        kryo.register(CatchUp.class, 126);
+
+        // poste za korisnike van mreze
+        kryo.register(Mailbox.class, 127);
+        kryo.register(MailboxAck.class, 128);
+
+        // prisutnost
+        kryo.register(PresenceSubscribe.class, 129);
+
+        // pretraga istorije
+        kryo.register(SearchRequest.class, 130);
+        kryo.register(SearchResponse.class, 131);
     }
 }
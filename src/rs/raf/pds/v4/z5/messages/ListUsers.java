@@ -1,18 +1,55 @@
 package rs.raf.pds.v4.z5.messages;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class ListUsers {
 	String[] users;
 	
+	// delta u odnosu na prethodni ListUsers iste konekcije (handle-ovi iz UserHandles)
+	int[] added;
+	int[] removed;
+	
 	protected ListUsers() {
 		
 	}
 	public ListUsers(String[] users) {
 		this.users = users;
 	}
+	public ListUsers(int[] added, int[] removed) {
+		this.added = added;
+		this.removed = removed;
+	}
 
+	// null kad je poruka delta
 	public String[] getUsers() {
 		return users;
 	}
+
+	public int[] getAdded() {
+		return added;
+	}
+
+	public int[] getRemoved() {
+		return removed;
+	}
+
+	// delta u delovima od najvise maxHandles; delovi se primenjuju redom (skupovi su disjunktni)
+	public List<ListUsers> split(int maxHandles) {
+		List<ListUsers> parts = new ArrayList<>();
+		if (added.length + removed.length <= maxHandles) {
+			parts.add(this);
+			return parts;
+		}
+		for (int i = 0; i < removed.length; i += maxHandles) {
+			parts.add(new ListUsers(new int[0], Arrays.copyOfRange(removed, i, Math.min(removed.length, i + maxHandles))));
+		}
+		for (int i = 0; i < added.length; i += maxHandles) {
+			parts.add(new ListUsers(Arrays.copyOfRange(added, i, Math.min(added.length, i + maxHandles)), new int[0]));
+		}
+		return parts;
+	}
 	
 	
 }
@@ -2,6 +2,10 @@ package rs.raf.pds.v4.z5.messages;
 
 public class Login {
 	String userName;
+	// kompresija poruka koje server salje ovoj konekciji
+	Compression compression = Compression.NONE;
+	// najveci ID koji je klijent primio pre prekida veze (0 = nova sesija, bez nastavka)
+	long resumeAfterId;
 	
 	protected Login() {
 		
@@ -9,10 +13,27 @@ public class Login {
 	public Login(String userName) {
 		this.userName = userName;
 	}
+	public Login(String userName, Compression compression) {
+		this.userName = userName;
+		this.compression = compression;
+	}
+	public Login(String userName, Compression compression, long resumeAfterId) {
+		this.userName = userName;
+		this.compression = compression;
+		this.resumeAfterId = resumeAfterId;
+	}
 
 	public String getUserName() {
 		return userName;
 	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public long getResumeAfterId() {
+		return resumeAfterId;
+	}
 	
 	
 }
@@ -0,0 +1,15 @@
+package rs.raf.pds.v4.z5.messages;
+
+// DM/MCAST poruke koje su stigle dok korisnik nije bio prijavljen, najstarije prve. Klijent potvrdjuje
+// sa MailboxAck(firstId, count) i tek tada server skida poruke iz poste i salje sledecu grupu.
+// count moze biti veci od messages.length (poruka ciji je sadrzaj u medjuvremenu nestao).
+public class Mailbox {
+
+    public ChatPacket[] messages;
+    public long firstId;
+    public int count;
+    // koliko jos ceka posle ove grupe
+    public int remaining;
+
+    public Mailbox() { }
+}
@@ -0,0 +1,15 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Potvrda da je grupa iz Mailbox poruke prikazana; polja su ista kao u Mailbox-u.
+public class MailboxAck {
+
+    public long firstId;
+    public int count;
+
+    public MailboxAck() { }
+
+    public MailboxAck(long firstId, int count) {
+        this.firstId = firstId;
+        this.count = count;
+    }
+}
@@ -0,0 +1,13 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Prva poruka na vezi izmedju dva cvora klastera: ko je na drugoj strani.
+public class NodeHello {
+
+    public int nodeId;
+
+    public NodeHello() { }
+
+    public NodeHello(int nodeId) {
+        this.nodeId = nodeId;
+    }
+}
@@ -0,0 +1,20 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Promene na jednom cvoru klastera: korisnici koji su se prijavili/odjavili na njemu i sobe
+// koje su na njemu napravljene (cvor je vlasnik). full = cela slika (kad se veza uspostavi),
+// pa primalac zaboravlja sve sto je ranije znao o tom cvoru.
+public class NodeState {
+
+    public int nodeId;
+    public boolean full;
+    public String[] usersAdded;
+    public String[] usersRemoved;
+    public String[] roomsAdded;
+
+    public NodeState() { }
+
+    public NodeState(int nodeId, boolean full) {
+        this.nodeId = nodeId;
+        this.full = full;
+    }
+}
@@ -0,0 +1,28 @@
+package rs.raf.pds.v4.z5.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+
+// Vise vec serijalizovanih poruka (Kryo class id + telo, jedna za drugom) u jednom TCP okviru.
+// Server skuplja poruke jedne konekcije u kratkom prozoru; klijent ih raspakuje i obradi
+// redom, kao da su stigle jedna po jedna.
+public class PacketBatch {
+
+    public int count;
+    public byte[] frames;
+
+    public PacketBatch() { }
+
+    public PacketBatch(int count, byte[] frames) {
+        this.count = count;
+        this.frames = frames;
+    }
+
+    // kryo mora biti podesen kao KryoNet-ov (KryoUtil.newKryo)
+    public Object[] unpack(Kryo kryo) {
+        Input in = new Input(frames);
+        Object[] objects = new Object[count];
+        for (int i = 0; i < count; i++) objects[i] = kryo.readClassAndObject(in);
+        return objects;
+    }
+}
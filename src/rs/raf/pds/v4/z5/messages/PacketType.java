@@ -4,6 +4,7 @@ public enum PacketType {
     PUBLIC,     // broadcast svima 
     DM,         // private poruka 1 korisniku
     MCAST,      // multicast grupi korisnika
-    EDIT        // izmena postojece poruke
+    EDIT,       // izmena postojece poruke
+    ROOM        // poruka clanovima sobe
 }
 
@@ -0,0 +1,14 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Prijava na promene prisutnosti: server odmah salje ListUsers deltu do trenutnog stanja, a posle toga
+// spojene delte (ko je dosao / otisao) na svakih chat.presence.flushMillis. Bez prijave nema nista.
+public class PresenceSubscribe {
+
+    public boolean enabled;
+
+    public PresenceSubscribe() { }
+
+    public PresenceSubscribe(boolean enabled) {
+        this.enabled = enabled;
+    }
+}
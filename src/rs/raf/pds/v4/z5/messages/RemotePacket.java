@@ -0,0 +1,17 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Poruka kojoj je cvor posiljaoca (ili vlasnik sobe) vec dodelio ID, za isporuku korisnicima
+// na drugom cvoru. to == null: svim lokalnim korisnicima (PUBLIC); inace samo navedenim.
+// EDIT dogadjaj istim putem menja i kopiju poruke na tom cvoru.
+public class RemotePacket {
+
+    public ChatPacket packet;
+    public String[] to;
+
+    public RemotePacket() { }
+
+    public RemotePacket(ChatPacket packet, String[] to) {
+        this.packet = packet;
+        this.to = to;
+    }
+}
@@ -0,0 +1,16 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Odgovor jednom korisniku koji je povezan na drugi cvor (RoomResponse, InfoMessage);
+// cvor korisnika ga samo prosledi njegovoj konekciji.
+public class RemoteReply {
+
+    public String user;
+    public Object payload;
+
+    public RemoteReply() { }
+
+    public RemoteReply(String user, Object payload) {
+        this.user = user;
+        this.payload = payload;
+    }
+}
@@ -0,0 +1,21 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Sobom upravlja jedan cvor (vlasnik). Korisnik sa drugog cvora salje mu ili ROOM poruku
+// (vlasnik proverava clanstvo i dodeljuje ID), ili EDIT dogadjaj za clanove sobe, ili
+// RoomRequest; odgovor se vraca kao RemoteReply cvoru origin.
+public class RoomForward {
+
+    public int origin;
+    public String user;
+    public ChatPacket packet;
+    public RoomRequest request;
+
+    public RoomForward() { }
+
+    public RoomForward(int origin, String user, ChatPacket packet, RoomRequest request) {
+        this.origin = origin;
+        this.user = user;
+        this.packet = packet;
+        this.request = request;
+    }
+}
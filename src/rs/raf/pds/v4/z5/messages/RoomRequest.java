@@ -0,0 +1,31 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Zahtev za sobe preko postojece KryoNet konekcije (RMI ostaje kao rezerva).
+// Server odgovara sa RoomResponse koji nosi isti requestId.
+public class RoomRequest {
+
+    public enum Op {
+        LIST,       // spisak soba
+        CREATE,     // nova soba, posiljalac je vlasnik
+        JOIN,       // ulazak u sobu + poslednje poruke
+        LEAVE,      // izlazak iz sobe
+        OLDER,      // stranica starijih poruka
+        NEWER       // stranica novijih poruka
+    }
+
+    public int requestId;
+    public Op op;
+    public String room;
+
+    // OLDER/NEWER: kursor iz prethodne stranice (null = od kraja/pocetka)
+    public String cursor;
+    public int limit;
+
+    public RoomRequest() { }
+
+    public RoomRequest(int requestId, Op op, String room) {
+        this.requestId = requestId;
+        this.op = op;
+        this.room = room;
+    }
+}
@@ -0,0 +1,26 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Odgovor na RoomRequest; ide kroz isti izlazni red kao i ostale poruke konekcije.
+public class RoomResponse {
+
+    public int requestId;
+    public RoomRequest.Op op;
+    public String room;
+
+    // CREATE: soba napravljena, LEAVE: korisnik je bio clan, JOIN/OLDER/NEWER: soba postoji
+    public boolean ok;
+
+    // LIST
+    public String[] rooms;
+
+    // JOIN/OLDER/NEWER
+    public HistoryPage page;
+
+    public RoomResponse() { }
+
+    public RoomResponse(RoomRequest request) {
+        this.requestId = request.requestId;
+        this.op = request.op;
+        this.room = request.room;
+    }
+}
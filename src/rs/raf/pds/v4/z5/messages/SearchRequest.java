@@ -0,0 +1,26 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Pretraga istorije preko postojece KryoNet konekcije (RMI ChatService.search je rezerva).
+// Server odgovara sa SearchResponse koji nosi isti requestId.
+public class SearchRequest {
+
+    public int requestId;
+
+    // "public" (podrazumevano), "room:ime", "dm:korisnik", "from:korisnik"
+    public String scope;
+
+    // reci razdvojene razmakom, sve moraju biti u poruci; "rec*" trazi prefiks
+    public String query;
+
+    // kursor iz prethodnog odgovora (0 = od najnovijih)
+    public int cursor;
+    public int limit;
+
+    public SearchRequest() { }
+
+    public SearchRequest(int requestId, String scope, String query) {
+        this.requestId = requestId;
+        this.scope = scope;
+        this.query = query;
+    }
+}
@@ -0,0 +1,31 @@
+package rs.raf.pds.v4.z5.messages;
+
+import java.io.Serializable;
+
+// Odgovor na SearchRequest (i rezultat RMI pretrage): pogoci od najnovijeg ka starijim.
+public class SearchResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public int requestId;
+    public String scope;
+    public String query;
+
+    // false = neispravan opseg/upit (error) ili server zauzet (busy)
+    public boolean ok;
+    public String error;
+    public boolean busy;
+
+    public ChatPacket[] messages;
+
+    // sledeca stranica: isti upit sa ovim kursorom
+    public int cursor;
+    public boolean hasMore;
+
+    public SearchResponse() { }
+
+    public SearchResponse(int requestId, String scope, String query) {
+        this.requestId = requestId;
+        this.scope = scope;
+        this.query = query;
+    }
+}
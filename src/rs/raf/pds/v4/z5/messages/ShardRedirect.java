@@ -0,0 +1,14 @@
+package rs.raf.pds.v4.z5.messages;
+
+// Odgovor na Login kada server radi sa vise shard-ova: klijent se ponovo povezuje na dati port
+// (isti host) i tamo ponovo salje Login. Imena korisnika su zajednicka za sve shard-ove.
+public class ShardRedirect {
+
+    public int port;
+
+    public ShardRedirect() { }
+
+    public ShardRedirect(int port) {
+        this.port = port;
+    }
+}
@@ -0,0 +1,100 @@
+package rs.raf.pds.v4.z5.messages;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Recnik korisnickih imena za jednu sesiju: ime <-> mali ceo broj (handle).
+// Server dodeljuje handle pri login-u i najavljuje ga svim konekcijama (UserHandles),
+// pa ChatPacketSerializer umesto imena salje varint. Handle se ne menja dok server radi.
+// Ime bez handle-a (korisnik se nikad nije ulogovao) ide kao string.
+public class UserDirectory {
+
+    // objavljeni handle-ovi (koristi ih serializer)
+    private final ConcurrentMap<String, Integer> handles = new ConcurrentHashMap<>();
+    // dodeljeni, ukljucujuci one koji jos nisu objavljeni
+    private final ConcurrentMap<String, Integer> assigned = new ConcurrentHashMap<>();
+    // handle -> ime; citaoci (serializer) ne zakljucavaju
+    private volatile String[] names = new String[64];
+    private int next = 0;
+
+    // server: vraca postojeci ili novi handle. Serializer ga koristi tek posle publish(),
+    // kada su najave vec u izlaznim redovima svih konekcija.
+    public int assign(String name) {
+        Integer h = assigned.get(name);
+        if (h != null) return h;
+        synchronized (this) {
+            h = assigned.get(name);
+            if (h != null) return h;
+            int handle = next++;
+            store(handle, name);
+            assigned.put(name, handle);
+            return handle;
+        }
+    }
+
+    public void publish(String name) {
+        Integer h = assigned.get(name);
+        if (h != null) handles.put(name, h);
+    }
+
+    public int register(String name) {
+        int handle = assign(name);
+        publish(name);
+        return handle;
+    }
+
+    // klijent: mapiranje iz najave servera
+    public synchronized void put(int handle, String name) {
+        store(handle, name);
+        assigned.put(name, handle);
+        handles.put(name, handle);
+        next = Math.max(next, handle + 1);
+    }
+
+    // -1 ako ime nema (objavljen) handle
+    public int handleOf(String name) {
+        Integer h = handles.get(name);
+        return h == null ? -1 : h;
+    }
+
+    // null ako handle nije najavljen
+    public String nameOf(int handle) {
+        String[] n = names;
+        return handle >= 0 && handle < n.length ? n[handle] : null;
+    }
+
+    // klijent: nova konekcija (npr. posle restarta servera) donosi novu tabelu
+    public synchronized void clear() {
+        handles.clear();
+        assigned.clear();
+        names = new String[64];
+        next = 0;
+    }
+
+    public synchronized int size() {
+        return next;
+    }
+
+    // cela tabela (za novu konekciju)
+    public synchronized UserHandles snapshot() {
+        int[] h = new int[assigned.size()];
+        String[] n = new String[h.length];
+        int i = 0;
+        for (int handle = 0; handle < next && i < h.length; handle++) {
+            if (names[handle] == null) continue;
+            h[i] = handle;
+            n[i] = names[handle];
+            i++;
+        }
+        return new UserHandles(Arrays.copyOf(h, i), Arrays.copyOf(n, i));
+    }
+
+    // upis pa volatile objava (i kad je niz isti), pa citalac koji vidi handle vidi i ime
+    private void store(int handle, String name) {
+        String[] n = names;
+        if (handle >= n.length) n = Arrays.copyOf(n, Math.max(n.length * 2, handle + 1));
+        n[handle] = name;
+        names = n;
+    }
+}
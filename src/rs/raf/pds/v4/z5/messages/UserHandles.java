@@ -0,0 +1,39 @@
+package rs.raf.pds.v4.z5.messages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Najava handle -> ime. Nova konekcija dobija celu tabelu, ostale samo nove korisnike.
+// Stize pre svake poruke koja koristi te handle-ove (isti TCP tok, isti izlazni red).
+public class UserHandles {
+
+    public int[] handles;
+    public String[] names;
+
+    public UserHandles() { }
+
+    public UserHandles(int[] handles, String[] names) {
+        this.handles = handles;
+        this.names = names;
+    }
+
+    // delovi od najvise maxBytes (procena): okvir mora stati u write bafer konekcije, a tabela
+    // sa hiljadama imena ne staje
+    public List<UserHandles> split(int maxBytes) {
+        List<UserHandles> parts = new ArrayList<>();
+        int from = 0, bytes = 0;
+        for (int i = 0; i < handles.length; i++) {
+            int size = 6 + 3 * names[i].length();
+            if (i > from && bytes + size > maxBytes) {
+                parts.add(new UserHandles(Arrays.copyOfRange(handles, from, i), Arrays.copyOfRange(names, from, i)));
+                from = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        parts.add(from == 0 ? this : new UserHandles(Arrays.copyOfRange(handles, from, handles.length),
+                Arrays.copyOfRange(names, from, names.length)));
+        return parts;
+    }
+}
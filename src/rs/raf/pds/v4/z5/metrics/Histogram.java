@@ -0,0 +1,82 @@
+package rs.raf.pds.v4.z5.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram za vise niti (HDR-stil, log-linearan): do 63 tacno, iznad toga 32 korpe po stepenu
+// dvojke (greska < 3.2%). record() ne alocira - jedan inkrement korpe, zbir i retko CAS za max.
+// Jedinica je proizvoljna (ns, broj primalaca...); citanje je priblizno dok se upisuje.
+public final class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    // do 2^44 (~4.9 h u ns)
+    private static final int BUCKETS = (44 - SUB_BITS + 1) * SUB + SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.getAndIncrement(Math.min(BUCKETS - 1, index(value)));
+        sum.getAndAdd(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+    // vreme od start-a (System.nanoTime) do sada
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    // gornja granica korpe u kojoj je p-ti uzorak (p u [0, 1])
+    public long percentile(double p) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += snapshot[i] = counts.get(i);
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(max.get(), upperBound(i));
+        }
+        return max.get();
+    }
+
+    // "n=.. mean=.. p50=.. p99=.. p99.9=.. max=.." sa vrednostima podeljenim sa div
+    public String summary(long div, String unit) {
+        long n = count();
+        if (n == 0) return "n=0";
+        return "n=" + n + " mean=" + sum.get() / n / div + unit
+                + " p50=" + percentile(0.5) / div + unit
+                + " p99=" + percentile(0.99) / div + unit
+                + " p99.9=" + percentile(0.999) / div + unit
+                + " max=" + max.get() / div + unit;
+    }
+
+    static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB) return index;
+        int shift = index / SUB - 1;
+        long mantissa = index % SUB + SUB;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
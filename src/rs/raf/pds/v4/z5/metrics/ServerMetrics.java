@@ -0,0 +1,65 @@
+package rs.raf.pds.v4.z5.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import rs.raf.pds.v4.z5.messages.PacketType;
+
+// Brojaci i histogrami chat pipeline-a. Upis je na vrucoj putanji (LongAdder / Histogram, bez
+// alokacija i lock-ova); report() se zove retko (RMI getStats, periodicni ispis).
+public final class ServerMetrics {
+
+    // faze pipeline-a sa redom ispred sebe
+    public enum Stage { VALIDATE, STORE, FANOUT }
+
+    private final LongAdder[] received = new LongAdder[PacketType.values().length];
+    private final LongAdder dropped = new LongAdder();
+    private final Histogram[] queueWait = new Histogram[Stage.values().length];
+    // prijem na KryoNet niti -> predato izlaznim redovima primalaca
+    private final Histogram handling = new Histogram();
+    // broj primalaca po poruci (lokalne konekcije)
+    private final Histogram fanOut = new Histogram();
+
+    public ServerMetrics() {
+        for (int i = 0; i < received.length; i++) received[i] = new LongAdder();
+        for (int i = 0; i < queueWait.length; i++) queueWait[i] = new Histogram();
+    }
+
+    public void received(PacketType type) {
+        received[type.ordinal()].increment();
+    }
+
+    // pun red validate faze
+    public void dropped() {
+        dropped.increment();
+    }
+
+    // queuedNanos = System.nanoTime() pri predaji fazi
+    public void dequeued(Stage stage, long queuedNanos) {
+        queueWait[stage.ordinal()].recordSince(queuedNanos);
+    }
+
+    public void handled(long receivedNanos) {
+        handling.recordSince(receivedNanos);
+    }
+
+    public void fanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    public long count(PacketType type) {
+        return received[type.ordinal()].sum();
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder("packets");
+        for (PacketType t : PacketType.values()) sb.append(' ').append(t).append('=').append(count(t));
+        sb.append(" dropped=").append(dropped.sum()).append('\n');
+        for (Stage s : Stage.values()) {
+            sb.append("wait ").append(s.name().toLowerCase()).append(": ")
+                    .append(queueWait[s.ordinal()].summary(1000, "us")).append('\n');
+        }
+        sb.append("handling: ").append(handling.summary(1000, "us")).append('\n');
+        sb.append("fan-out: ").append(fanOut.summary(1, "")).append('\n');
+        return sb.toString();
+    }
+}
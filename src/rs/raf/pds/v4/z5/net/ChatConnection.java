@@ -0,0 +1,97 @@
+package rs.raf.pds.v4.z5.net;
+
+import java.util.BitSet;
+
+import com.esotericsoftware.kryonet.Connection;
+
+import rs.raf.pds.v4.z5.messages.Compression;
+
+// Konekcija na serveru sa sopstvenim izlaznim redom (Server.newConnection() vraca ovu klasu).
+public class ChatConnection extends Connection {
+
+    // shard (KryoNet Server) koji drzi ovu konekciju
+    private final int shard;
+
+    private volatile OutboundQueue outbound;
+
+    // dogovoreno pri Login-u
+    private volatile Compression compression = Compression.NONE;
+
+    // handle-ovi korisnika iz poslednjeg ListUsers odgovora ili delte prisutnosti (pod presence lock-om servera)
+    private final BitSet listedUsers = new BitSet();
+
+    // prijavljena na delte prisutnosti (PresenceSubscribe)
+    private volatile boolean presenceSubscribed;
+
+    // firstId grupe iz poste koja ceka MailboxAck (-1 = nijedna); menja se samo na traci poste korisnika
+    private volatile long mailboxInFlight = -1;
+
+    // bajtovi objekata (bez prefiksa duzine); citanje ide sa jedne niti shard-a, pisanje pod writeLock-om
+    // konekcije, pa je jedan upisivac u svakom trenutku
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+
+    public ChatConnection() {
+        this(0);
+    }
+
+    public ChatConnection(int shard) {
+        this.shard = shard;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression == null ? Compression.NONE : compression;
+    }
+
+    public BitSet getListedUsers() {
+        return listedUsers;
+    }
+
+    public boolean isPresenceSubscribed() {
+        return presenceSubscribed;
+    }
+
+    public void setPresenceSubscribed(boolean presenceSubscribed) {
+        this.presenceSubscribed = presenceSubscribed;
+    }
+
+    public long getMailboxInFlight() {
+        return mailboxInFlight;
+    }
+
+    public void setMailboxInFlight(long mailboxInFlight) {
+        this.mailboxInFlight = mailboxInFlight;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    void addBytesIn(int n) {
+        bytesIn += n;
+    }
+
+    void addBytesOut(int n) {
+        bytesOut += n;
+    }
+}
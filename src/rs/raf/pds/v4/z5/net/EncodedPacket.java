@@ -0,0 +1,45 @@
+package rs.raf.pds.v4.z5.net;
+
+import rs.raf.pds.v4.z5.messages.Compression;
+
+// Vec serijalizovan objekat (Kryo class id + telo), spreman za slanje na vise konekcija.
+// Ne registruje se u Kryo-u - FanOutSerialization ga prepoznaje i samo kopira bajtove.
+public final class EncodedPacket {
+    private final byte[] bytes;
+    private final Class<?> type;
+
+    // kompresovane varijante (po kodeku), prave se jednom za sve konekcije; this = ne isplati se
+    private EncodedPacket fast;
+    private EncodedPacket dense;
+
+    EncodedPacket(byte[] bytes, Class<?> type) {
+        this.bytes = bytes;
+        this.type = type;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    synchronized EncodedPacket variant(Compression codec) {
+        return codec == Compression.FAST ? fast : dense;
+    }
+
+    synchronized void setVariant(Compression codec, EncodedPacket variant) {
+        if (codec == Compression.FAST) fast = variant;
+        else dense = variant;
+    }
+
+    @Override
+    public String toString() {
+        return "Encoded" + type.getSimpleName() + "(" + bytes.length + "B)";
+    }
+}
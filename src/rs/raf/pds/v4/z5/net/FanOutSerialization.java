@@ -0,0 +1,110 @@
+package rs.raf.pds.v4.z5.net;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.KryoNetException;
+import com.esotericsoftware.kryonet.KryoSerialization;
+
+import rs.raf.pds.v4.z5.messages.CompressedPacket;
+import rs.raf.pds.v4.z5.messages.Compression;
+import rs.raf.pds.v4.z5.messages.PacketBatch;
+
+// KryoSerialization koja zna da posalje vec enkodovan paket bez ponovne serijalizacije.
+// Enkodovanje koristi isti Kryo (iste registracije), pa klijent ne vidi nikakvu razliku.
+public class FanOutSerialization extends KryoSerialization {
+
+    private final Output encodeOutput = new Output(256, -1);
+    private final PayloadCompressor compressor;
+
+    public FanOutSerialization() {
+        this(new PayloadCompressor());
+    }
+
+    // shard-ovi dele kompresor (i njegovu statistiku)
+    public FanOutSerialization(PayloadCompressor compressor) {
+        super();
+        this.compressor = compressor;
+    }
+
+    // serijalizuje objekat jednom; rezultat se moze poslati na proizvoljan broj konekcija
+    public synchronized EncodedPacket encode(Object object) {
+        if (object instanceof EncodedPacket) return (EncodedPacket) object;
+
+        encodeOutput.clear();
+        getKryo().writeClassAndObject(encodeOutput, object);
+        return new EncodedPacket(encodeOutput.toBytes(), object.getClass());
+    }
+
+    // varijanta paketa za konekciju sa datim kodekom; kompresuje se najvise jednom po kodeku
+    public EncodedPacket compressed(EncodedPacket frame, Compression codec) {
+        if (codec == null || codec == Compression.NONE || frame.length() < PayloadCompressor.THRESHOLD
+                || frame.getType() == CompressedPacket.class) {
+            return frame;
+        }
+
+        EncodedPacket variant = frame.variant(codec);
+        if (variant != null) return variant;
+
+        // kompresija van lock-a serijalizacije; dve niti mogu da je urade istovremeno, rezultat je isti
+        byte[] data = compressor.compress(frame.getBytes(), codec);
+        variant = data == null ? frame : encode(new CompressedPacket(codec, frame.length(), data));
+        frame.setVariant(codec, variant);
+        return variant;
+    }
+
+    // count okvira iz ring-a (od head) spaja u jedan PacketBatch okvir
+    public EncodedPacket batch(EncodedPacket[] ring, int head, int count) {
+        int length = 0;
+        for (int i = 0; i < count; i++) length += ring[(head + i) % ring.length].length();
+
+        byte[] frames = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = ring[(head + i) % ring.length].getBytes();
+            System.arraycopy(bytes, 0, frames, pos, bytes.length);
+            pos += bytes.length;
+        }
+        return encode(new PacketBatch(count, frames));
+    }
+
+    // raspakuje CompressedPacket u originalnu poruku; kompresovan paket u kompresovanom se odbija
+    public Object decompress(CompressedPacket packet, int maxRawLength) throws DataFormatException {
+        byte[] raw = compressor.decompress(packet, maxRawLength);
+        Object object;
+        synchronized (this) {
+            object = getKryo().readClassAndObject(new Input(raw));
+        }
+        if (object instanceof CompressedPacket) throw new DataFormatException("Nested compressed packet");
+        return object;
+    }
+
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    public void write(Connection connection, ByteBuffer buffer, Object object) {
+        int start = buffer.position();
+        if (object instanceof EncodedPacket) {
+            byte[] bytes = ((EncodedPacket) object).getBytes();
+            if (buffer.remaining() < bytes.length)
+                throw new KryoNetException("Buffer overflow: " + object);
+            buffer.put(bytes);
+        } else {
+            super.write(connection, buffer, object);
+        }
+        if (connection instanceof ChatConnection) ((ChatConnection) connection).addBytesOut(buffer.position() - start);
+    }
+
+    @Override
+    public Object read(Connection connection, ByteBuffer buffer) {
+        int start = buffer.position();
+        Object object = super.read(connection, buffer);
+        if (connection instanceof ChatConnection) ((ChatConnection) connection).addBytesIn(buffer.position() - start);
+        return object;
+    }
+}
@@ -0,0 +1,356 @@
+package rs.raf.pds.v4.z5.net;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.esotericsoftware.kryonet.Connection;
+
+import rs.raf.pds.v4.z5.log.ServerLog;
+
+// Ograniceni izlazni red jedne konekcije. Fan-out samo upisuje u red i nikad ne ceka na spor klijent;
+// red se prazni u KryoNet write bafer kad u njemu ima mesta (odmah ili iz Listener.idle()).
+// Sa batch prozorom PUBLIC/EDIT poruke cekaju do windowNanos (ili dok se ne skupi batchBytes)
+// i odlaze kao jedan PacketBatch okvir; PROTECTED (DM, odgovori) prazni red odmah.
+public class OutboundQueue {
+
+    private static final ServerLog.Channel LOG = ServerLog.channel("conn");
+
+    public enum Kind {
+        PUBLIC,     // moze da se izbaci kad je red pun
+        EDIT,       // spaja se sa ranijim edit-om iste poruke
+        PROTECTED   // DM/MCAST i odgovori serveru - nikad se ne izbacuje
+    }
+
+    public enum Policy {
+        DROP_OLDEST_PUBLIC,  // pun red -> izbaci najstariju PUBLIC poruku
+        DISCONNECT           // red dostigne high-water -> prekini konekciju
+    }
+
+    private final Connection connection;
+    private final int writeBufferSize;
+    private final int capacity;
+    private final int highWaterMark;
+    private final Policy policy;
+    private final boolean coalesceEdits;
+
+    // batch: serialization == null -> svaki okvir ide posebno
+    private final FanOutSerialization serialization;
+    private final ScheduledExecutorService flusher;
+    private final long windowNanos;
+    private final int batchBytes;
+    private boolean flushScheduled = false;
+
+    // sendTCP ide van monitora (neuspeo upis zatvara konekciju i na istoj niti zove Listener.disconnected,
+    // koji uzima lock-ove servera); samo jedna nit salje, ostale samo dodaju u red
+    private boolean draining = false;
+
+    // ring baferi, bez alokacije po poruci
+    private EncodedPacket[] frames;
+    private Kind[] kinds;
+    private long[] editTargets;
+    private long[] enqueuedAt;
+    private int head = 0;
+    private int size = 0;
+    private int queuedBytes = 0;
+
+    // metrike
+    private long sent = 0;
+    private long dropped = 0;
+    private long coalesced = 0;
+    private int maxSize = 0;
+    private long batches = 0;
+    private long batchedFrames = 0;
+    private long oversized = 0;
+    private volatile boolean overflowed = false;
+
+    public OutboundQueue(Connection connection, int writeBufferSize, int capacity, int highWaterMark,
+                         Policy policy, boolean coalesceEdits) {
+        this(connection, writeBufferSize, capacity, highWaterMark, policy, coalesceEdits, null, null, 0, 0);
+    }
+
+    public OutboundQueue(Connection connection, int writeBufferSize, int capacity, int highWaterMark,
+                         Policy policy, boolean coalesceEdits, FanOutSerialization serialization,
+                         ScheduledExecutorService flusher, long windowNanos, int batchBytes) {
+        this.connection = connection;
+        this.writeBufferSize = writeBufferSize;
+        this.capacity = capacity;
+        this.highWaterMark = Math.max(capacity, highWaterMark);
+        this.policy = policy;
+        this.coalesceEdits = coalesceEdits;
+        this.serialization = batchBytes > 0 ? serialization : null;
+        this.flusher = flusher;
+        this.windowNanos = flusher == null ? 0 : windowNanos;
+        // batch + zaglavlje mora da stane u prazan write bafer
+        this.batchBytes = Math.min(batchBytes, writeBufferSize - 16);
+
+        this.frames = new EncodedPacket[capacity];
+        this.kinds = new Kind[capacity];
+        this.editTargets = new long[capacity];
+        this.enqueuedAt = new long[capacity];
+    }
+
+    public void send(EncodedPacket frame, Kind kind, long editTargetId) {
+        boolean disconnect = false;
+        boolean drainNow;
+
+        synchronized (this) {
+            if (overflowed) return;
+
+            // okvir koji ne staje ni u prazan write bafer: sendTCP bi bacio izuzetak i zatvorio konekciju
+            if (frame.length() > writeBufferSize - 4) {
+                oversized++;
+                dropped++;
+                LOG.warn("oversized-frame conn=" + connection + " bytes=" + frame.length() + " action=drop");
+                return;
+            }
+
+            if (kind == Kind.EDIT && coalesceEdits && replaceEdit(frame, editTargetId)) {
+                coalesced++;
+            } else if (size >= capacity && policy == Policy.DROP_OLDEST_PUBLIC && !dropOldestPublic()
+                    && kind == Kind.PUBLIC) {
+                dropped++;
+            } else {
+                // zasticene poruke se ne izbacuju; red raste najvise do high-water
+                disconnect = size >= highWaterMark;
+                if (disconnect) {
+                    overflowed = true;
+                    clear();
+                } else {
+                    add(frame, kind, editTargetId);
+                }
+            }
+
+            drainNow = !disconnect && flushOrWait(kind);
+        }
+
+        if (drainNow) drain();
+        if (disconnect) {
+            LOG.warn("slow-consumer conn=" + connection + " action=disconnect reason=outbound-queue-full");
+            connection.close();
+        }
+    }
+
+    // DM i odgovori ne cekaju; ostalo ceka prozor osim ako se vec skupio pun batch.
+    // true = pozivalac zove drain() posle izlaska iz monitora
+    private boolean flushOrWait(Kind kind) {
+        if (windowNanos <= 0 || kind == Kind.PROTECTED || queuedBytes >= batchBytes) return true;
+        if (!flushScheduled && size > 0) {
+            flushScheduled = true;
+            flusher.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    private void flush() {
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        drain();
+    }
+
+    // Listener.idle(): nastavi zaostali red, ali ne skracuj prozor koji jos tece
+    public void drainIfReady() {
+        synchronized (this) {
+            if (size == 0 || flushScheduled) return;
+        }
+        drain();
+    }
+
+    // prebacuje poruke u KryoNet write bafer dok ima mesta; uzastopni okviri se spajaju u batch.
+    // Okvir se uzima iz reda pod monitorom, a sendTCP ide van njega; nit koja zatekne draining
+    // samo izlazi - nit koja salje pokupi i njen okvir u sledecem krugu.
+    public void drain() {
+        synchronized (this) {
+            if (draining) return;
+            draining = true;
+        }
+        // draining se gasi pod istim monitorom kao poslednja provera reda, pa okvir ne ostaje bez posiljaoca
+        boolean done = false;
+        try {
+            while (true) {
+                EncodedPacket frame;
+                synchronized (this) {
+                    frame = next();
+                    if (frame == null) {
+                        draining = false;
+                        done = true;
+                        return;
+                    }
+                }
+                connection.sendTCP(frame);
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    // sledeci okvir (ili batch) za sendTCP, vec izvadjen iz reda; null = prazno ili je write bafer pun
+    private EncodedPacket next() {
+        if (size == 0 || !connection.isConnected()) return null;
+        int count = batchCount(connection.getTcpWriteBufferSize());
+        if (count == 0) return null;
+
+        EncodedPacket frame;
+        if (count == 1) {
+            frame = frames[head];
+        } else {
+            frame = serialization.batch(frames, head, count);
+            batches++;
+            batchedFrames += count;
+        }
+        for (int i = 0; i < count; i++) {
+            queuedBytes -= frames[head].length();
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+        }
+        size -= count;
+        sent += count;
+        return frame;
+    }
+
+    // koliko okvira od glave ide u sledeci sendTCP (0 = write bafer je pun)
+    private int batchCount(int buffered) {
+        int first = frames[head].length();
+        if (buffered > 0 && buffered + first + 4 > writeBufferSize) return 0;
+        if (serialization == null) return 1;
+
+        // batch mora da stane i u ono sto je ostalo u write baferu
+        int limit = Math.min(batchBytes, writeBufferSize - buffered - 16);
+        int count = 1;
+        int bytes = first;
+        while (count < size) {
+            int next = frames[(head + count) % frames.length].length();
+            if (bytes + next > limit) break;
+            bytes += next;
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(frames, null);
+        head = 0;
+        size = 0;
+        queuedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // koliko dugo najstarija poruka ceka u redu
+    public synchronized long lagMillis() {
+        if (size == 0) return 0;
+        return (System.nanoTime() - enqueuedAt[head]) / 1_000_000;
+    }
+
+    public synchronized String lagReport() {
+        return "queued=" + size
+                + " maxQueued=" + maxSize
+                + " lagMs=" + lagMillis()
+                + " sent=" + sent
+                + " dropped=" + dropped
+                + (oversized == 0 ? "" : " oversized=" + oversized)
+                + " coalesced=" + coalesced
+                + " batches=" + batches
+                + (batches == 0 ? "" : String.format(" avgBatch=%.1f", batchedFrames / (double) batches))
+                + (overflowed ? " DISCONNECTED" : "");
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    private void add(EncodedPacket frame, Kind kind, long editTargetId) {
+        if (size == frames.length) grow();
+
+        int tail = (head + size) % frames.length;
+        frames[tail] = frame;
+        kinds[tail] = kind;
+        editTargets[tail] = editTargetId;
+        enqueuedAt[tail] = System.nanoTime();
+        size++;
+        queuedBytes += frame.length();
+        if (size > maxSize) maxSize = size;
+    }
+
+    private boolean replaceEdit(EncodedPacket frame, long editTargetId) {
+        for (int i = 0; i < size; i++) {
+            int idx = (head + i) % frames.length;
+            if (kinds[idx] == Kind.EDIT && editTargets[idx] == editTargetId) {
+                queuedBytes += frame.length() - frames[idx].length();
+                frames[idx] = frame;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dropOldestPublic() {
+        for (int i = 0; i < size; i++) {
+            int idx = (head + i) % frames.length;
+            if (kinds[idx] == Kind.PUBLIC) {
+                removeAt(i);
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // uklanja i-ti element (od glave) i pomera ostale ka glavi
+    private void removeAt(int i) {
+        queuedBytes -= frames[(head + i) % frames.length].length();
+        for (int j = i; j > 0; j--) {
+            int to = (head + j) % frames.length;
+            int from = (head + j - 1) % frames.length;
+            frames[to] = frames[from];
+            kinds[to] = kinds[from];
+            editTargets[to] = editTargets[from];
+            enqueuedAt[to] = enqueuedAt[from];
+        }
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        size--;
+    }
+
+    // zasticene poruke mogu da predju capacity (do high-water), pa ring po potrebi raste
+    private void grow() {
+        int newLength = Math.min(frames.length * 2, highWaterMark);
+        if (newLength <= frames.length) newLength = frames.length + 1;
+
+        EncodedPacket[] f = new EncodedPacket[newLength];
+        Kind[] k = new Kind[newLength];
+        long[] e = new long[newLength];
+        long[] t = new long[newLength];
+        for (int i = 0; i < size; i++) {
+            int idx = (head + i) % frames.length;
+            f[i] = frames[idx];
+            k[i] = kinds[idx];
+            e[i] = editTargets[idx];
+            t[i] = enqueuedAt[idx];
+        }
+        frames = f;
+        kinds = k;
+        editTargets = e;
+        enqueuedAt = t;
+        head = 0;
+    }
+}
@@ -0,0 +1,132 @@
+package rs.raf.pds.v4.z5.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import rs.raf.pds.v4.z5.messages.CompressedPacket;
+import rs.raf.pds.v4.z5.messages.Compression;
+
+// Kompresija Kryo zapisa iznad praga (-Dchat.compression.threshold=N bajtova).
+// FAST = Deflate BEST_SPEED, DENSE = Deflate nivo 9; oba sa zajednickim recnikom za chat tekst,
+// pa se i kratke poruke (odmah iznad praga) dobro sabijaju. Nema spoljnih zavisnosti (LZ4 nije u lib/).
+// Deflater/Inflater su po niti; statistika (odnos, CPU) je zajednicka.
+public final class PayloadCompressor {
+
+    public static int THRESHOLD = Integer.getInteger("chat.compression.threshold", 512);
+
+    // cesti delovi chat poruka i Kryo okvira; kraj recnika ima najvecu tezinu
+    static final byte[] DICTIONARY = (
+            "http://https://www..com.rs.org/index.html?id="
+            + " the and you that for with this have are not was but what can will just "
+            + " je da se na i u ne sam to li za su od ali kao sta ili bi mi ti on ona smo ste"
+            + " poruka sobe soba korisnik server hvala molim dobro pozdrav vidimo se sutra danas"
+            + " :) :D ok OK jel moze nema ima treba mozda sada posle ranije")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final ThreadLocal<Deflater> fast = ThreadLocal.withInitial(() -> deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Deflater> dense = ThreadLocal.withInitial(() -> deflater(Deflater.BEST_COMPRESSION));
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[16384]);
+
+    private final Stats[] stats = { new Stats(), new Stats(), new Stats() };
+    private final LongAdder inflated = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    private static final class Stats {
+        final LongAdder compressed = new LongAdder();
+        final LongAdder incompressible = new LongAdder();
+        final LongAdder rawBytes = new LongAdder();
+        final LongAdder outBytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    // null ako je ispod praga ili se ne isplati (rezultat nije manji)
+    public byte[] compress(byte[] raw, Compression codec) {
+        if (codec == null || codec == Compression.NONE || raw.length < THRESHOLD) return null;
+
+        long start = System.nanoTime();
+        Deflater d = (codec == Compression.FAST ? fast : dense).get();
+        d.reset();
+        d.setDictionary(DICTIONARY);
+        d.setInput(raw);
+        d.finish();
+
+        byte[] buf = scratch.get();
+        int n = 0;
+        while (!d.finished()) {
+            if (n == buf.length) {
+                // ne isplati se - izlaz je vec veci od ulaza
+                if (n >= raw.length) break;
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                scratch.set(buf);
+            }
+            n += d.deflate(buf, n, buf.length - n);
+        }
+
+        Stats s = stats[codec.ordinal()];
+        s.nanos.add(System.nanoTime() - start);
+        if (!d.finished() || n >= raw.length) {
+            s.incompressible.increment();
+            return null;
+        }
+        s.compressed.increment();
+        s.rawBytes.add(raw.length);
+        s.outBytes.add(n);
+        return Arrays.copyOf(buf, n);
+    }
+
+    // rawLength salje druga strana: proverava se pre alokacije (maxRawLength = ulazni limit primaoca)
+    public byte[] decompress(CompressedPacket packet, int maxRawLength) throws DataFormatException {
+        if (packet.rawLength < 0 || packet.rawLength > maxRawLength) {
+            throw new DataFormatException("Raw length " + packet.rawLength + " outside 0.." + maxRawLength);
+        }
+        if (packet.data == null) throw new DataFormatException("No data");
+        long start = System.nanoTime();
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setDictionary(DICTIONARY);
+        inf.setInput(packet.data);
+
+        byte[] raw = new byte[packet.rawLength];
+        int n = 0;
+        while (n < raw.length) {
+            int k = inf.inflate(raw, n, raw.length - n);
+            if (k == 0 && (inf.finished() || inf.needsInput())) break;
+            n += k;
+        }
+        if (n != raw.length) throw new DataFormatException("Expected " + raw.length + " bytes, got " + n);
+
+        inflated.increment();
+        inflateNanos.add(System.nanoTime() - start);
+        return raw;
+    }
+
+    // odnos i cena po kodeku, za podesavanje praga
+    public String report() {
+        StringBuilder sb = new StringBuilder("threshold=").append(THRESHOLD);
+        for (Compression c : new Compression[] { Compression.FAST, Compression.DENSE }) {
+            Stats s = stats[c.ordinal()];
+            long count = s.compressed.sum();
+            long raw = s.rawBytes.sum();
+            long out = s.outBytes.sum();
+            long attempts = count + s.incompressible.sum();
+            sb.append(' ').append(c).append("[count=").append(count)
+                    .append(" skipped=").append(s.incompressible.sum())
+                    .append(String.format(" ratio=%.2f", raw == 0 ? 1.0 : out / (double) raw))
+                    .append(" saved=").append(raw - out).append('B')
+                    .append(" avgNs=").append(attempts == 0 ? 0 : s.nanos.sum() / attempts)
+                    .append(']');
+        }
+        long n = inflated.sum();
+        sb.append(" inflate[count=").append(n).append(" avgNs=").append(n == 0 ? 0 : inflateNanos.sum() / n).append(']');
+        return sb.toString();
+    }
+
+    private static Deflater deflater(int level) {
+        return new Deflater(level, true);
+    }
+}
@@ -0,0 +1,103 @@
+package rs.raf.pds.v4.z5.net;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Server;
+
+import rs.raf.pds.v4.z5.pipeline.StripedExecutor;
+
+// Jedan KryoNet Server (svoj selector, nit i serijalizacija) na portu basePort + index.
+// Drzi prijavljene konekcije shard-a (copy-on-write niz) i ulazni red sa jednom niti:
+// fan-out sa bilo koje niti predaje isporuku shard-u, a shard je radi za svoje konekcije
+// redom kojim je predata.
+public class ServerShard {
+
+    private static final ChatConnection[] NO_CONNECTIONS = new ChatConnection[0];
+
+    private final int index;
+    private final int port;
+    private final FanOutSerialization serialization;
+    private final Server server;
+    private final StripedExecutor inbound;
+
+    private volatile ChatConnection[] connections = NO_CONNECTIONS;
+
+    public ServerShard(int index, int port, int writeBufferSize, int objectBufferSize,
+                       FanOutSerialization serialization, int inboundCapacity, ThreadFactory threads) {
+        this.index = index;
+        this.port = port;
+        this.serialization = serialization;
+        this.server = new Server(writeBufferSize, objectBufferSize, serialization) {
+            @Override
+            protected Connection newConnection() {
+                return new ChatConnection(index);
+            }
+        };
+        this.inbound = new StripedExecutor("shard" + index, 1, inboundCapacity, threads);
+    }
+
+    public void start() throws IOException {
+        server.start();
+        server.bind(port);
+    }
+
+    public void stop() {
+        inbound.shutdown();
+        server.stop();
+    }
+
+    // blokira ako je red shard-a pun (backpressure ka fan-out-u)
+    public void execute(Runnable task) {
+        try {
+            inbound.put(index, task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public ChatConnection[] getConnections() {
+        return connections;
+    }
+
+    public synchronized void addConnection(ChatConnection conn) {
+        ChatConnection[] current = connections;
+        for (ChatConnection c : current) if (c == conn) return;
+        ChatConnection[] next = new ChatConnection[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = conn;
+        connections = next;
+    }
+
+    public synchronized void removeConnection(ChatConnection conn) {
+        ChatConnection[] current = connections;
+        int i = 0;
+        while (i < current.length && current[i] != conn) i++;
+        if (i == current.length) return;
+        ChatConnection[] next = new ChatConnection[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        connections = next;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public FanOutSerialization getSerialization() {
+        return serialization;
+    }
+
+    public int queueDepth() {
+        return inbound.queueDepth();
+    }
+}
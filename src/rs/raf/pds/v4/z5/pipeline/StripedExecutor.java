@@ -0,0 +1,126 @@
+package rs.raf.pds.v4.z5.pipeline;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rs.raf.pds.v4.z5.log.ServerLog;
+
+// Izvrsilac sa fiksnim brojem "traka" (lane). Svaka traka ima svoj ograniceni red i jednu nit,
+// pa se zadaci sa istim kljucem (npr. posiljalac) izvrsavaju redom kojim su predati.
+public class StripedExecutor {
+
+    private static final ServerLog.Channel LOG = ServerLog.channel("pipeline");
+
+    private final String name;
+    private final Lane[] lanes;
+    private volatile boolean running = true;
+
+    public StripedExecutor(String name, int laneCount, int queueCapacity, ThreadFactory threadFactory) {
+        if (laneCount < 1) throw new IllegalArgumentException("laneCount must be >= 1");
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be >= 1");
+
+        this.name = name;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(queueCapacity);
+            Thread t = threadFactory.newThread(lanes[i]);
+            t.setName(name + "-" + i);
+            t.start();
+        }
+    }
+
+    // ne blokira; false ako je red trake pun
+    public boolean offer(Object key, Runnable task) {
+        return running && lane(key).queue.offer(task);
+    }
+
+    // blokira dok se ne oslobodi mesto (backpressure izmedju faza)
+    public void put(Object key, Runnable task) throws InterruptedException {
+        if (!running) return;
+        lane(key).queue.put(task);
+    }
+
+    public int laneOf(Object key) {
+        return (key.hashCode() & 0x7fffffff) % lanes.length;
+    }
+
+    public int queueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) depth += lane.queue.size();
+        return depth;
+    }
+
+    public int[] laneDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) depths[i] = lanes[i].queue.size();
+        return depths;
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Lane lane : lanes) lane.queue.offer(POISON);
+    }
+
+    private Lane lane(Object key) {
+        return lanes[laneOf(key)];
+    }
+
+    private static final Runnable POISON = () -> { };
+
+    private final class Lane implements Runnable {
+        final BlockingQueue<Runnable> queue;
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == POISON) return;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    // asinhrono kroz ServerLog; traka nastavlja sa sledecim zadatkom
+                    LOG.error("task-failed stage=" + name + " thread=" + Thread.currentThread().getName(), t);
+                }
+            }
+        }
+    }
+
+    // "virtual" -> virtuelne niti (Java 21+), inace obicne daemon niti
+    public static ThreadFactory threadFactory(String mode) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("virtual-threads unavailable, using platform threads");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "pipeline-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -5,6 +5,8 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.HistoryPage;
+import rs.raf.pds.v4.z5.messages.SearchResponse;
 
 public interface ChatService extends Remote {
 
@@ -17,9 +19,47 @@ public interface ChatService extends Remote {
     List<ChatPacket> joinRoom(String roomName, String user)
             throws RemoteException;
 
+    // kao joinRoom, ali stranica nosi kursore za loadOlderMessages/loadNewerMessages; null -> nema sobe
+    HistoryPage joinRoomPage(
+            String roomName,
+            String user,
+            int limit
+    ) throws RemoteException;
+
+    boolean leaveRoom(String roomName, String user)
+            throws RemoteException;
+
     List<ChatPacket> loadOlderMessages(
             String roomName,
             long beforeMessageId,
             int limit
     ) throws RemoteException;
+
+    // paginacija kursorom: null -> najnovije poruke
+    HistoryPage loadOlderMessages(
+            String roomName,
+            String cursor,
+            int limit
+    ) throws RemoteException;
+
+    // paginacija kursorom: null -> od pocetka sobe
+    HistoryPage loadNewerMessages(
+            String roomName,
+            String cursor,
+            int limit
+    ) throws RemoteException;
+
+    // metrike servera u tekstu (brojaci, histogrami kasnjenja, redovi, skladiste, konekcije)
+    String getStats()
+            throws RemoteException;
+
+    // pretraga istorije koju user vidi; scope: "public", "room:ime" ("dm:" i "from:" samo preko socket-a,
+    // RMI ne zna ko je pozivalac); cursor iz prethodnog odgovora, 0 -> od najnovijih
+    SearchResponse search(
+            String user,
+            String scope,
+            String query,
+            int cursor,
+            int limit
+    ) throws RemoteException;
 }
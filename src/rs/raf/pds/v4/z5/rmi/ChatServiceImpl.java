@@ -1,53 +1,213 @@
 package rs.raf.pds.v4.z5.rmi;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 
 import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.HistoryPage;
+import rs.raf.pds.v4.z5.messages.SearchResponse;
+import rs.raf.pds.v4.z5.metrics.Histogram;
 import rs.raf.pds.v4.z5.rooms.ChatRoom;
+import rs.raf.pds.v4.z5.rooms.HistoryCursor;
+import rs.raf.pds.v4.z5.rooms.RoomHistory;
+import rs.raf.pds.v4.z5.store.DurableState;
+import rs.raf.pds.v4.z5.store.MessageJournal;
+import rs.raf.pds.v4.z5.store.PacketCodec;
+import rs.raf.pds.v4.z5.store.Snapshottable;
 
 public class ChatServiceImpl extends UnicastRemoteObject
         implements ChatService {
 
+    // istorija sobe: memory-mapped segmenti, -Dchat.rooms.segmentBytes=N
+    public static int ROOM_SEGMENT_BYTES = Integer.getInteger("chat.rooms.segmentBytes", 4 * 1024 * 1024);
+
     private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
-    private final Map<String, List<ChatPacket>> roomMessages =
+    private final Map<String, RoomHistory> roomMessages =
             new ConcurrentHashMap<>();
 
+    // korisnik -> sobe u kojima je clan (za login/logout bez prolaska kroz sve sobe)
+    private final Map<String, Set<String>> userRooms = new ConcurrentHashMap<>();
+
+    private final File historyDir;
+    private volatile MessageJournal journal;
+
+    // ChatServer preko ovoga odrzava zive konekcije u sobi (ChatRoom.getConnections)
+    public interface MembershipListener {
+        void joined(ChatRoom room, String user);
+        void left(ChatRoom room, String user);
+    }
+
+    private volatile MembershipListener membershipListener;
+
+    // trajanje poziva po metodi (RMI i socket putanja ChatServer-a), bez marshalling-a
+    private enum Call { CREATE, LIST, JOIN, LEAVE, OLDER, NEWER }
+    private final Histogram[] calls = new Histogram[Call.values().length];
+
+    // gornja granica stranice istorije u bajtovima (ChatServer: mora da stane u write bafer konekcije)
+    private volatile int pageMaxBytes = Integer.MAX_VALUE;
+    // i po broju poruka: limit stize od RMI pozivaoca bez provere (ChatServer: chat.rooms.maxPageSize)
+    private volatile int pageMaxSize = 200;
+
+    // trenutna verzija poruke po ID-u (ChatServer: skladiste poruka); istorija sobe cuva tekst iz trenutka
+    // slanja, a EDIT menja samo skladiste. null = tekst iz istorije.
+    private volatile LongFunction<ChatPacket> messageSource;
+
+    // ChatServer.getStatsReport; null = samo pozivi ovog servisa
+    private volatile Supplier<String> statsSource;
+
+    // indeks poruka je u ChatServer-u (sve poruke, ne samo sobe)
+    public interface SearchHandler {
+        SearchResponse search(String user, String scope, String query, int cursor, int limit);
+    }
+
+    private volatile SearchHandler searchHandler;
+
     public ChatServiceImpl() throws RemoteException {
+        this(new File(System.getProperty("chat.store.dir", "data"), "rooms"));
+    }
+
+    public ChatServiceImpl(File historyDir) throws RemoteException {
         super();
+        this.historyDir = historyDir;
+        for (int i = 0; i < calls.length; i++) calls[i] = new Histogram();
     }
 
     @Override
-    public synchronized boolean createRoom(String roomName, String owner)
+    public boolean createRoom(String roomName, String owner)
             throws RemoteException {
-        if (rooms.containsKey(roomName)) return false;
-
-        ChatRoom room = new ChatRoom(roomName);
-        room.addMember(owner);
-
-        rooms.put(roomName, room);
-        roomMessages.put(roomName, new ArrayList<>());
+        long start = System.nanoTime();
+        try {
+            return applyCreateRoom(roomName, owner, journal);
+        } finally {
+            calls[Call.CREATE.ordinal()].recordSince(start);
+        }
+    }
 
-        return true;
+    // bez globalnog monitora: computeIfAbsent zakljucava samo bin te sobe.
+    // Istorija se upisuje pre nego sto soba postane vidljiva, pa ko vidi sobu vidi i istoriju;
+    // isto vazi za zapis u zurnalu, pa join ne moze da se nadje ispred kreiranja sobe.
+    private boolean applyCreateRoom(String roomName, String owner, MessageJournal j) {
+        boolean[] created = new boolean[1];
+        rooms.computeIfAbsent(roomName, name -> {
+            roomMessages.put(name, RoomHistory.create(roomDir(name), ROOM_SEGMENT_BYTES));
+            ChatRoom room = new ChatRoom(name);
+            addMember(room, owner);
+            if (j != null) j.appendRoomCreated(name, owner);
+            created[0] = true;
+            return room;
+        });
+        return created[0];
     }
 
     @Override
     public List<String> listRooms() throws RemoteException {
-        return new ArrayList<>(rooms.keySet());
+        long start = System.nanoTime();
+        try {
+            return new ArrayList<>(rooms.keySet());
+        } finally {
+            calls[Call.LIST.ordinal()].recordSince(start);
+        }
     }
 
     @Override
-    public synchronized List<ChatPacket> joinRoom(String roomName, String user)
+    public List<ChatPacket> joinRoom(String roomName, String user)
             throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            if (join(roomName, user) == null) return Collections.emptyList();
+
+            // latest vraca novu listu, ne pogled na istoriju
+            return roomMessages.get(roomName)
+                    .olderPage(Long.MAX_VALUE, -1, pageLimit(10), pageMaxBytes, this::current).messages;
+        } finally {
+            calls[Call.JOIN.ordinal()].recordSince(start);
+        }
+    }
+
+    // socket putanja (ChatServer) i RMI: isto sto i joinRoom, ali stranica nosi kursore sa pozicijama.
+    // null ako soba ne postoji.
+    @Override
+    public HistoryPage joinRoomPage(String roomName, String user, int limit) {
+        long start = System.nanoTime();
+        try {
+            if (join(roomName, user) == null) return null;
+            return toPage(roomName, roomMessages.get(roomName)
+                    .olderPage(Long.MAX_VALUE, -1, pageLimit(limit), pageMaxBytes, this::current), null);
+        } finally {
+            calls[Call.JOIN.ordinal()].recordSince(start);
+        }
+    }
+
+    private ChatRoom join(String roomName, String user) {
         ChatRoom room = rooms.get(roomName);
-        if (room == null) return Collections.emptyList();
+        if (room == null) return null;
+
+        addMember(room, user);
+        MessageJournal j = journal;
+        if (j != null) j.appendRoomJoined(roomName, user);
+        return room;
+    }
+
+    @Override
+    public boolean leaveRoom(String roomName, String user) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            ChatRoom room = rooms.get(roomName);
+            if (room == null || !removeMember(room, user)) return false;
+
+            MessageJournal j = journal;
+            if (j != null) j.appendRoomLeft(roomName, user);
+            return true;
+        } finally {
+            calls[Call.LEAVE.ordinal()].recordSince(start);
+        }
+    }
 
+    private void addMember(ChatRoom room, String user) {
         room.addMember(user);
+        userRooms.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet()).add(room.getName());
+
+        MembershipListener l = membershipListener;
+        if (l != null) l.joined(room, user);
+    }
+
+    private boolean removeMember(ChatRoom room, String user) {
+        if (!room.removeMember(user)) return false;
+        Set<String> names = userRooms.get(user);
+        if (names != null) names.remove(room.getName());
+
+        MembershipListener l = membershipListener;
+        if (l != null) l.left(room, user);
+        return true;
+    }
 
-        List<ChatPacket> msgs = roomMessages.get(roomName);
-        return lastN(msgs, 10);
+    // za routing ROOM poruka; null ako soba ne postoji
+    public ChatRoom getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    public List<ChatRoom> roomsOf(String user) {
+        Set<String> names = userRooms.get(user);
+        if (names == null) return Collections.emptyList();
+
+        List<ChatRoom> result = new ArrayList<>(names.size());
+        for (String name : names) {
+            ChatRoom room = rooms.get(name);
+            if (room != null) result.add(room);
+        }
+        return result;
+    }
+
+    public void setMembershipListener(MembershipListener membershipListener) {
+        this.membershipListener = membershipListener;
     }
 
     @Override
@@ -56,33 +216,205 @@ public class ChatServiceImpl extends UnicastRemoteObject
             long beforeId,
             int limit
     ) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            RoomHistory history = roomMessages.get(roomName);
+            if (history == null) return Collections.emptyList();
 
-        List<ChatPacket> msgs = roomMessages.get(roomName);
-        if (msgs == null) return Collections.emptyList();
+            // binarna pretraga po retkom indeksu + citanje unazad, bez obzira na velicinu sobe
+            return history.olderPage(beforeId, -1, pageLimit(limit), pageMaxBytes, this::current).messages;
+        } finally {
+            calls[Call.OLDER.ordinal()].recordSince(start);
+        }
+    }
 
-        List<ChatPacket> result = new ArrayList<>();
-        for (int i = msgs.size() - 1; i >= 0; i--) {
-            ChatPacket p = msgs.get(i);
-            if (p.id < beforeId) {
-                result.add(p);
-                if (result.size() == limit) break;
-            }
+    @Override
+    public HistoryPage loadOlderMessages(String roomName, String cursor, int limit)
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            RoomHistory history = roomMessages.get(roomName);
+            HistoryCursor c = HistoryCursor.decode(cursor);
+            if (history == null) return toPage(roomName, null, c);
+
+            RoomHistory.Slice slice = c == null
+                    ? history.olderPage(Long.MAX_VALUE, -1, pageLimit(limit), pageMaxBytes, this::current)
+                    : history.olderPage(c.getId(), c.getPosition(), pageLimit(limit), pageMaxBytes, this::current);
+            return toPage(roomName, slice, c);
+        } finally {
+            calls[Call.OLDER.ordinal()].recordSince(start);
         }
-        Collections.reverse(result);
-        return result;
     }
 
-    // helper
-    private List<ChatPacket> lastN(List<ChatPacket> list, int n) {
-        if (list.size() <= n) return new ArrayList<>(list);
-        return list.subList(list.size() - n, list.size());
+    @Override
+    public HistoryPage loadNewerMessages(String roomName, String cursor, int limit)
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            RoomHistory history = roomMessages.get(roomName);
+            HistoryCursor c = HistoryCursor.decode(cursor);
+            if (history == null) return toPage(roomName, null, c);
+
+            RoomHistory.Slice slice = c == null
+                    ? history.newerPage(Long.MIN_VALUE, -1, pageLimit(limit), pageMaxBytes, this::current)
+                    : history.newerPage(c.getId(), c.getPosition(), pageLimit(limit), pageMaxBytes, this::current);
+            return toPage(roomName, slice, c);
+        } finally {
+            calls[Call.NEWER.ordinal()].recordSince(start);
+        }
+    }
+
+    @Override
+    public String getStats() throws RemoteException {
+        Supplier<String> s = statsSource;
+        return s != null ? s.get() : getCallReport();
+    }
+
+    public void setPageMaxBytes(int pageMaxBytes) {
+        this.pageMaxBytes = pageMaxBytes;
+    }
+
+    public void setPageMaxSize(int pageMaxSize) {
+        this.pageMaxSize = pageMaxSize;
+    }
+
+    private int pageLimit(int limit) {
+        return Math.max(0, Math.min(limit, pageMaxSize));
+    }
+
+    public void setMessageSource(LongFunction<ChatPacket> messageSource) {
+        this.messageSource = messageSource;
+    }
+
+    // p je tek procitan iz istorije (nova instanca), pa se menja na mestu
+    private ChatPacket current(ChatPacket p) {
+        LongFunction<ChatPacket> source = messageSource;
+        ChatPacket stored = source == null ? null : source.apply(p.id);
+        if (stored != null && stored.edited) {
+            p.text = stored.text;
+            p.edited = true;
+        }
+        return p;
+    }
+
+    public void setStatsSource(Supplier<String> statsSource) {
+        this.statsSource = statsSource;
+    }
+
+    @Override
+    public SearchResponse search(String user, String scope, String query, int cursor, int limit)
+            throws RemoteException {
+        SearchHandler h = searchHandler;
+        if (h != null) return h.search(user, scope, query, cursor, limit);
+        SearchResponse response = new SearchResponse(0, scope, query);
+        response.error = "Search is not available.";
+        return response;
+    }
+
+    public void setSearchHandler(SearchHandler searchHandler) {
+        this.searchHandler = searchHandler;
+    }
+
+    public String getCallReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Call c : Call.values()) {
+            sb.append("rooms ").append(c.name().toLowerCase()).append(": ")
+                    .append(calls[c.ordinal()].summary(1000, "us")).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // prazna stranica zadrzava ulazni kursor, pa klijent moze da nastavi (npr. da ceka nove poruke)
+    private HistoryPage toPage(String roomName, RoomHistory.Slice slice, HistoryCursor from) {
+        HistoryPage page = new HistoryPage();
+        page.room = roomName;
+
+        if (slice == null || slice.messages.isEmpty()) {
+            page.messages = new ChatPacket[0];
+            page.olderCursor = from == null ? null : from.encode();
+            page.newerCursor = page.olderCursor;
+            page.hasOlder = slice != null && slice.hasOlder;
+            page.hasNewer = slice != null && slice.hasNewer;
+            return page;
+        }
+
+        List<ChatPacket> msgs = slice.messages;
+        page.messages = msgs.toArray(new ChatPacket[0]);
+        page.olderCursor = HistoryCursor.at(msgs.get(0).id, slice.firstPosition).encode();
+        page.newerCursor = HistoryCursor.at(msgs.get(msgs.size() - 1).id, slice.lastPosition).encode();
+        page.hasOlder = slice.hasOlder;
+        page.hasNewer = slice.hasNewer;
+        return page;
     }
 
     // koristićemo ovo iz ChatServer-a
     public void addRoomMessage(String room, ChatPacket packet) {
-        List<ChatPacket> msgs = roomMessages.get(room);
-        if (msgs != null) {
-            msgs.add(packet);
+        if (applyRoomMessage(room, packet)) {
+            MessageJournal j = journal;
+            if (j != null) j.appendRoomMessage(room, packet);
         }
     }
+
+    // replay zurnala moze da ponovi poruku koja je vec u snapshot-u - preskacemo po ID-u
+    private boolean applyRoomMessage(String room, ChatPacket packet) {
+        RoomHistory history = roomMessages.get(room);
+        return history != null && history.append(packet);
+    }
+
+    // ime sobe -> bezbedno ime direktorijuma
+    private File roomDir(String roomName) {
+        String safe = roomName.replaceAll("[^A-Za-z0-9_-]", "_");
+        return new File(historyDir, safe + "-" + Integer.toHexString(roomName.hashCode()));
+    }
+
+    // sobe, clanovi i granice istorije ulaze u snapshot; promene posle njega su u zurnalu
+    public void enableDurability(DurableState state) {
+        state.register("rooms", new Snapshottable() {
+            public void writeSnapshot(DataOutputStream out) throws IOException {
+                List<ChatRoom> snapshot = new ArrayList<>(rooms.values());
+                out.writeInt(snapshot.size());
+                for (ChatRoom room : snapshot) {
+                    PacketCodec.writeString(out, room.getName());
+
+                    List<String> members = new ArrayList<>(room.getMembers());
+                    out.writeInt(members.size());
+                    for (String m : members) PacketCodec.writeString(out, m);
+
+                    roomMessages.get(room.getName()).writeSnapshot(out);
+                }
+            }
+
+            public void readSnapshot(DataInputStream in) throws IOException {
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String name = PacketCodec.readString(in);
+                    ChatRoom room = new ChatRoom(name);
+                    int members = in.readInt();
+                    for (int m = 0; m < members; m++) addMember(room, PacketCodec.readString(in));
+
+                    rooms.put(name, room);
+                    roomMessages.put(name, RoomHistory.readSnapshot(roomDir(name), in));
+                }
+            }
+        }, new MessageJournal.Handler() {
+            public void onRoomCreated(String room, String owner) {
+                applyCreateRoom(room, owner, null);
+            }
+
+            public void onRoomJoined(String room, String user) {
+                ChatRoom r = rooms.get(room);
+                if (r != null) addMember(r, user);
+            }
+
+            public void onRoomLeft(String room, String user) {
+                ChatRoom r = rooms.get(room);
+                if (r != null) removeMember(r, user);
+            }
+
+            public void onRoomMessage(String room, ChatPacket p) {
+                applyRoomMessage(room, p);
+            }
+        });
+        this.journal = state.getJournal();
+    }
 }
@@ -1,12 +1,21 @@
 package rs.raf.pds.v4.z5.rooms;
 
 import java.io.Serializable;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esotericsoftware.kryonet.Connection;
 
 public class ChatRoom implements Serializable {
+    private static final Connection[] NO_CONNECTIONS = new Connection[0];
+
     private String name;
-    private Set<String> members = new HashSet<>();
+    // join-ovi u istoj sobi idu paralelno, bez zakljucavanja servisa
+    private Set<String> members = ConcurrentHashMap.newKeySet();
+
+    // zive konekcije clanova za fan-out: nepromenljiv niz koji se zamenjuje na join/leave/disconnect.
+    // Slanje poruke sobi je samo prolaz kroz niz, bez hesiranja imena i bez alokacije.
+    private transient volatile Connection[] connections = NO_CONNECTIONS;
 
     public ChatRoom(String name) {
         this.name = name;
@@ -24,7 +33,40 @@ public class ChatRoom implements Serializable {
         members.add(user);
     }
 
+    public boolean removeMember(String user) {
+        return members.remove(user);
+    }
+
     public boolean hasMember(String user) {
         return members.contains(user);
     }
+
+    // snapshot; ne menjati
+    public Connection[] getConnections() {
+        Connection[] c = connections;
+        return c == null ? NO_CONNECTIONS : c;
+    }
+
+    // izmene su retke (join/leave/login/logout) pa ih serijalizujemo; citaoci ne zakljucavaju
+    public synchronized void addConnection(Connection connection) {
+        Connection[] current = getConnections();
+        for (Connection c : current) if (c == connection) return;
+
+        Connection[] next = new Connection[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = connection;
+        connections = next;
+    }
+
+    public synchronized void removeConnection(Connection connection) {
+        Connection[] current = getConnections();
+        int i = 0;
+        while (i < current.length && current[i] != connection) i++;
+        if (i == current.length) return;
+
+        Connection[] next = new Connection[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        connections = next;
+    }
 }
@@ -0,0 +1,65 @@
+package rs.raf.pds.v4.z5.rooms;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+// Neprovidan kursor za paginaciju istorije sobe: ID granicne poruke + pozicija njenog zapisa.
+// Pozicija je samo ubrzanje - ako ne odgovara (ili je -1), server trazi po ID-u.
+public final class HistoryCursor {
+
+    private static final String PREFIX = "c1";
+
+    private final long id;
+    private final long position;
+
+    private HistoryCursor(long id, long position) {
+        this.id = id;
+        this.position = position;
+    }
+
+    // kursor na poruku sa datim ID-em, bez pozicije (npr. posle /join)
+    public static HistoryCursor at(long id) {
+        return new HistoryCursor(id, -1);
+    }
+
+    public static HistoryCursor at(long id, long position) {
+        return new HistoryCursor(id, position);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public String encode() {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.putLong(id);
+        buf.putLong(position);
+        return PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(buf.array());
+    }
+
+    // null za null/prazan string
+    public static HistoryCursor decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) return null;
+        if (!cursor.startsWith(PREFIX)) throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+        }
+        if (bytes.length != 16) throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        return new HistoryCursor(buf.getLong(), buf.getLong());
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
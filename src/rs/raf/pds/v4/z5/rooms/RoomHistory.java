@@ -0,0 +1,474 @@
+package rs.raf.pds.v4.z5.rooms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.store.PacketCodec;
+
+// Istorija jedne sobe u memory-mapped segmentima fiksne velicine (seg-<n>.dat).
+//
+// Zapis: [int duzina][long id][PacketCodec telo][int duzina]
+//  - zaglavlje fiksne duzine omogucava citanje unapred, duzina na kraju citanje unazad;
+//  - zapis nikad ne prelazi granicu segmenta.
+// Retki indeks (svaki INDEX_EVERY-ti zapis) cuva id -> pozicija, pa je "starije od X"
+// binarna pretraga + kratko sekvencijalno citanje, bez obzira na velicinu sobe.
+// Kursori (HistoryCursor) nose i poziciju zapisa, pa nastavak paginacije ne trazi nista.
+// Poruke se ne drze na heap-u; ID-jevi u sobi moraju biti rastuci.
+//
+// Jedan pisac, vise citalaca: append je serijalizovan (monitor objekta), a posle upisa
+// objavljuje novi View kroz volatile polje. Citaoci uzmu View jednom i rade bez zakljucavanja:
+// bajtovi i ulazi indeksa do granica iz View-a se vise ne menjaju, a nizovi se pri rastu kopiraju.
+public class RoomHistory {
+
+    static final int HEADER = 12;
+    static final int TRAILER = 4;
+    static final int INDEX_EVERY = 32;
+
+    private final File dir;
+    private final int segmentBytes;
+
+    // stanje pisca (samo pod monitorom)
+    private MappedByteBuffer[] segments = new MappedByteBuffer[4];
+    private int segmentCount = 0;
+    // kraj zatvorenih segmenata; kraj poslednjeg je tailEnd
+    private int[] segmentEnds = new int[4];
+    private int tailEnd = 0;
+
+    // retki indeks: pozicija = segment * segmentBytes + offset
+    private long[] indexIds = new long[16];
+    private long[] indexPositions = new long[16];
+    private int indexSize = 0;
+
+    private long count = 0;
+    private long lastId = Long.MIN_VALUE;
+
+    private volatile View view = new View(this);
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    // nepromenljiv presek stanja za citaoce
+    private static final class View {
+        final MappedByteBuffer[] segments;
+        final int segmentCount;
+        final int[] segmentEnds;
+        final int tailEnd;
+        final long[] indexIds;
+        final long[] indexPositions;
+        final int indexSize;
+        final long count;
+        final long lastId;
+
+        View(RoomHistory h) {
+            segments = h.segments;
+            segmentCount = h.segmentCount;
+            segmentEnds = h.segmentEnds;
+            tailEnd = h.tailEnd;
+            indexIds = h.indexIds;
+            indexPositions = h.indexPositions;
+            indexSize = h.indexSize;
+            count = h.count;
+            lastId = h.lastId;
+        }
+
+        int endOf(int seg) {
+            return seg == segmentCount - 1 ? tailEnd : segmentEnds[seg];
+        }
+
+        long endPosition(int segmentBytes) {
+            return segmentCount == 0 ? 0 : (long) (segmentCount - 1) * segmentBytes + tailEnd;
+        }
+    }
+
+    private RoomHistory(File dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // nova, prazna istorija (stari fajlovi se brisu)
+    public static RoomHistory create(File dir, int segmentBytes) {
+        dir.mkdirs();
+        File[] old = dir.listFiles((d, name) -> name.startsWith("seg-"));
+        if (old != null) for (File f : old) f.delete();
+        return new RoomHistory(dir, segmentBytes);
+    }
+
+    // ===== upis =====
+
+    // false ako poruka nije novija od poslednje u sobi (npr. ponovljena pri replay-u)
+    public synchronized boolean append(ChatPacket p) {
+        if (p.id <= lastId) return false;
+
+        byte[] body = encode(p);
+        int recordBytes = HEADER + body.length + TRAILER;
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("Message " + p.id + " too large for room segment: " + recordBytes);
+        }
+
+        int seg = segmentCount - 1;
+        if (seg < 0 || tailEnd + recordBytes > segmentBytes) {
+            seg = addSegment();
+        }
+
+        int offset = tailEnd;
+        ByteBuffer buf = segments[seg].duplicate();
+        buf.position(offset);
+        buf.putInt(body.length);
+        buf.putLong(p.id);
+        buf.put(body);
+        buf.putInt(body.length);
+
+        if (count % INDEX_EVERY == 0) addIndex(p.id, position(seg, offset));
+        tailEnd = offset + recordBytes;
+        count++;
+        lastId = p.id;
+        view = new View(this);
+        return true;
+    }
+
+    // ===== citanje =====
+
+    // deo istorije, rastuce po ID-u; pozicije prve i poslednje poruke sluze za kursore
+    public static final class Slice {
+        public final List<ChatPacket> messages;
+        public final long firstPosition;
+        public final long lastPosition;
+        public final boolean hasOlder;
+        public final boolean hasNewer;
+
+        Slice(List<ChatPacket> messages, long firstPosition, long lastPosition, boolean hasOlder, boolean hasNewer) {
+            this.messages = messages;
+            this.firstPosition = firstPosition;
+            this.lastPosition = lastPosition;
+            this.hasOlder = hasOlder;
+            this.hasNewer = hasNewer;
+        }
+    }
+
+    // najvise limit poruka sa id < beforeId, rastuce po ID-u
+    public List<ChatPacket> olderThan(long beforeId, int limit) {
+        return olderPage(beforeId, -1, limit).messages;
+    }
+
+    // poslednjih n poruka, rastuce po ID-u
+    public List<ChatPacket> latest(int n) {
+        return olderPage(Long.MAX_VALUE, -1, n).messages;
+    }
+
+    // poruke pre beforeId; positionHint je pozicija zapisa beforeId (iz kursora) ili -1.
+    // Ako je hint ispravan nastavlja se odatle bez pretrage, inace binarna pretraga po indeksu.
+    public Slice olderPage(long beforeId, long positionHint, int limit) {
+        return olderPage(beforeId, positionHint, limit, Integer.MAX_VALUE, null);
+    }
+
+    // maxBytes: stranica staje dok zbir PacketCodec.estimateWireBytes ne predje granicu (bar jedna
+    // poruka); ostatak je iza kursora. current (ili null) vraca trenutnu verziju procitane poruke -
+    // zapis je nepromenljiv, a EDIT menja tekst u skladistu poruka; velicina se racuna posle njega.
+    public Slice olderPage(long beforeId, long positionHint, int limit, int maxBytes,
+            UnaryOperator<ChatPacket> current) {
+        View v = view;
+        long end = v.endPosition(segmentBytes);
+        long from;
+        if (beforeId == Long.MAX_VALUE) from = end;
+        else if (isRecord(v, positionHint, beforeId)) from = positionHint;
+        else from = firstPositionAtOrAfter(v, beforeId);
+
+        return readBackwards(v, from, Math.max(0, limit), maxBytes, current, end);
+    }
+
+    // poruke posle afterId; positionHint je pozicija zapisa afterId ili -1
+    public Slice newerPage(long afterId, long positionHint, int limit) {
+        return newerPage(afterId, positionHint, limit, Integer.MAX_VALUE, null);
+    }
+
+    public Slice newerPage(long afterId, long positionHint, int limit, int maxBytes,
+            UnaryOperator<ChatPacket> current) {
+        View v = view;
+        long end = v.endPosition(segmentBytes);
+        long from;
+        if (afterId == Long.MIN_VALUE) from = 0;
+        else if (isRecord(v, positionHint, afterId)) from = positionHint + recordBytesAt(v, positionHint);
+        else if (afterId == Long.MAX_VALUE) from = end;
+        else from = firstPositionAtOrAfter(v, afterId + 1);
+
+        return readForwards(v, from, Math.max(0, limit), maxBytes, current, end);
+    }
+
+    public long size() {
+        return view.count;
+    }
+
+    public long lastId() {
+        return view.lastId;
+    }
+
+    // pozicija prvog zapisa sa id >= id (ili kraj)
+    private long firstPositionAtOrAfter(View v, long id) {
+        // poslednji ulaz indeksa sa id < trazenog
+        int lo = 0;
+        int hi = v.indexSize - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (v.indexIds[mid] < id) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long end = v.endPosition(segmentBytes);
+        if (found < 0) return v.indexSize == 0 ? end : v.indexPositions[0];
+
+        long pos = v.indexPositions[found];
+        while (pos < end) {
+            int seg = segmentOf(pos);
+            int offset = offsetOf(pos);
+            if (offset >= v.endOf(seg)) {
+                pos = position(seg + 1, 0);
+                continue;
+            }
+            ByteBuffer buf = v.segments[seg];
+            if (buf.getLong(offset + 4) >= id) return pos;
+            pos += HEADER + buf.getInt(offset) + TRAILER;
+        }
+        return end;
+    }
+
+    // da li na poziciji pocinje zapis sa datim ID-em (provera kursora)
+    private boolean isRecord(View v, long pos, long id) {
+        if (pos < 0 || pos >= v.endPosition(segmentBytes)) return false;
+        int seg = segmentOf(pos);
+        int offset = offsetOf(pos);
+        if (seg >= v.segmentCount || offset + HEADER > v.endOf(seg)) return false;
+
+        ByteBuffer buf = v.segments[seg];
+        int len = buf.getInt(offset);
+        return len > 0 && offset + HEADER + len + TRAILER <= v.endOf(seg)
+                && buf.getLong(offset + 4) == id
+                && buf.getInt(offset + HEADER + len) == len;
+    }
+
+    private int recordBytesAt(View v, long pos) {
+        return HEADER + v.segments[segmentOf(pos)].getInt(offsetOf(pos)) + TRAILER;
+    }
+
+    private Slice readBackwards(View v, long from, int limit, int maxBytes, UnaryOperator<ChatPacket> current,
+            long end) {
+        // od najnovije ka starijoj, okrece se na kraju; limit dolazi od pozivaoca, pa bez niza te velicine
+        List<ChatPacket> messages = new ArrayList<>(Math.min(limit, 256));
+        int n = 0;
+        int bytes = 0;
+        long first = -1;
+        long last = -1;
+
+        int seg = segmentOf(from);
+        int offset = offsetOf(from);
+        if (seg >= v.segmentCount) {
+            seg = v.segmentCount - 1;
+            offset = seg < 0 ? 0 : v.endOf(seg);
+        }
+
+        while (n < limit && seg >= 0) {
+            if (offset == 0) {
+                if (seg == 0) break;
+                seg--;
+                offset = v.endOf(seg);
+                continue;
+            }
+            ByteBuffer buf = v.segments[seg];
+            int len = buf.getInt(offset - TRAILER);
+            int start = offset - (HEADER + len + TRAILER);
+            ChatPacket p = decode(buf, start + HEADER, len);
+            if (current != null) p = current.apply(p);
+            int size = PacketCodec.estimateWireBytes(p);
+            if (n > 0 && bytes + size > maxBytes) break;
+            bytes += size;
+            offset = start;
+            messages.add(p);
+            first = position(seg, offset);
+            if (n == 0) last = first;
+            n++;
+        }
+
+        Collections.reverse(messages);
+        boolean hasOlder = n == 0 ? from > 0 : first > 0;
+        return new Slice(messages, first, last, hasOlder, from < end);
+    }
+
+    private Slice readForwards(View v, long from, int limit, int maxBytes, UnaryOperator<ChatPacket> current,
+            long end) {
+        List<ChatPacket> messages = new ArrayList<>(Math.min(limit, 256));
+        long first = -1;
+        long last = -1;
+        int bytes = 0;
+
+        long pos = from;
+        while (messages.size() < limit && pos < end) {
+            int seg = segmentOf(pos);
+            int offset = offsetOf(pos);
+            if (offset >= v.endOf(seg)) {
+                pos = position(seg + 1, 0);
+                continue;
+            }
+            ByteBuffer buf = v.segments[seg];
+            int len = buf.getInt(offset);
+            ChatPacket p = decode(buf, offset + HEADER, len);
+            if (current != null) p = current.apply(p);
+            int size = PacketCodec.estimateWireBytes(p);
+            if (!messages.isEmpty() && bytes + size > maxBytes) break;
+            bytes += size;
+            messages.add(p);
+            if (first < 0) first = pos;
+            last = pos;
+            pos += HEADER + len + TRAILER;
+        }
+
+        return new Slice(messages, first, last, from > 0, pos < end && hasRecordAtOrAfter(v, pos, end));
+    }
+
+    private boolean hasRecordAtOrAfter(View v, long pos, long end) {
+        while (pos < end) {
+            int seg = segmentOf(pos);
+            if (offsetOf(pos) < v.endOf(seg)) return true;
+            pos = position(seg + 1, 0);
+        }
+        return false;
+    }
+
+    // ===== snapshot =====
+
+    // mapirani fajlovi su vec na disku; snapshot cuva samo granice i indeks.
+    // Radi nad objavljenim View-om, pa ne zaustavlja pisca; kasniji upisi su u zurnalu.
+    public void writeSnapshot(DataOutputStream snapshot) throws IOException {
+        View v = view;
+        for (int i = 0; i < v.segmentCount; i++) v.segments[i].force();
+
+        snapshot.writeInt(segmentBytes);
+        snapshot.writeLong(v.count);
+        snapshot.writeLong(v.lastId);
+        snapshot.writeInt(v.segmentCount);
+        for (int i = 0; i < v.segmentCount; i++) snapshot.writeInt(v.endOf(i));
+        snapshot.writeInt(v.indexSize);
+        for (int i = 0; i < v.indexSize; i++) {
+            snapshot.writeLong(v.indexIds[i]);
+            snapshot.writeLong(v.indexPositions[i]);
+        }
+    }
+
+    public static RoomHistory readSnapshot(File dir, DataInputStream snapshot) throws IOException {
+        RoomHistory h = new RoomHistory(dir, snapshot.readInt());
+        h.count = snapshot.readLong();
+        h.lastId = snapshot.readLong();
+
+        int segs = snapshot.readInt();
+        h.segments = new MappedByteBuffer[Math.max(4, segs)];
+        h.segmentEnds = new int[Math.max(4, segs)];
+        for (int i = 0; i < segs; i++) {
+            h.segments[i] = h.map(i);
+            h.segmentEnds[i] = snapshot.readInt();
+        }
+        h.segmentCount = segs;
+        h.tailEnd = segs == 0 ? 0 : h.segmentEnds[segs - 1];
+
+        h.indexSize = snapshot.readInt();
+        h.indexIds = new long[Math.max(16, h.indexSize)];
+        h.indexPositions = new long[Math.max(16, h.indexSize)];
+        for (int i = 0; i < h.indexSize; i++) {
+            h.indexIds[i] = snapshot.readLong();
+            h.indexPositions[i] = snapshot.readLong();
+        }
+        h.view = new View(h);
+        return h;
+    }
+
+    // ===== pomocne =====
+
+    private byte[] encode(ChatPacket p) {
+        bytes.reset();
+        try {
+            PacketCodec.write(out, p);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private ChatPacket decode(ByteBuffer segment, int offset, int len) {
+        byte[] body = new byte[len];
+        ByteBuffer buf = segment.duplicate();
+        buf.position(offset);
+        buf.get(body);
+        try {
+            return PacketCodec.read(new DataInputStream(new ByteArrayInputStream(body)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // nizovi se pri rastu kopiraju, pa stari View i dalje vidi svoje (nepromenjene) ulaze
+    private int addSegment() {
+        int seg = segmentCount;
+        MappedByteBuffer mapped;
+        try {
+            mapped = map(seg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (seg == segments.length) {
+            segments = Arrays.copyOf(segments, seg * 2);
+            segmentEnds = Arrays.copyOf(segmentEnds, seg * 2);
+        }
+        segments[seg] = mapped;
+        if (seg > 0) segmentEnds[seg - 1] = tailEnd;
+        segmentCount = seg + 1;
+        tailEnd = 0;
+        return seg;
+    }
+
+    private MappedByteBuffer map(int seg) throws IOException {
+        File file = new File(dir, String.format("seg-%08d.dat", seg));
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private void addIndex(long id, long position) {
+        if (indexSize == indexIds.length) {
+            indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexIds[indexSize] = id;
+        indexPositions[indexSize] = position;
+        indexSize++;
+    }
+
+    private long position(int seg, int offset) {
+        return (long) seg * segmentBytes + offset;
+    }
+
+    private int segmentOf(long position) {
+        return (int) (position / segmentBytes);
+    }
+
+    private int offsetOf(long position) {
+        return (int) (position % segmentBytes);
+    }
+}
@@ -0,0 +1,144 @@
+package rs.raf.pds.v4.z5.search;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Rastuci brojevi dokumenata jednog termina, kompresovani u jedan byte[]: blokovi od BLOCK brojeva,
+// prvi u bloku je ceo (varint), ostali razlika od prethodnog (varint, tipicno 1-2 bajta).
+// blocks[b] = pocetak bloka b, pa se citanje unazad (najnovije prvo) krece od poslednjeg bloka i
+// preskace cele blokove bez dekodiranja. Pise jedna nit pod lock-om indeksa.
+final class Postings {
+
+    static final int BLOCK = 128;
+
+    private byte[] data = new byte[4];
+    private int length;
+    private int[] blocks = new int[1];
+    private int count;
+    private int last = -1;
+
+    void add(int doc) {
+        if (doc <= last) return;
+        if (count % BLOCK == 0) {
+            int b = count / BLOCK;
+            if (b == blocks.length) blocks = Arrays.copyOf(blocks, b * 2);
+            blocks[b] = length;
+            writeVarint(doc);
+        } else {
+            writeVarint(doc - last);
+        }
+        last = doc;
+        count++;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int bytes() {
+        return data.length + blocks.length * 4;
+    }
+
+    int blockCount() {
+        return (count + BLOCK - 1) / BLOCK;
+    }
+
+    // najmanji (prvi) broj u bloku, bez dekodiranja ostatka
+    int first(int block) {
+        return readVarint(blocks[block], null);
+    }
+
+    // dekodira blok u buf, vraca broj elemenata
+    int decode(int block, int[] buf) {
+        int n = Math.min(BLOCK, count - block * BLOCK);
+        int[] pos = { blocks[block] };
+        int doc = 0;
+        for (int i = 0; i < n; i++) {
+            int v = readVarint(pos[0], pos);
+            doc = i == 0 ? v : doc + v;
+            buf[i] = doc;
+        }
+        return n;
+    }
+
+    private void writeVarint(int v) {
+        if (length + 5 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        while ((v & ~0x7f) != 0) {
+            data[length++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        data[length++] = (byte) v;
+    }
+
+    // pos[0] se pomera iza procitanog broja (ako pos nije null)
+    private int readVarint(int at, int[] pos) {
+        int v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[at++];
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        if (pos != null) pos[0] = at;
+        return v;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(last);
+        out.writeInt(length);
+        out.write(data, 0, length);
+        int n = blockCount();
+        for (int i = 0; i < n; i++) out.writeInt(blocks[i]);
+    }
+
+    static Postings read(DataInputStream in) throws IOException {
+        Postings p = new Postings();
+        p.count = in.readInt();
+        p.last = in.readInt();
+        p.length = in.readInt();
+        p.data = new byte[Math.max(4, p.length)];
+        in.readFully(p.data, 0, p.length);
+        int n = p.blockCount();
+        p.blocks = new int[Math.max(1, n)];
+        for (int i = 0; i < n; i++) p.blocks[i] = in.readInt();
+        return p;
+    }
+
+    // citanje od najnovijeg ka najstarijem; vazi samo pod lock-om indeksa
+    static final class Cursor {
+        private final Postings postings;
+        private final int[] buf = new int[BLOCK];
+        private int block;
+        private int index = -1;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+            this.block = postings.blockCount();
+        }
+
+        // najveci broj <= target, -1 kad nema vise; target ne sme da raste izmedju poziva
+        int advance(int target) {
+            while (true) {
+                if (index >= 0) {
+                    if (buf[index] <= target) return buf[index];
+                    // ostatak bloka je veci od target-a samo ako je i njegov pocetak
+                    if (buf[0] > target) {
+                        index = -1;
+                    } else {
+                        while (buf[index] > target) index--;
+                        return buf[index];
+                    }
+                }
+                // sledeci (stariji) blok koji pocinje na ili ispod target-a
+                do {
+                    if (--block < 0) return -1;
+                } while (postings.first(block) > target);
+                index = postings.decode(block, buf) - 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package rs.raf.pds.v4.z5.search;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.PacketType;
+import rs.raf.pds.v4.z5.store.LongLongHashMap;
+import rs.raf.pds.v4.z5.store.PacketCodec;
+import rs.raf.pds.v4.z5.store.Snapshottable;
+
+// Invertovani indeks teksta poruka. Svaka verzija poruke (nova ili posle EDIT-a) dobija sledeci broj
+// dokumenta; docIds[doc] je ID poruke (long[] u komadima, bez objekata po poruci), a latest pamti
+// poslednju verziju svake poruke - stariji dokumenti ostaju u postinzima i samo se preskacu. Termini
+// se cuvaju pod kljucem opsega - javni kanal, soba, DM par i posiljalac - pa upit u opsegu cita samo
+// svoje postinge (Postings: kompresovani int-ovi). Recnik je sortiran, pa prefiks upit ("rec*") uzima
+// uzastopne kljuceve.
+//
+// Upit ide od najnovijeg dokumenta: presek termina (svaki termin = unija prefiks prosirenja). Dokumenti
+// se skupljaju pod lock-om, a poruke se citaju iz skladista van njega i proveravaju (tekst koji indeks
+// jos nije stigao, vidljivost za korisnika).
+public final class SearchIndex implements Snapshottable {
+
+    public static int MAX_EXPANSIONS = Integer.getInteger("chat.search.maxExpansions", 64);
+    public static int MAX_SCAN = Integer.getInteger("chat.search.maxScan", 5000);
+
+    static final int MIN_TERM = 2;
+    static final int MAX_TERM = 32;
+    static final int MAX_QUERY_TERMS = 8;
+    static final int CHUNK_BITS = 12;
+    static final char SEPARATOR = '\u0001';
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long[][] docIds = new long[16][];
+    private int docs;
+    private final LongLongHashMap latest = new LongLongHashMap(1024, -1);
+    private long postings;
+
+    // --- opsezi ---
+
+    public static String publicScope() {
+        return "*";
+    }
+
+    public static String roomScope(String room) {
+        return "#" + room;
+    }
+
+    public static String dmScope(String a, String b) {
+        return a.compareTo(b) <= 0 ? "@" + a + SEPARATOR + b : "@" + b + SEPARATOR + a;
+    }
+
+    public static String senderScope(String user) {
+        return "~" + user;
+    }
+
+    // opsezi u kojima se poruka trazi: razgovor (javni, soba, DM par) i posiljalac
+    static List<String> scopesOf(ChatPacket p) {
+        List<String> scopes = new ArrayList<>(2);
+        if (p.type == PacketType.PUBLIC) scopes.add(publicScope());
+        else if (p.type == PacketType.ROOM && p.room != null) scopes.add(roomScope(p.room));
+        else if (p.type == PacketType.DM && p.to != null && p.to.length > 0) scopes.add(dmScope(p.from, p.to[0]));
+        if (p.from != null) scopes.add(senderScope(p.from));
+        return scopes;
+    }
+
+    // --- termini ---
+
+    // mala slova bez dijakritika (NFD bez akcenata, dj -> d), nizovi slova i cifara od MIN_TERM do
+    // MAX_TERM znakova
+    public static List<String> terms(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) return result;
+        String s = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean word = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (word && start < 0) start = i;
+            if (!word && start >= 0) {
+                if (i - start >= MIN_TERM) result.add(s.substring(start, Math.min(i, start + MAX_TERM)));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    static String normalize(String text) {
+        String s = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 127) {
+                s = Normalizer.normalize(s.replace('\u0111', 'd'), Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+                break;
+            }
+        }
+        return s;
+    }
+
+    // --- upis ---
+
+    // nova poruka; vec indeksirana se preskace (replay zurnala posle snapshot-a)
+    public synchronized void add(ChatPacket p) {
+        if (p == null || p.id <= 0 || latest.containsKey(p.id)) return;
+        index(p);
+    }
+
+    // nova verzija teksta (EDIT) - p je sacuvana poruka sa novim tekstom
+    public synchronized void update(ChatPacket p) {
+        if (p == null || p.id <= 0) return;
+        latest.remove(p.id);
+        index(p);
+    }
+
+    private void index(ChatPacket p) {
+        List<String> words = terms(p.text);
+        if (words.isEmpty()) return;
+
+        int doc = docs++;
+        int chunk = doc >>> CHUNK_BITS;
+        if (chunk == docIds.length) docIds = Arrays.copyOf(docIds, chunk * 2);
+        if (docIds[chunk] == null) docIds[chunk] = new long[1 << CHUNK_BITS];
+        docIds[chunk][doc & ((1 << CHUNK_BITS) - 1)] = p.id;
+        latest.put(p.id, doc);
+
+        for (String scope : scopesOf(p)) {
+            for (String word : words) {
+                Postings list = terms.computeIfAbsent(scope + SEPARATOR + word, k -> new Postings());
+                int before = list.count();
+                list.add(doc);
+                postings += list.count() - before;
+            }
+        }
+    }
+
+    private long docId(int doc) {
+        return docIds[doc >>> CHUNK_BITS][doc & ((1 << CHUNK_BITS) - 1)];
+    }
+
+    // --- upit ---
+
+    public static final class Result {
+        public final List<ChatPacket> messages = new ArrayList<>();
+        // sledeca stranica krece od ovog dokumenta (iskljucivo); -1 = nema vise
+        public int cursor = -1;
+        public String error;
+    }
+
+    // query: reci, "rec*" je prefiks; sve reci moraju biti u poruci. before = cursor prethodne
+    // stranice (0 = od najnovijeg). load cita poruku iz skladista, visible je filter pristupa.
+    // Stranica staje i kad zbir PacketCodec.estimateWireBytes predje maxBytes (bar jedna poruka);
+    // poruka koja nije stala je prva na sledecoj stranici.
+    public Result search(String scope, String query, int before, int limit, int maxBytes,
+            LongFunction<ChatPacket> load, Predicate<ChatPacket> visible) {
+        Result result = new Result();
+        List<String> words = new ArrayList<>();
+        List<Boolean> prefixes = new ArrayList<>();
+        for (String token : query == null ? new String[0] : query.trim().split("\\s+")) {
+            boolean prefix = token.endsWith("*");
+            List<String> parts = terms(prefix ? token.substring(0, token.length() - 1) : token);
+            for (int i = 0; i < parts.size(); i++) {
+                words.add(parts.get(i));
+                prefixes.add(prefix && i == parts.size() - 1);
+            }
+        }
+        if (words.isEmpty()) {
+            result.error = "Query needs at least one word of " + MIN_TERM + "+ letters or digits.";
+            return result;
+        }
+        if (words.size() > MAX_QUERY_TERMS) {
+            result.error = "Query has more than " + MAX_QUERY_TERMS + " words.";
+            return result;
+        }
+
+        int next = before > 0 ? before - 1 : Integer.MAX_VALUE;
+        int scanned = 0;
+        int bytes = 0;
+        boolean full = false;
+        while (!full && result.messages.size() < limit && next >= 0 && scanned < MAX_SCAN) {
+            int[] docsFound = new int[Math.min(MAX_SCAN - scanned, Math.max(limit * 2, 32))];
+            long[] ids = new long[docsFound.length];
+            int n = collect(scope, words, prefixes, next, docsFound, ids);
+            if (n == 0) {
+                next = -1;
+                break;
+            }
+            scanned += n;
+            next = docsFound[n - 1] - 1;
+
+            for (int i = 0; i < n; i++) {
+                ChatPacket p = load.apply(ids[i]);
+                if (p == null || !matches(p, words, prefixes) || !visible.test(p)) continue;
+                int size = PacketCodec.estimateWireBytes(p);
+                if (!result.messages.isEmpty() && bytes + size > maxBytes) {
+                    next = docsFound[i];
+                    full = true;
+                    break;
+                }
+                bytes += size;
+                result.messages.add(p);
+                if (result.messages.size() == limit) {
+                    next = docsFound[i] - 1;
+                    break;
+                }
+            }
+        }
+        result.cursor = next >= 0 && scanned > 0 ? next + 1 : -1;
+        return result;
+    }
+
+    // do found.length poslednjih verzija <= from koje imaju sve termine, od najnovije
+    private synchronized int collect(String scope, List<String> words, List<Boolean> prefixes, int from,
+            int[] found, long[] ids) {
+        List<List<Postings.Cursor>> groups = new ArrayList<>(words.size());
+        for (int i = 0; i < words.size(); i++) {
+            List<Postings.Cursor> group = new ArrayList<>();
+            String key = scope + SEPARATOR + words.get(i);
+            if (prefixes.get(i)) {
+                SortedMap<String, Postings> range = terms.subMap(key, key + Character.MAX_VALUE);
+                for (Postings list : range.values()) {
+                    group.add(new Postings.Cursor(list));
+                    if (group.size() == MAX_EXPANSIONS) break;
+                }
+            } else {
+                Postings list = terms.get(key);
+                if (list != null) group.add(new Postings.Cursor(list));
+            }
+            if (group.isEmpty()) return 0;
+            groups.add(group);
+        }
+
+        int n = 0;
+        int doc = Math.min(from, docs - 1);
+        while (n < found.length && doc >= 0) {
+            // svaka grupa na najveci svoj dokument <= doc; manji od doc postaje nova meta
+            boolean all = true;
+            for (List<Postings.Cursor> group : groups) {
+                int d = advance(group, doc);
+                if (d < 0) return n;
+                if (d < doc) {
+                    doc = d;
+                    all = false;
+                    break;
+                }
+            }
+            if (!all) continue;
+            long id = docId(doc);
+            if (latest.get(id) == doc) {
+                found[n] = doc;
+                ids[n++] = id;
+            }
+            doc--;
+        }
+        return n;
+    }
+
+    // unija: najveci dokument <= target medju kursorima grupe
+    private static int advance(List<Postings.Cursor> group, int target) {
+        int best = -1;
+        for (Postings.Cursor c : group) best = Math.max(best, c.advance(target));
+        return best;
+    }
+
+    // trenutni tekst poruke sadrzi sve reci upita (EDIT koji indeks jos nije obradio)
+    static boolean matches(ChatPacket p, List<String> words, List<Boolean> prefixes) {
+        List<String> current = terms(p.text);
+        for (int i = 0; i < words.size(); i++) {
+            String w = words.get(i);
+            boolean found = false;
+            for (String t : current) {
+                if (prefixes.get(i) ? t.startsWith(w) : t.equals(w)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    // --- statistika i snapshot ---
+
+    public synchronized String report() {
+        long bytes = 0;
+        for (Postings list : terms.values()) bytes += list.bytes();
+        return "docs=" + docs + " terms=" + terms.size() + " postings=" + postings
+                + " postingBytes=" + bytes + " docBytes=" + ((long) ((docs >>> CHUNK_BITS) + 1) * (8 << CHUNK_BITS)
+                + latest.memoryBytes());
+    }
+
+    // latest se ne upisuje: poslednja verzija je najveci dokument poruke
+    @Override
+    public synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(docs);
+        for (int i = 0; i < docs; i++) out.writeLong(docId(i));
+        out.writeInt(terms.size());
+        for (Map.Entry<String, Postings> e : terms.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().write(out);
+        }
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        docIds = new long[Math.max(16, (n >>> CHUNK_BITS) + 1)][];
+        latest.clear();
+        for (int i = 0; i < n; i++) {
+            int chunk = i >>> CHUNK_BITS;
+            if (docIds[chunk] == null) docIds[chunk] = new long[1 << CHUNK_BITS];
+            long id = in.readLong();
+            docIds[chunk][i & ((1 << CHUNK_BITS) - 1)] = id;
+            latest.put(id, i);
+        }
+        docs = n;
+        terms.clear();
+        postings = 0;
+        int t = in.readInt();
+        for (int i = 0; i < t; i++) {
+            String key = in.readUTF();
+            Postings list = Postings.read(in);
+            terms.put(key, list);
+            postings += list.count();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+
+// Poslednji dogadjaji (PUBLIC/DM/MCAST/EDIT) u memoriji, rastuce po ID-u, za nastavak posle prekida
+// veze. ID-jevi su vremenski (IdGenerator), pa "sve posle ID-a X" je binarna pretraga + sekvencijalno
+// citanje, bez diska. Ring fiksne velicine: najstariji dogadjaji ispadaju, a klijent koji je bio
+// odsutan duze dobija gap (ostatak samo kroz istoriju soba / RMI).
+// Upisi stizu sa vise traka skoro po redu; retki zakasneli ID se umece pomeranjem od kraja.
+public final class CatchUpLog {
+
+    // jedan odgovor: poruke + kursor (poslednji pregledan ID, ne poslednji vracen - preskocene
+    // tudje DM poruke se ne gledaju ponovo)
+    public static final class Page {
+        public final List<ChatPacket> messages = new ArrayList<>();
+        public long cursor;
+        public boolean hasMore;
+        // deo posle afterId je vec izbacen iz loga
+        public boolean gap;
+    }
+
+    private final ChatPacket[] ring;
+    private int head;
+    private int count;
+    // najveci ID koji je ispao iz loga
+    private long evictedId;
+
+    public CatchUpLog(int capacity) {
+        this.ring = new ChatPacket[Math.max(16, capacity)];
+    }
+
+    public synchronized void append(ChatPacket p) {
+        if (p.id <= evictedId) return;
+        // mesto za umetanje od kraja; isti ID (isti dogadjaj stigao dvaput) se ne dodaje
+        int i = count;
+        while (i > 0 && at(i - 1).id > p.id) i--;
+        if (i > 0 && at(i - 1).id == p.id) return;
+
+        if (count == ring.length) {
+            if (i == 0) {
+                evictedId = Math.max(evictedId, p.id);
+                return;
+            }
+            evictedId = ring[head].id;
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            i--;
+        }
+        for (int k = count; k > i; k--) set(k, at(k - 1));
+        set(i, p);
+        count++;
+    }
+
+    public synchronized long lastId() {
+        return count == 0 ? evictedId : at(count - 1).id;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // vidljivi dogadjaji u (afterId, untilId], najvise maxMessages / maxBytes; maxScan ogranicava
+    // posao pod lock-om kad je vecina dogadjaja tudja (DM)
+    public synchronized Page since(long afterId, long untilId, Predicate<ChatPacket> visible,
+                                   int maxMessages, int maxBytes, int maxScan) {
+        Page page = new Page();
+        page.gap = afterId < evictedId;
+        page.cursor = afterId;
+
+        int bytes = 0;
+        int scanned = 0;
+        for (int i = firstAfter(afterId); i < count; i++) {
+            ChatPacket p = at(i);
+            if (p.id > untilId) return page;
+            if (page.messages.size() == maxMessages || scanned == maxScan) {
+                page.hasMore = true;
+                return page;
+            }
+            if (visible.test(p)) {
+                int size = PacketCodec.estimateWireBytes(p);
+                if (bytes + size > maxBytes && !page.messages.isEmpty()) {
+                    page.hasMore = true;
+                    return page;
+                }
+                bytes += size;
+                page.messages.add(p);
+            }
+            page.cursor = p.id;
+            scanned++;
+        }
+        return page;
+    }
+
+    // prvi indeks sa ID-jem vecim od afterId
+    private int firstAfter(long afterId) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (at(mid).id <= afterId) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private ChatPacket at(int i) {
+        return ring[(head + i) % ring.length];
+    }
+
+    private void set(int i, ChatPacket p) {
+        ring[(head + i) % ring.length] = p;
+    }
+}
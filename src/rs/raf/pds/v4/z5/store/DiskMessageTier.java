@@ -0,0 +1,122 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+
+// Hladni nivo skladista: append-only fajl [int duzina][PacketCodec zapis] + primitivni indeks id -> offset.
+// Edit dopisuje novu verziju na kraj i pomera indeks; stara verzija ostaje kao otpad u fajlu.
+public class DiskMessageTier {
+
+    private final File file;
+    private final FileChannel channel;
+    private final LongLongHashMap index = new LongLongHashMap(1024, -1);
+    private long writePosition;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    public DiskMessageTier(File file) throws IOException {
+        this.file = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+
+        // sadrzaj fajla vazi tek kad ga readSnapshot() potvrdi; do tada se pise od pocetka
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.writePosition = 0;
+    }
+
+    public synchronized void put(ChatPacket p) throws IOException {
+        bytes.reset();
+        out.writeInt(0);
+        PacketCodec.write(out, p);
+        out.flush();
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        buf.putInt(0, buf.remaining() - 4);
+
+        long offset = writePosition;
+        while (buf.hasRemaining()) {
+            writePosition += channel.write(buf, writePosition);
+        }
+        index.put(p.id, offset);
+    }
+
+    public ChatPacket get(long id) throws IOException {
+        long offset;
+        synchronized (this) {
+            offset = index.get(id);
+        }
+        if (offset < 0) return null;
+
+        ByteBuffer len = ByteBuffer.allocate(4);
+        readFully(len, offset);
+        ByteBuffer body = ByteBuffer.allocate(len.getInt(0));
+        readFully(body, offset + 4);
+
+        return PacketCodec.read(new DataInputStream(new ByteArrayInputStream(body.array())));
+    }
+
+    public synchronized boolean contains(long id) {
+        return index.containsKey(id);
+    }
+
+    public synchronized long size() {
+        return index.size();
+    }
+
+    public synchronized long fileBytes() {
+        return writePosition;
+    }
+
+    // fsync + duzina fajla + indeks; sve posle te duzine se pri oporavku odbacuje
+    public synchronized void writeSnapshot(DataOutputStream snapshot) throws IOException {
+        channel.force(false);
+        snapshot.writeLong(writePosition);
+        snapshot.writeInt(index.size());
+        IOException[] error = new IOException[1];
+        index.forEach((id, offset) -> {
+            try {
+                snapshot.writeLong(id);
+                snapshot.writeLong(offset);
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) throw error[0];
+    }
+
+    public synchronized void readSnapshot(DataInputStream snapshot) throws IOException {
+        writePosition = snapshot.readLong();
+        channel.truncate(writePosition);
+        index.clear();
+        int n = snapshot.readInt();
+        for (int i = 0; i < n; i++) {
+            index.put(snapshot.readLong(), snapshot.readLong());
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) throw new IOException("Unexpected end of " + file);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import rs.raf.pds.v4.z5.log.ServerLog;
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+
+// Trajno stanje servera = poslednji snapshot + zurnal posle njega.
+//
+// Snapshot: journal.roll() -> svi delovi upisu stanje -> snapshot-<segment>.snap (atomic rename)
+// -> brisu se segmenti stariji od <segment>. Zapisi koji su stigli izmedju roll-a i snapshot-a
+// nalaze se i u snapshot-u i u zurnalu, pa replay mora biti idempotentan (put po ID-u, set clanova...).
+//
+// Oporavak: ucitaj najnoviji snapshot, pa replay segmenata >= njegovog broja.
+public class DurableState {
+
+    private static final ServerLog.Channel LOG = ServerLog.channel("store");
+
+    private static final int MAGIC = 0x43484154; // "CHAT"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final File dir;
+    private final MessageJournal journal;
+    private final Map<String, Snapshottable> parts = new LinkedHashMap<>();
+    private final Map<String, MessageJournal.Handler> handlers = new LinkedHashMap<>();
+    private ScheduledExecutorService snapshotter;
+
+    public DurableState(File dir, long segmentBytes, int maxBatch) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        this.journal = new MessageJournal(new File(dir, "journal"), segmentBytes, maxBatch, 65536);
+    }
+
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    public void register(String name, Snapshottable part, MessageJournal.Handler handler) {
+        parts.put(name, part);
+        handlers.put(name, handler);
+    }
+
+    public void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        long fromSegment = 0;
+
+        File snapshot = latestSnapshot();
+        if (snapshot != null) {
+            fromSegment = readSnapshot(snapshot);
+        }
+
+        long records = journal.replay(fromSegment, new MessageJournal.Handler() {
+            public void onMessage(ChatPacket p) {
+                for (MessageJournal.Handler h : handlers.values()) h.onMessage(p);
+            }
+
+            public void onEdit(long id, String text) {
+                for (MessageJournal.Handler h : handlers.values()) h.onEdit(id, text);
+            }
+
+            public void onRoomCreated(String room, String owner) {
+                for (MessageJournal.Handler h : handlers.values()) h.onRoomCreated(room, owner);
+            }
+
+            public void onRoomJoined(String room, String user) {
+                for (MessageJournal.Handler h : handlers.values()) h.onRoomJoined(room, user);
+            }
+
+            public void onRoomMessage(String room, ChatPacket p) {
+                for (MessageJournal.Handler h : handlers.values()) h.onRoomMessage(room, p);
+            }
+
+            public void onRoomLeft(String room, String user) {
+                for (MessageJournal.Handler h : handlers.values()) h.onRoomLeft(room, user);
+            }
+
+            public void onMailbox(long id, String[] users) {
+                for (MessageJournal.Handler h : handlers.values()) h.onMailbox(id, users);
+            }
+
+            public void onMailboxAck(String user, long firstId, int count) {
+                for (MessageJournal.Handler h : handlers.values()) h.onMailboxAck(user, firstId, count);
+            }
+        });
+
+        LOG.info("recovered ms=" + (System.currentTimeMillis() - start)
+                + " snapshot=" + (snapshot == null ? "none" : snapshot.getName())
+                + " replayed=" + records);
+    }
+
+    public synchronized void snapshot() throws IOException {
+        long segment = journal.roll();
+
+        File tmp = new File(dir, PREFIX + "tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(segment);
+            out.writeInt(parts.size());
+            for (Map.Entry<String, Snapshottable> e : parts.entrySet()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream partOut = new DataOutputStream(bytes);
+                e.getValue().writeSnapshot(partOut);
+                partOut.flush();
+
+                out.writeUTF(e.getKey());
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+
+        File target = snapshotFile(segment);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // stariji snapshot-i i segmenti vise nisu potrebni
+        for (File f : snapshotFiles()) {
+            if (!f.equals(target)) f.delete();
+        }
+        journal.deleteSegmentsBefore(segment);
+    }
+
+    public void startPeriodicSnapshots(long intervalSeconds) {
+        if (intervalSeconds <= 0) return;
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (Throwable t) {
+                LOG.error("snapshot-failed", t);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void close() throws IOException {
+        if (snapshotter != null) snapshotter.shutdownNow();
+        journal.close();
+    }
+
+    private long readSnapshot(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a snapshot: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + file);
+
+            long segment = in.readLong();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+
+                Snapshottable part = parts.get(name);
+                if (part != null) part.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes)));
+            }
+            return segment;
+        }
+    }
+
+    private File latestSnapshot() {
+        File latest = null;
+        long best = -1;
+        for (File f : snapshotFiles()) {
+            String name = f.getName();
+            long n = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            if (n > best) {
+                best = n;
+                latest = f;
+            }
+        }
+        return latest;
+    }
+
+    private File[] snapshotFiles() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+
+    private File snapshotFile(long segment) {
+        return new File(dir, String.format("%s%020d%s", PREFIX, segment, SUFFIX));
+    }
+}
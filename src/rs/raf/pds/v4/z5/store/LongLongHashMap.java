@@ -0,0 +1,131 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.util.Arrays;
+
+// Open-addressing mapa long -> long bez boxing-a (linear probing, brisanje pomeranjem unazad).
+// Nije thread-safe.
+public final class LongLongHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+    private final long missingValue;
+
+    public LongLongHashMap(int expectedSize, long missingValue) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+        this.missingValue = missingValue;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public long get(long key) {
+        int idx = index(key);
+        while (true) {
+            long k = keys[idx];
+            if (k == EMPTY) return missingValue;
+            if (k == key) return values[idx];
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != missingValue;
+    }
+
+    public void put(long key, long value) {
+        if (key == EMPTY) throw new IllegalArgumentException("Key not supported: " + key);
+
+        int idx = index(key);
+        while (true) {
+            long k = keys[idx];
+            if (k == EMPTY) {
+                keys[idx] = key;
+                values[idx] = value;
+                if (++size * 2 > keys.length) rehash(keys.length * 2);
+                return;
+            }
+            if (k == key) {
+                values[idx] = value;
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    public long remove(long key) {
+        int idx = index(key);
+        while (true) {
+            long k = keys[idx];
+            if (k == EMPTY) return missingValue;
+            if (k == key) {
+                long old = values[idx];
+                shiftBack(idx);
+                size--;
+                return old;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    // procena zauzete memorije u bajtovima
+    public long memoryBytes() {
+        return keys.length * 16L;
+    }
+
+    private void shiftBack(int hole) {
+        int idx = (hole + 1) & mask;
+        while (keys[idx] != EMPTY) {
+            int home = index(keys[idx]);
+            // element sme na mesto rupe samo ako rupa nije "ispred" njegove pocetne pozicije
+            if (((idx - home) & mask) >= ((idx - hole) & mask)) {
+                keys[hole] = keys[idx];
+                values[hole] = values[idx];
+                hole = idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new long[newCapacity];
+        mask = newCapacity - 1;
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
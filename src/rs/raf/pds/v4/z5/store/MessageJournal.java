@@ -0,0 +1,420 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+import rs.raf.pds.v4.z5.log.ServerLog;
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+
+// Append-only zurnal podeljen u segmente (journal-<broj>.log).
+// Zapis: [int duzina][int crc32][byte tip][telo]. Upis radi jedna writer nit koja skuplja
+// sve zapise koji su stigli u medjuvremenu i radi jedan fsync po grupi (group commit),
+// pa pozivalac nikad ne ceka na disk. sync() ceka da sve do tada predato bude na disku.
+public class MessageJournal {
+
+    private static final ServerLog.Channel LOG = ServerLog.channel("store");
+
+    public static final byte MESSAGE = 1;
+    public static final byte EDIT = 2;
+    public static final byte ROOM_CREATED = 3;
+    public static final byte ROOM_JOINED = 4;
+    public static final byte ROOM_MESSAGE = 5;
+    public static final byte ROOM_LEFT = 6;
+    public static final byte MAILBOX = 7;
+    public static final byte MAILBOX_ACK = 8;
+
+    // callback-ovi za replay; podrazumevano ne rade nista
+    public interface Handler {
+        default void onMessage(ChatPacket p) { }
+        default void onEdit(long id, String text) { }
+        default void onRoomCreated(String room, String owner) { }
+        default void onRoomJoined(String room, String user) { }
+        default void onRoomMessage(String room, ChatPacket p) { }
+        default void onRoomLeft(String room, String user) { }
+        default void onMailbox(long id, String[] users) { }
+        default void onMailboxAck(String user, long firstId, int count) { }
+    }
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    private final File dir;
+    private final long segmentBytes;
+    private final int maxBatch;
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+
+    private volatile boolean running = true;
+
+    // statistika
+    private volatile long appended = 0;
+    private volatile long syncs = 0;
+    private volatile long bytesWritten = 0;
+
+    public MessageJournal(File dir, long segmentBytes, int maxBatch, int queueCapacity) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBatch = maxBatch;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        dir.mkdirs();
+
+        // posle restarta uvek novi segment - ne dopisujemo iza eventualno polovicnog zapisa
+        long[] existing = segmentNumbers();
+        openSegment(existing.length == 0 ? 1 : existing[existing.length - 1] + 1);
+
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // ===== upis =====
+
+    public void appendMessage(ChatPacket p) {
+        append(MESSAGE, out -> PacketCodec.write(out, p));
+    }
+
+    public void appendEdit(long id, String text) {
+        append(EDIT, out -> {
+            out.writeLong(id);
+            PacketCodec.writeString(out, text);
+        });
+    }
+
+    public void appendRoomCreated(String room, String owner) {
+        append(ROOM_CREATED, out -> {
+            PacketCodec.writeString(out, room);
+            PacketCodec.writeString(out, owner);
+        });
+    }
+
+    public void appendRoomJoined(String room, String user) {
+        append(ROOM_JOINED, out -> {
+            PacketCodec.writeString(out, room);
+            PacketCodec.writeString(out, user);
+        });
+    }
+
+    public void appendRoomLeft(String room, String user) {
+        append(ROOM_LEFT, out -> {
+            PacketCodec.writeString(out, room);
+            PacketCodec.writeString(out, user);
+        });
+    }
+
+    public void appendRoomMessage(String room, ChatPacket p) {
+        append(ROOM_MESSAGE, out -> {
+            PacketCodec.writeString(out, room);
+            PacketCodec.write(out, p);
+        });
+    }
+
+    // poruka id ceka u posti ovih korisnika (telo je u MESSAGE zapisu)
+    public void appendMailbox(long id, String[] users) {
+        append(MAILBOX, out -> {
+            out.writeLong(id);
+            out.writeInt(users.length);
+            for (String user : users) PacketCodec.writeString(out, user);
+        });
+    }
+
+    public void appendMailboxAck(String user, long firstId, int count) {
+        append(MAILBOX_ACK, out -> {
+            PacketCodec.writeString(out, user);
+            out.writeLong(firstId);
+            out.writeInt(count);
+        });
+    }
+
+    // ceka da svi do sada predati zapisi budu fsync-ovani
+    public void sync() throws IOException {
+        await(new Barrier(false));
+    }
+
+    // zatvara tekuci segment i otvara sledeci; vraca broj novog segmenta.
+    // Svi zapisi predati pre roll() su u starijim segmentima.
+    public long roll() throws IOException {
+        return await(new Barrier(true));
+    }
+
+    public long currentSegment() {
+        return segmentNumber;
+    }
+
+    public void deleteSegmentsBefore(long number) {
+        for (long n : segmentNumbers()) {
+            if (n < number) segmentFile(n).delete();
+        }
+    }
+
+    public String report() {
+        return "appended=" + appended + " fsyncs=" + syncs + " bytes=" + bytesWritten
+                + " queued=" + queue.size() + " segment=" + segmentNumber;
+    }
+
+    public void close() throws IOException {
+        if (!running) return;
+        sync();
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+
+    // ===== replay =====
+
+    // cita sve segmente >= fromSegment redom; vraca broj procitanih zapisa
+    public long replay(long fromSegment, Handler handler) throws IOException {
+        long records = 0;
+        for (long n : segmentNumbers()) {
+            if (n < fromSegment || n == segmentNumber) continue;
+            records += replaySegment(segmentFile(n), handler);
+        }
+        return records;
+    }
+
+    private long replaySegment(File file, Handler handler) throws IOException {
+        long records = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int len;
+                int sum;
+                byte[] body;
+                try {
+                    len = in.readInt();
+                    sum = in.readInt();
+                    if (len <= 0 || len > segmentBytes + (1 << 20)) break;
+                    body = new byte[len];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != sum) {
+                    // polovican zapis na kraju (pad servera usred upisa)
+                    LOG.warn("journal-corrupt file=" + file.getName() + " records=" + records + " action=skip-rest");
+                    break;
+                }
+
+                dispatch(body, handler);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private void dispatch(byte[] body, Handler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+        switch (body[0]) {
+            case MESSAGE:
+                handler.onMessage(PacketCodec.read(in));
+                break;
+            case EDIT:
+                handler.onEdit(in.readLong(), PacketCodec.readString(in));
+                break;
+            case ROOM_CREATED:
+                handler.onRoomCreated(PacketCodec.readString(in), PacketCodec.readString(in));
+                break;
+            case ROOM_JOINED:
+                handler.onRoomJoined(PacketCodec.readString(in), PacketCodec.readString(in));
+                break;
+            case ROOM_MESSAGE:
+                handler.onRoomMessage(PacketCodec.readString(in), PacketCodec.read(in));
+                break;
+            case ROOM_LEFT:
+                handler.onRoomLeft(PacketCodec.readString(in), PacketCodec.readString(in));
+                break;
+            case MAILBOX: {
+                long id = in.readLong();
+                String[] users = new String[in.readInt()];
+                for (int i = 0; i < users.length; i++) users[i] = PacketCodec.readString(in);
+                handler.onMailbox(id, users);
+                break;
+            }
+            case MAILBOX_ACK:
+                handler.onMailboxAck(PacketCodec.readString(in), in.readLong(), in.readInt());
+                break;
+            default:
+                // nepoznat tip (novija verzija) - preskoci
+                break;
+        }
+    }
+
+    // ===== writer nit =====
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Barrier {
+        final boolean roll;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Barrier(boolean roll) {
+            this.roll = roll;
+        }
+    }
+
+    private void append(byte type, Body body) {
+        if (!running) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            body.write(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(0, record.length - 8);
+        header.putInt(4, (int) crc.getValue());
+
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long await(Barrier barrier) throws IOException {
+        try {
+            queue.put(barrier);
+            return barrier.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for journal", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                LOG.error("journal-write-failed", e);
+                for (Object o : batch) {
+                    if (o instanceof Barrier) ((Barrier) o).done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Object> batch) throws IOException {
+        List<ByteBuffer> pending = new ArrayList<>(batch.size());
+        long pendingBytes = 0;
+
+        for (Object o : batch) {
+            if (o instanceof byte[]) {
+                byte[] record = (byte[]) o;
+                pending.add(ByteBuffer.wrap(record));
+                pendingBytes += record.length;
+                appended++;
+                if (segmentSize + pendingBytes >= segmentBytes) {
+                    flush(pending, pendingBytes);
+                    pendingBytes = 0;
+                    openSegment(segmentNumber + 1);
+                }
+                continue;
+            }
+
+            Barrier barrier = (Barrier) o;
+            flush(pending, pendingBytes);
+            pendingBytes = 0;
+            if (barrier.roll) openSegment(segmentNumber + 1);
+            barrier.done.complete(segmentNumber);
+        }
+        flush(pending, pendingBytes);
+    }
+
+    // jedan gathering write + jedan fsync za celu grupu
+    private void flush(List<ByteBuffer> pending, long pendingBytes) throws IOException {
+        if (pending.isEmpty()) return;
+
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+        long remaining = pendingBytes;
+        while (remaining > 0) {
+            remaining -= segment.write(buffers);
+        }
+        segment.force(false);
+
+        segmentSize += pendingBytes;
+        bytesWritten += pendingBytes;
+        syncs++;
+        pending.clear();
+    }
+
+    private void openSegment(long number) throws IOException {
+        if (segment != null) {
+            segment.force(true);
+            segment.close();
+        }
+        segmentNumber = number;
+        segment = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentSize = 0;
+    }
+
+    private File segmentFile(long number) {
+        return new File(dir, String.format("%s%020d%s", PREFIX, number, SUFFIX));
+    }
+
+    private long[] segmentNumbers() {
+        String[] names = dir.list((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (names == null) return new long[0];
+
+        long[] numbers = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = Long.parseLong(names[i].substring(PREFIX.length(), names[i].length() - SUFFIX.length()));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+}
@@ -0,0 +1,19 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.IOException;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+
+// Skladiste poruka po ID-u (reply/edit lookup).
+public interface MessageStore extends Snapshottable {
+
+    // nova poruka ili nova verzija postojece (edit)
+    void put(ChatPacket p);
+
+    // null ako poruka ne postoji
+    ChatPacket get(long id);
+
+    long size();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,329 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Poste za korisnike van mreze (DM/MCAST). U posti su samo ID-jevi; tela poruka su u MessageStore-u,
+// jedna kopija za sve primaoce MCAST-a, a stare poruke su ionako na disku (hladni nivo).
+//
+// Po korisniku: najnoviji ID-jevi u memoriji (najvise BLOCK_IDS), stariji u blokovima od 4 KiB u
+// zajednickom spill fajlu; oslobodjeni blokovi se ponovo koriste. Kada ukupan broj ID-jeva u memoriji
+// predje hotIds, posta se preliva vec od SPILL_MIN ID-jeva, dopunjujuci svoj poslednji nepun blok. Spill fajl vazi samo dok
+// server radi - trajno stanje je zurnal (MAILBOX, MAILBOX_ACK) + snapshot.
+//
+// Isporuka je at-least-once: peek() daje najstarije ID-jeve, posta se skracuje tek na potvrdu
+// (prvi ID + broj); potvrda za nesto sto vise nije na pocetku poste se ignorise, pa je i replay
+// iste potvrde bezopasan. Preko maxPerUser najstarija poruka ispada.
+public final class OfflineMailboxes implements Snapshottable {
+
+    static final int BLOCK_IDS = 512;
+    static final int BLOCK_BYTES = BLOCK_IDS * 8;
+    static final int SPILL_MIN = 64;
+
+    private static final long[] NO_IDS = new long[0];
+
+    private static final class Box {
+        // blokovi na disku (najstariji prvi) i broj ID-jeva u svakom
+        long[] blocks = NO_IDS;
+        int[] blockLens = new int[0];
+        int blockHead;
+        int blockCount;
+        // sadrzaj prvog bloka, ucitan kad zatreba
+        long[] headBlock;
+
+        // najnoviji ID-jevi
+        long[] tail = new long[4];
+        int tailCount;
+
+        // vec skinuto sa pocetka prvog dela (prvi blok, ili tail kad blokova nema)
+        int skip;
+        int size;
+    }
+
+    private final File spillFile;
+    private final FileChannel spill;
+    private final int maxPerUser;
+    private final long hotIds;
+    private final Map<String, Box> boxes = new HashMap<>();
+
+    private long spillEnd;
+    private long[] freeBlocks = new long[16];
+    private int freeCount;
+    private volatile MessageJournal journal;
+
+    // statistika
+    private long queued;
+    private long inMemory;
+    private long diskBlocks;
+    private long added;
+    private long delivered;
+    private long dropped;
+
+    public OfflineMailboxes(File spillFile, int maxPerUser, long hotIds) throws IOException {
+        this.spillFile = spillFile;
+        File dir = spillFile.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        this.spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.maxPerUser = maxPerUser;
+        this.hotIds = hotIds;
+    }
+
+    public void setJournal(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    // jedna poruka za vise primalaca (MCAST) - jedan zapis u zurnalu
+    public synchronized void add(long id, String[] users) {
+        MessageJournal j = journal;
+        if (j != null) j.appendMailbox(id, users);
+        for (String user : users) addTo(boxes.computeIfAbsent(user, u -> new Box()), id);
+    }
+
+    // replay zurnala: zapis koji je vec u snapshot-u (izmedju roll-a i snapshot-a) se ne dodaje ponovo
+    public synchronized void replayAdd(long id, String[] users) {
+        for (String user : users) {
+            Box b = boxes.computeIfAbsent(user, u -> new Box());
+            if (!tailContains(b, id)) addTo(b, id);
+        }
+    }
+
+    // najstarijih najvise max ID-jeva, bez skidanja
+    public synchronized long[] peek(String user, int max) {
+        Box b = boxes.get(user);
+        if (b == null || b.size == 0) return NO_IDS;
+
+        long[] out = new long[Math.min(max, b.size)];
+        int n = 0;
+        for (int i = 0; i < b.blockCount && n < out.length; i++) {
+            long[] block = i == 0 ? headBlock(b) : readBlock(b.blocks[b.blockHead + i], b.blockLens[b.blockHead + i]);
+            for (int k = i == 0 ? b.skip : 0; k < block.length && n < out.length; k++) out[n++] = block[k];
+        }
+        for (int k = b.blockCount == 0 ? b.skip : 0; k < b.tailCount && n < out.length; k++) out[n++] = b.tail[k];
+        return out;
+    }
+
+    // potvrda isporuke: skida count ID-jeva ako posta i dalje pocinje sa firstId
+    public synchronized boolean ack(String user, long firstId, int count) {
+        Box b = boxes.get(user);
+        if (b == null || b.size == 0 || headId(b) != firstId) return false;
+        MessageJournal j = journal;
+        if (j != null) j.appendMailboxAck(user, firstId, count);
+        delivered += dropHead(b, Math.min(count, b.size));
+        if (b.size == 0) boxes.remove(user);
+        return true;
+    }
+
+    public synchronized void replayAck(String user, long firstId, int count) {
+        Box b = boxes.get(user);
+        if (b == null || b.size == 0 || headId(b) != firstId) return;
+        dropHead(b, Math.min(count, b.size));
+        if (b.size == 0) boxes.remove(user);
+    }
+
+    public synchronized int size(String user) {
+        Box b = boxes.get(user);
+        return b == null ? 0 : b.size;
+    }
+
+    public synchronized String report() {
+        return "users=" + boxes.size() + " queued=" + queued + " inMemory=" + inMemory
+                + " spilled=" + (diskBlocks - freeCount) + "x4KB (file " + (spillEnd / 1024) + "KB)"
+                + " added=" + added + " delivered=" + delivered + " dropped=" + dropped;
+    }
+
+    // [int korisnika] ([ime][int n][n x long])*
+    @Override
+    public synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(boxes.size());
+        for (Map.Entry<String, Box> e : boxes.entrySet()) {
+            long[] ids = peek(e.getKey(), Integer.MAX_VALUE);
+            PacketCodec.writeString(out, e.getKey());
+            out.writeInt(ids.length);
+            for (long id : ids) out.writeLong(id);
+        }
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInputStream in) throws IOException {
+        boxes.clear();
+        spill.truncate(0);
+        spillEnd = 0;
+        freeCount = 0;
+        queued = inMemory = diskBlocks = 0;
+
+        int users = in.readInt();
+        for (int u = 0; u < users; u++) {
+            Box b = new Box();
+            boxes.put(PacketCodec.readString(in), b);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) addTo(b, in.readLong());
+        }
+        added = 0;
+    }
+
+    public void close() throws IOException {
+        spill.close();
+        spillFile.delete();
+    }
+
+    // ===== jedna posta (pod lock-om) =====
+
+    private void addTo(Box b, long id) {
+        if (b.tailCount == b.tail.length) {
+            int limit = inMemory > hotIds ? SPILL_MIN : BLOCK_IDS;
+            if (b.blockCount == 0 && b.skip > 0) {
+                // tail je i pocetak poste: prvo izbaci vec skinuto
+                System.arraycopy(b.tail, b.skip, b.tail, 0, b.tailCount - b.skip);
+                b.tailCount -= b.skip;
+                inMemory -= b.skip;
+                b.skip = 0;
+            } else if (b.tailCount >= limit) {
+                spillTail(b);
+            } else {
+                b.tail = Arrays.copyOf(b.tail, Math.min(BLOCK_IDS, b.tail.length * 2));
+            }
+        }
+        b.tail[b.tailCount++] = id;
+        b.size++;
+        queued++;
+        inMemory++;
+        added++;
+
+        if (b.size > maxPerUser) dropped += dropHead(b, 1);
+    }
+
+    private void spillTail(Box b) {
+        // nepun poslednji blok (prelivanje pod pritiskom) se dopunjava umesto novog bloka
+        int last = b.blockHead + b.blockCount - 1;
+        if (b.blockCount > 0 && b.blockLens[last] + b.tailCount <= BLOCK_IDS) {
+            writeIds(b.tail, b.tailCount, b.blocks[last] + b.blockLens[last] * 8L);
+            b.blockLens[last] += b.tailCount;
+            if (b.blockCount == 1) b.headBlock = null;
+        } else {
+            long offset = freeCount > 0 ? freeBlocks[--freeCount] : allocateBlock();
+            writeIds(b.tail, b.tailCount, offset);
+            appendBlock(b, offset, b.tailCount);
+        }
+
+        inMemory -= b.tailCount;
+        b.tailCount = 0;
+        // posle prelivanja tail krece ispocetka; mala posta ne drzi veliki niz
+        if (inMemory > hotIds) b.tail = new long[SPILL_MIN];
+    }
+
+    private static void appendBlock(Box b, long offset, int len) {
+        if (b.blockHead + b.blockCount == b.blocks.length) {
+            if (b.blockHead > 0) {
+                System.arraycopy(b.blocks, b.blockHead, b.blocks, 0, b.blockCount);
+                System.arraycopy(b.blockLens, b.blockHead, b.blockLens, 0, b.blockCount);
+                b.blockHead = 0;
+            } else {
+                int length = Math.max(4, b.blocks.length * 2);
+                b.blocks = Arrays.copyOf(b.blocks, length);
+                b.blockLens = Arrays.copyOf(b.blockLens, length);
+            }
+        }
+        b.blocks[b.blockHead + b.blockCount] = offset;
+        b.blockLens[b.blockHead + b.blockCount] = len;
+        b.blockCount++;
+    }
+
+    // vraca broj skinutih
+    private int dropHead(Box b, int n) {
+        int removed = 0;
+        while (removed < n && b.size > 0) {
+            if (b.blockCount > 0) {
+                int len = b.blockLens[b.blockHead];
+                int k = Math.min(len - b.skip, n - removed);
+                b.skip += k;
+                b.size -= k;
+                queued -= k;
+                removed += k;
+                if (b.skip == len) {
+                    freeBlock(b.blocks[b.blockHead]);
+                    b.blockHead++;
+                    b.blockCount--;
+                    b.skip = 0;
+                    b.headBlock = null;
+                }
+            } else {
+                int k = Math.min(b.tailCount - b.skip, n - removed);
+                b.skip += k;
+                b.size -= k;
+                queued -= k;
+                removed += k;
+                if (b.skip == b.tailCount) {
+                    inMemory -= b.tailCount;
+                    b.tailCount = 0;
+                    b.skip = 0;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private long headId(Box b) {
+        return b.blockCount > 0 ? headBlock(b)[b.skip] : b.tail[b.skip];
+    }
+
+    private long[] headBlock(Box b) {
+        if (b.headBlock == null) b.headBlock = readBlock(b.blocks[b.blockHead], b.blockLens[b.blockHead]);
+        return b.headBlock;
+    }
+
+    private static boolean tailContains(Box b, long id) {
+        for (int k = b.blockCount == 0 ? b.skip : 0; k < b.tailCount; k++) {
+            if (b.tail[k] == id) return true;
+        }
+        return false;
+    }
+
+    // ===== spill fajl =====
+
+    private long allocateBlock() {
+        long offset = spillEnd;
+        spillEnd += BLOCK_BYTES;
+        diskBlocks++;
+        return offset;
+    }
+
+    private void freeBlock(long offset) {
+        if (freeCount == freeBlocks.length) freeBlocks = Arrays.copyOf(freeBlocks, freeCount * 2);
+        freeBlocks[freeCount++] = offset;
+    }
+
+    private void writeIds(long[] ids, int n, long position) {
+        ByteBuffer buf = ByteBuffer.allocate(n * 8);
+        buf.asLongBuffer().put(ids, 0, n);
+        try {
+            while (buf.hasRemaining()) spill.write(buf, position + buf.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long[] readBlock(long offset, int len) {
+        ByteBuffer buf = ByteBuffer.allocate(len * 8);
+        try {
+            while (buf.hasRemaining()) {
+                if (spill.read(buf, offset + buf.position()) < 0) throw new IOException("Unexpected end of " + spillFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.flip();
+        long[] ids = new long[len];
+        buf.asLongBuffer().get(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,122 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+import rs.raf.pds.v4.z5.messages.PacketType;
+
+// Binarni format ChatPacket-a za fajlove na disku (nezavisan od Kryo registracija).
+public final class PacketCodec {
+
+    private static final PacketType[] TYPES = PacketType.values();
+
+    private PacketCodec() {
+    }
+
+    public static void write(DataOutput out, ChatPacket p) throws IOException {
+        out.writeByte(p.type == null ? -1 : p.type.ordinal());
+        out.writeLong(p.id);
+        out.writeLong(p.timestamp);
+        out.writeLong(p.replyToId);
+        out.writeLong(p.editTargetId);
+        out.writeBoolean(p.edited);
+        writeString(out, p.from);
+        writeString(out, p.text);
+        writeString(out, p.replyAuthor);
+        writeString(out, p.replyExcerpt);
+        if (p.to == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(p.to.length);
+            for (String u : p.to) writeString(out, u);
+        }
+        // samo ROOM nosi sobu, pa stari zapisi ostaju citljivi
+        if (p.type == PacketType.ROOM) writeString(out, p.room);
+    }
+
+    public static ChatPacket read(DataInput in) throws IOException {
+        ChatPacket p = new ChatPacket();
+        int type = in.readByte();
+        p.type = type < 0 ? null : TYPES[type];
+        p.id = in.readLong();
+        p.timestamp = in.readLong();
+        p.replyToId = in.readLong();
+        p.editTargetId = in.readLong();
+        p.edited = in.readBoolean();
+        p.from = readString(in);
+        p.text = readString(in);
+        p.replyAuthor = readString(in);
+        p.replyExcerpt = readString(in);
+        int n = in.readInt();
+        if (n >= 0) {
+            p.to = new String[n];
+            for (int i = 0; i < n; i++) p.to[i] = readString(in);
+        }
+        if (p.type == PacketType.ROOM) p.room = readString(in);
+        return p;
+    }
+
+    // gruba procena zauzeca na heap-u (za memorijski budzet)
+    public static int estimateHeapBytes(ChatPacket p) {
+        int bytes = 80;
+        bytes += stringBytes(p.from) + stringBytes(p.text) + stringBytes(p.replyAuthor) + stringBytes(p.replyExcerpt)
+                + stringBytes(p.room);
+        if (p.to != null) {
+            bytes += 16 + 4 * p.to.length;
+            for (String u : p.to) bytes += stringBytes(u);
+        }
+        return bytes;
+    }
+
+    // gornja granica velicine na mrezi (za ogranicenje okvira sa vise poruka): maska i brojevi kao najduzi
+    // varint-ovi, svaki string kao duzina + UTF-8, imena uvek kao string (handle moze da ne postoji -
+    // npr. posle restarta, pre najave)
+    public static int estimateWireBytes(ChatPacket p) {
+        int size = 64 + wireString(p.from) + wireString(p.text) + wireString(p.room)
+                + wireString(p.replyAuthor) + wireString(p.replyExcerpt);
+        if (p.to != null) {
+            size += 5;
+            for (String u : p.to) size += 5 + wireString(u);
+        }
+        return size;
+    }
+
+    private static int wireString(String s) {
+        return s == null ? 0 : 5 + utf8Length(s);
+    }
+
+    public static int utf8Length(String s) {
+        if (s == null) return 0;
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            n += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return n;
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static int stringBytes(String s) {
+        return s == null ? 0 : 40 + s.length();
+    }
+}
@@ -0,0 +1,13 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Deo stanja servera koji se upisuje u snapshot i vraca iz njega pri pokretanju.
+public interface Snapshottable {
+
+    void writeSnapshot(DataOutputStream out) throws IOException;
+
+    void readSnapshot(DataInputStream in) throws IOException;
+}
@@ -0,0 +1,183 @@
+package rs.raf.pds.v4.z5.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import rs.raf.pds.v4.z5.messages.ChatPacket;
+
+// Dvonivovsko skladiste poruka:
+//  - vruci nivo: ring bafer u memoriji (redosled upisa) + primitivni indeks id -> slot,
+//    ograniceno memorijskim budzetom u bajtovima;
+//  - hladni nivo: poruke izbacene iz ringa prelivaju se na disk (DiskMessageTier).
+// get() trazi prvo u vrucem, pa u hladnom nivou, pa reply/edit rade za sve poruke.
+public class TieredMessageStore implements MessageStore {
+
+    private static final int MIN_PACKET_BYTES = 128;
+
+    private final long hotBudgetBytes;
+    private final int maxSlots;
+    private final DiskMessageTier cold;
+
+    private ChatPacket[] slots;
+    private int[] slotBytes;
+    private int head = 0;
+    private int count = 0;
+    private long hotBytes = 0;
+    private final LongLongHashMap slotById = new LongLongHashMap(1024, -1);
+
+    private long evicted = 0;
+
+    public TieredMessageStore(long hotBudgetBytes, File coldFile) throws IOException {
+        this.hotBudgetBytes = hotBudgetBytes;
+        this.maxSlots = (int) Math.max(16, Math.min(Integer.MAX_VALUE - 8, hotBudgetBytes / MIN_PACKET_BYTES));
+        this.cold = new DiskMessageTier(coldFile);
+
+        int initial = Math.min(1024, maxSlots);
+        this.slots = new ChatPacket[initial];
+        this.slotBytes = new int[initial];
+    }
+
+    @Override
+    public void put(ChatPacket p) {
+        int size = PacketCodec.estimateHeapBytes(p);
+
+        synchronized (this) {
+            long slot = slotById.get(p.id);
+            if (slot >= 0) {
+                int s = (int) slot;
+                hotBytes += size - slotBytes[s];
+                slots[s] = p;
+                slotBytes[s] = size;
+                return;
+            }
+        }
+
+        if (cold.contains(p.id)) {
+            putCold(p);
+            return;
+        }
+
+        synchronized (this) {
+            while (count > 0 && (count == maxSlots || hotBytes + size > hotBudgetBytes)) {
+                evictOldest();
+            }
+            if (count == slots.length) grow();
+
+            int s = (head + count) % slots.length;
+            slots[s] = p;
+            slotBytes[s] = size;
+            slotById.put(p.id, s);
+            hotBytes += size;
+            count++;
+        }
+    }
+
+    @Override
+    public ChatPacket get(long id) {
+        synchronized (this) {
+            long slot = slotById.get(id);
+            if (slot >= 0) return slots[(int) slot];
+        }
+        try {
+            return cold.get(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return count + cold.size();
+    }
+
+    public synchronized int hotCount() {
+        return count;
+    }
+
+    public synchronized long hotBytes() {
+        return hotBytes;
+    }
+
+    public long coldCount() {
+        return cold.size();
+    }
+
+    public synchronized String report() {
+        return "hot=" + count + " (" + (hotBytes / 1024) + "KB of " + (hotBudgetBytes / 1024) + "KB)"
+                + " cold=" + cold.size() + " (" + (cold.fileBytes() / 1024) + "KB on disk)"
+                + " evicted=" + evicted;
+    }
+
+    // hladni nivo upisuje samo indeks (fajl je vec na disku), vruci nivo cele poruke
+    @Override
+    public synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        cold.writeSnapshot(out);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            PacketCodec.write(out, slots[(head + i) % slots.length]);
+        }
+    }
+
+    @Override
+    public void readSnapshot(DataInputStream in) throws IOException {
+        synchronized (this) {
+            Arrays.fill(slots, null);
+            Arrays.fill(slotBytes, 0);
+            slotById.clear();
+            head = 0;
+            count = 0;
+            hotBytes = 0;
+        }
+        cold.readSnapshot(in);
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            put(PacketCodec.read(in));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cold.close();
+    }
+
+    // poziva se pod lock-om; najstarija poruka ide na disk
+    private void evictOldest() {
+        ChatPacket p = slots[head];
+        putCold(p);
+
+        slotById.remove(p.id);
+        hotBytes -= slotBytes[head];
+        slots[head] = null;
+        slotBytes[head] = 0;
+        head = (head + 1) % slots.length;
+        count--;
+        evicted++;
+    }
+
+    private void putCold(ChatPacket p) {
+        try {
+            cold.put(p);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void grow() {
+        int newLength = (int) Math.min((long) slots.length * 2, maxSlots);
+        ChatPacket[] s = new ChatPacket[newLength];
+        int[] b = new int[newLength];
+        for (int i = 0; i < count; i++) {
+            int idx = (head + i) % slots.length;
+            s[i] = slots[idx];
+            b[i] = slotBytes[idx];
+            slotById.put(s[i].id, i);
+        }
+        slots = s;
+        slotBytes = b;
+        head = 0;
+    }
+}